@@ -144,6 +144,28 @@ public class Message {
 		return decode(b,0,b.length);
 	}
 	
+	/**
+	 * Decode only the header of a message from on-the-wire format.
+	 * The AVPs are neither checked nor decoded. This is useful for making
+	 * decisions about a message (eg. admission control) as cheaply as
+	 * possible.
+	 * @param b A byte array possibly containing a Diameter message
+	 * @param offset Offset into the array where decoding should start
+	 * @param bytes The bytes available
+	 * @return The result for the decode operation. decoded means that the header was decoded.
+	 * @since 0.9.7
+	 */
+	public decode_status decodeHeader(byte b[], int offset, int bytes) {
+		if(bytes<1)
+			return decode_status.not_enough;
+		if(packunpack.unpack8(b,offset)!=1)
+			return decode_status.garbage;
+		if(bytes<20)
+			return decode_status.not_enough;
+		hdr.decode(b,offset);
+		return decode_status.decoded;
+	}
+	
 	/**
 	 * Decode a message from on-the-wire format.
 	 * The message is checked to be in valid format and the VPs to be of
@@ -407,4 +407,23 @@ static public final int DI_EAP_MASTER_SESSION_KEY                = 464;
 static public final int DI_EAP_KEY_NAME                          = 102;
 static public final int DI_ACCOUNTING_EAP_AUTH_METHOD            = 465;
 
+
+//=============================================================================
+//RFC 7683 Diameter Overload Indication Conveyance
+//AVPs (section 7)
+static public final int DI_OC_SUPPORTED_FEATURES                 = 621;
+static public final int DI_OC_FEATURE_VECTOR                     = 622;
+static public final int DI_OC_OLR                                = 623;
+static public final int DI_OC_SEQUENCE_NUMBER                    = 624;
+static public final int DI_OC_VALIDITY_DURATION                  = 625;
+static public final int DI_OC_REPORT_TYPE                        = 626;
+static public final int DI_OC_REDUCTION_PERCENTAGE               = 627;
+
+//bits in OC-Feature-Vector (section 7.3)
+static public final long DI_OC_FEATURE_VECTOR_OLR_DEFAULT_ALGO   = 0x0000000000000001L;
+
+//enum for OC-Report-Type (section 7.6)
+static public final int DI_OC_REPORT_TYPE_HOST_REPORT            = 0;
+static public final int DI_OC_REPORT_TYPE_REALM_REPORT           = 1;
+
 }
@@ -0,0 +1,52 @@
+package dk.i1.diameter.node;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * Rate limits for one direction of a connection.
+ * There is a bucket for the connection as a whole and optionally a bucket
+ * per application-id. The buckets are created when the connection is
+ * created and never modified, so checking them requires no locking.
+ */
+class AdmissionControl {
+	private final TokenBucket connection_bucket;
+	private final Map<Integer,TokenBucket> application_buckets;
+
+	private AdmissionControl(NodeSettings.RateLimit limit, Map<Integer,NodeSettings.RateLimit> application_limits) {
+		connection_bucket = limit!=null ? new TokenBucket(limit.rate,limit.burst) : null;
+		application_buckets = new HashMap<Integer,TokenBucket>();
+		for(Map.Entry<Integer,NodeSettings.RateLimit> e : application_limits.entrySet())
+			application_buckets.put(e.getKey(),new TokenBucket(e.getValue().rate,e.getValue().burst));
+	}
+
+	/**
+	 * Create admission control for the specified limits.
+	 * @return An AdmissionControl instance, or null if there are no limits.
+	 */
+	static AdmissionControl create(NodeSettings.RateLimit limit, Map<Integer,NodeSettings.RateLimit> application_limits) {
+		if(limit==null && application_limits.isEmpty())
+			return null;
+		return new AdmissionControl(limit,application_limits);
+	}
+
+	/**
+	 * Take a token for a message.
+	 * A token is only taken if both the application bucket and the
+	 * connection bucket have one, so a message rejected by the connection
+	 * limit does not use up the application's rate.
+	 * @return False if the message exceeds the rate limit.
+	 */
+	boolean admit(int application_id) {
+		TokenBucket tb = null;
+		if(!application_buckets.isEmpty()) {
+			tb = application_buckets.get(application_id);
+			if(tb!=null && !tb.tryAcquire())
+				return false;
+		}
+		if(connection_bucket==null || connection_bucket.tryAcquire())
+			return true;
+		if(tb!=null)
+			tb.release();
+		return false;
+	}
+}
@@ -0,0 +1,135 @@
+package dk.i1.diameter.node;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct buffers in power-of-2 size classes.
+ * The small size classes are carved out of larger slabs so that direct
+ * memory (which is expensive to allocate) is allocated in few, large
+ * chunks. Buffers larger than the largest size class are allocated on
+ * demand and not pooled.
+ * <p>
+ * Free buffers that have not been needed for a while are dropped from the
+ * pool by {@link #trim}, so the direct memory can be reclaimed once
+ * connections are idle.
+ */
+class BufferPool {
+	static final int min_size = 8192;
+	static final int max_size = 1024*1024;
+	private static final int slab_size = 256*1024;
+	private static final long trim_interval = 10000; //milliseconds
+	
+	private static class SizeClass {
+		final int size;
+		final ArrayDeque<ByteBuffer> free;
+		int in_use;
+		int min_free; //lowest number of free buffers since the last trim
+		SizeClass(int size) {
+			this.size = size;
+			this.free = new ArrayDeque<ByteBuffer>();
+		}
+	}
+	private final SizeClass classes[];
+	private long unpooled_in_use; //bytes
+	private long next_trim;
+	
+	BufferPool() {
+		int n=0;
+		for(int size=min_size; size<=max_size; size*=2)
+			n++;
+		classes = new SizeClass[n];
+		for(int i=0; i<n; i++)
+			classes[i] = new SizeClass(min_size<<i);
+	}
+	
+	private int classIndex(int capacity) {
+		for(int i=0; i<classes.length; i++)
+			if(classes[i].size>=capacity)
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Get a cleared buffer with at least the specified capacity.
+	 */
+	synchronized ByteBuffer acquire(int capacity) {
+		int i = classIndex(capacity);
+		if(i<0) {
+			//Too large for the pool. Round up so growing a buffer
+			//repeatedly does not cost a copy every time.
+			int size = Integer.highestOneBit(capacity-1)<<1;
+			unpooled_in_use += size;
+			return ByteBuffer.allocateDirect(size);
+		}
+		SizeClass sc = classes[i];
+		if(sc.free.isEmpty())
+			allocate(sc);
+		ByteBuffer bb = sc.free.pollLast();
+		if(sc.free.size()<sc.min_free)
+			sc.min_free = sc.free.size();
+		sc.in_use++;
+		bb.clear();
+		return bb;
+	}
+	
+	private void allocate(SizeClass sc) {
+		if(sc.size>=slab_size) {
+			sc.free.add(ByteBuffer.allocateDirect(sc.size));
+			return;
+		}
+		ByteBuffer slab = ByteBuffer.allocateDirect(slab_size);
+		for(int offset=0; offset<slab_size; offset+=sc.size) {
+			slab.limit(offset+sc.size);
+			slab.position(offset);
+			sc.free.add(slab.slice());
+		}
+	}
+	
+	/**
+	 * Return a buffer to the pool.
+	 */
+	synchronized void release(ByteBuffer bb) {
+		int i = classIndex(bb.capacity());
+		if(i<0 || classes[i].size!=bb.capacity()) {
+			unpooled_in_use -= bb.capacity();
+			return; //dropped. The GC frees it
+		}
+		SizeClass sc = classes[i];
+		sc.in_use--;
+		sc.free.addLast(bb);
+	}
+	
+	/**
+	 * Drop free buffers that have not been needed since the last trim.
+	 * Cheap to call often; it only does work every 10 seconds.
+	 */
+	synchronized void trim(long now) {
+		if(now<next_trim)
+			return;
+		next_trim = now+trim_interval;
+		for(SizeClass sc : classes) {
+			//Buffers carved from a slab are only freed once the whole
+			//slab is unreferenced, so dropping the oldest ones first
+			//gives the slabs the best chance.
+			for(int n=sc.min_free; n>0; n--)
+				sc.free.pollFirst();
+			sc.min_free = sc.free.size();
+		}
+	}
+	
+	synchronized BufferPoolUsage usage() {
+		int sizes[] = new int[classes.length];
+		int in_use[] = new int[classes.length];
+		int free[] = new int[classes.length];
+		long bytes_in_use = unpooled_in_use;
+		long bytes_free = 0;
+		for(int i=0; i<classes.length; i++) {
+			sizes[i] = classes[i].size;
+			in_use[i] = classes[i].in_use;
+			free[i] = classes[i].free.size();
+			bytes_in_use += (long)in_use[i]*sizes[i];
+			bytes_free += (long)free[i]*sizes[i];
+		}
+		return new BufferPoolUsage(sizes,in_use,free,bytes_in_use,bytes_free);
+	}
+}
@@ -0,0 +1,40 @@
+package dk.i1.diameter.node;
+
+/**
+ * A snapshot of the occupancy of the connection buffer pool.
+ * The pool holds the direct buffers used for reading from TCP
+ * connections. Buffers are kept in power-of-2 size classes.
+ * @see Node#bufferPoolUsage
+ * @since 0.9.7
+ */
+public class BufferPoolUsage {
+	/**The buffer size of each size class*/
+	public final int size_classes[];
+	/**The number of buffers in use by connections, per size class*/
+	public final int in_use[];
+	/**The number of free buffers kept in the pool, per size class*/
+	public final int free[];
+	/**Bytes in buffers used by connections (including buffers too large for the pool)*/
+	public final long bytes_in_use;
+	/**Bytes in free buffers kept in the pool*/
+	public final long bytes_free;
+	
+	BufferPoolUsage(int size_classes[], int in_use[], int free[], long bytes_in_use, long bytes_free) {
+		this.size_classes = size_classes;
+		this.in_use = in_use;
+		this.free = free;
+		this.bytes_in_use = bytes_in_use;
+		this.bytes_free = bytes_free;
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("in use=").append(bytes_in_use).append(" free=").append(bytes_free);
+		for(int i=0; i<size_classes.length; i++) {
+			if(in_use[i]==0 && free[i]==0)
+				continue;
+			sb.append(" ").append(size_classes[i]/1024).append("K:").append(in_use[i]).append("/").append(free[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,208 @@
+package dk.i1.diameter.node;
+import dk.i1.diameter.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request and answer counters and the latency histograms of a command.
+ * The latency is kept for the command and per peer. All updates are
+ * lock-free and do not allocate (once a result-code and a peer have been
+ * seen).
+ */
+class CommandMetrics implements CommandMetricsMXBean {
+	static class ResultCount {
+		final int result_code;
+		final LongAdder count;
+		ResultCount(int result_code) {
+			this.result_code = result_code;
+			this.count = new LongAdder();
+		}
+	}
+	//The application-id and command code of the metrics of "other"
+	//commands. (0xffffffff is the relay application but it has no
+	//command code -1)
+	static final int other_id = -1;
+	//At most this many result-codes are counted apart per direction. The
+	//rest are counted together under other_result_code, so a peer cannot
+	//grow the arrays (and the series of the metrics endpoint) without limit
+	static final int max_result_codes = 32;
+	static final int other_result_code = -1;
+	final int application_id;
+	final int command_code;
+	final LongAdder requests_in;
+	final LongAdder requests_out;
+	//Answers by result-code. There are few result-codes per command, so
+	//they are kept in arrays that are searched, and copied when a
+	//result-code is added
+	private volatile ResultCount answers_in[];
+	private volatile ResultCount answers_out[];
+	//The entries of the other result-codes, once the arrays are full
+	private volatile ResultCount other_in;
+	private volatile ResultCount other_out;
+	final LatencyHistogram latency;
+	final ConcurrentHashMap<String,LatencyHistogram> peer_latency; //by peer host-id
+	
+	CommandMetrics(int application_id, int command_code) {
+		this.application_id = application_id;
+		this.command_code = command_code;
+		requests_in = new LongAdder();
+		requests_out = new LongAdder();
+		answers_in = new ResultCount[0];
+		answers_out = new ResultCount[0];
+		latency = new LatencyHistogram();
+		peer_latency = new ConcurrentHashMap<String,LatencyHistogram>();
+	}
+	
+	//A request to the peer has been answered
+	void recordLatency(String peer, long nanoseconds) {
+		latency.record(nanoseconds);
+		LatencyHistogram h = peer_latency.get(peer);
+		if(h==null) {
+			h = new LatencyHistogram();
+			LatencyHistogram existing = peer_latency.putIfAbsent(peer,h);
+			if(existing!=null)
+				h = existing;
+		}
+		h.record(nanoseconds);
+	}
+	
+	void received(Message msg) {
+		if(msg.hdr.isRequest())
+			requests_in.increment();
+		else
+			find(answers_in,resultCode(msg),true).count.increment();
+	}
+	void sent(Message msg) {
+		if(msg.hdr.isRequest())
+			requests_out.increment();
+		else
+			find(answers_out,resultCode(msg),false).count.increment();
+	}
+	
+	private ResultCount find(ResultCount answers[], int result_code, boolean in) {
+		for(ResultCount rc : answers) {
+			if(rc.result_code==result_code)
+				return rc;
+		}
+		ResultCount other = in ? other_in : other_out;
+		if(other!=null)
+			return other;
+		return add(result_code,in);
+	}
+	private synchronized ResultCount add(int result_code, boolean in) {
+		ResultCount answers[] = in ? answers_in : answers_out;
+		for(ResultCount rc : answers) {
+			if(rc.result_code==result_code)
+				return rc;
+		}
+		if(answers.length>=max_result_codes) {
+			//Full. Use the other entry, which a Result-Code of 0xffffffff
+			//may have created already
+			result_code = other_result_code;
+			for(ResultCount rc : answers) {
+				if(rc.result_code==result_code)
+					return setOther(rc,in);
+			}
+		}
+		ResultCount rc = new ResultCount(result_code);
+		ResultCount bigger[] = java.util.Arrays.copyOf(answers,answers.length+1);
+		bigger[answers.length] = rc;
+		if(in)
+			answers_in = bigger;
+		else
+			answers_out = bigger;
+		if(answers.length>=max_result_codes)
+			return setOther(rc,in);
+		return rc;
+	}
+	private ResultCount setOther(ResultCount rc, boolean in) {
+		if(in)
+			other_in = rc;
+		else
+			other_out = rc;
+		return rc;
+	}
+	
+	//The Result-Code, or the Experimental-Result-Code, or 0
+	static int resultCode(Message msg) {
+		try {
+			AVP avp = msg.find(ProtocolConstants.DI_RESULT_CODE);
+			if(avp!=null)
+				return new AVP_Unsigned32(avp).queryValue();
+			avp = msg.find(ProtocolConstants.DI_EXPERIMENTAL_RESULT);
+			if(avp!=null) {
+				for(AVP a : new AVP_Grouped(avp).queryAVPs()) {
+					if(a.code==ProtocolConstants.DI_EXPERIMENTAL_RESULT_CODE)
+						return new AVP_Unsigned32(a).queryValue();
+				}
+			}
+		} catch(InvalidAVPLengthException ex) {
+		}
+		return 0;
+	}
+	
+	boolean isOther() {
+		return application_id==other_id && command_code==other_id;
+	}
+	//The application-id and command code as labels (MXBean names, metrics endpoint)
+	String applicationLabel() {
+		return isOther() ? "other" : Long.toString(application_id&0xffffffffL);
+	}
+	String commandLabel() {
+		return isOther() ? "other" : Integer.toString(command_code);
+	}
+	
+	ResultCount[] answersIn() {
+		return answers_in;
+	}
+	ResultCount[] answersOut() {
+		return answers_out;
+	}
+	
+	private static Map<Integer,Long> snapshot(ResultCount answers[]) {
+		Map<Integer,Long> m = new TreeMap<Integer,Long>();
+		for(ResultCount rc : answers)
+			m.put(rc.result_code,rc.count.sum());
+		return m;
+	}
+	
+	public int getApplicationId() {
+		return application_id;
+	}
+	public int getCommandCode() {
+		return command_code;
+	}
+	public long getRequestsIn() {
+		return requests_in.sum();
+	}
+	public long getRequestsOut() {
+		return requests_out.sum();
+	}
+	public Map<Integer,Long> getAnswersIn() {
+		return snapshot(answers_in);
+	}
+	public Map<Integer,Long> getAnswersOut() {
+		return snapshot(answers_out);
+	}
+	public long getLatencyCount() {
+		return latency.count();
+	}
+	public long getLatencyMean() {
+		long n = latency.count();
+		return n!=0 ? latency.sum()/n : 0;
+	}
+	public long getLatencyMedian() {
+		return latency.quantile(0.5,1);
+	}
+	public long getLatency99thPercentile() {
+		return latency.quantile(0.99,1);
+	}
+	public long getLatency999thPercentile() {
+		return latency.quantile(0.999,1);
+	}
+	public long getLatencyMax() {
+		return latency.max();
+	}
+}
@@ -0,0 +1,53 @@
+package dk.i1.diameter.node;
+import java.util.Map;
+
+/**
+ * Metrics of a command of an application.
+ * Requests and answers are counted in both directions, the answers by
+ * result-code (Result-Code, or the Experimental-Result-Code if there is
+ * no Result-Code; 0 if there is neither). The latency is from a request
+ * is sent by the {@link NodeManager} until the answer arrives.
+ * If JMX is enabled (see {@link NodeSettings#setUseJMX}) the metrics of
+ * each command seen are registered as an MXBean named
+ * <tt>dk.i1.diameter:type=Command,node=</tt><em>our host-id</em><tt>,application=</tt><em>application-id</em><tt>,command=</tt><em>command-code</em>
+ * while the node is running.
+ * Metrics are kept for the first 64 commands seen. The rest share the
+ * metrics of "other" commands, which have application-id and command
+ * code -1 (and "other" in the MXBean name).
+ * @see Node#commandMetrics
+ * @since 0.9.7
+ */
+public interface CommandMetricsMXBean {
+	/**Returns the application-id*/
+	int getApplicationId();
+	/**Returns the command code*/
+	int getCommandCode();
+	/**Returns the number of requests received*/
+	long getRequestsIn();
+	/**Returns the number of requests sent*/
+	long getRequestsOut();
+	/**
+	 * Returns the number of answers received, by result-code.
+	 * At most 32 result-codes are counted apart. The rest are counted
+	 * under result-code -1.
+	 */
+	Map<Integer,Long> getAnswersIn();
+	/**
+	 * Returns the number of answers sent, by result-code.
+	 * At most 32 result-codes are counted apart. The rest are counted
+	 * under result-code -1.
+	 */
+	Map<Integer,Long> getAnswersOut();
+	/**Returns the number of answers whose latency has been measured*/
+	long getLatencyCount();
+	/**Returns the average latency in microseconds*/
+	long getLatencyMean();
+	/**Returns the median latency in microseconds (within 3%), or -1 if nothing has been measured*/
+	long getLatencyMedian();
+	/**Returns the 99th percentile of the latency in microseconds (within 3%), or -1 if nothing has been measured*/
+	long getLatency99thPercentile();
+	/**Returns the 99.9th percentile of the latency in microseconds (within 3%), or -1 if nothing has been measured*/
+	long getLatency999thPercentile();
+	/**Returns the highest latency in microseconds*/
+	long getLatencyMax();
+}
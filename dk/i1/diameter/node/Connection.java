@@ -9,6 +9,13 @@ abstract class Connection {
 	public ConnectionTimers timers;
 	public ConnectionKey key;
 	private int hop_by_hop_identifier_seq;
+	AdmissionControl inbound_admission;  //null if no limits
+	AdmissionControl outbound_admission; //null if no limits
+	long output_bytes;       //queued output. Protected by the node lock
+	boolean output_writable; //below the high watermark. Protected by the node lock
+	PeerHealth health;       //set when the connection is ready
+	final ConnectionMetrics metrics;
+	long input_time;         //when the input being processed was read (System.nanoTime()). Only set while dispatch events are recorded
 	
 	public enum State {
 		connecting,
@@ -24,9 +31,13 @@ abstract class Connection {
 	public Connection(NodeImplementation node_impl, long watchdog_interval, long idle_timeout) {
 		this.node_impl = node_impl;
 		timers = new ConnectionTimers(watchdog_interval,idle_timeout);
+		metrics = new ConnectionMetrics(this);
 		key = new ConnectionKey();
 		hop_by_hop_identifier_seq = new java.util.Random().nextInt();
 		state = State.connected_in;
+		output_writable = true;
+		inbound_admission = AdmissionControl.create(node_impl.settings.inboundRateLimit(),node_impl.settings.inboundApplicationRateLimits());
+		outbound_admission = AdmissionControl.create(node_impl.settings.outboundRateLimit(),node_impl.settings.outboundApplicationRateLimits());
 	}
 	
 	public synchronized int nextHopByHopIdentifier() {
@@ -35,7 +46,12 @@ abstract class Connection {
 	
 	abstract InetAddress toInetAddress(); //todo: eliminate
 	
-	abstract void sendMessage(byte[] raw);
+	abstract void sendMessage(byte[] raw, OutputLane lane);
+	
+	//Queue wait statistics, if the connection queues output in lanes
+	OutputLaneStatistics outputLaneStatistics() {
+		return null;
+	}
 	
 	abstract Object getRelevantNodeAuthInfo();
 	
@@ -1,27 +1,69 @@
 package dk.i1.diameter.node;
 import java.nio.ByteBuffer;
-//import java.nio.channels.SocketChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
 
 /**
- *
+ * Input buffers of a stream connection.
+ * Data is read from the network into the net buffer and processed into the
+ * app buffer, where the messages are decoded from. Output is queued in an
+ * {@link OutputQueue} and written through {@link #outputChannel}. Without
+ * TLS the net and app buffers are the same and output is written directly.
  */
 abstract class ConnectionBuffers {
-	abstract ByteBuffer netOutBuffer();
 	abstract ByteBuffer netInBuffer();
 	abstract ByteBuffer appInBuffer();
-	abstract ByteBuffer appOutBuffer();
-	abstract void processNetInBuffer();
-	abstract void processAppOutBuffer();
+	abstract void processNetInBuffer() throws java.io.IOException;
 	
-	abstract void makeSpaceInNetInBuffer();
-	abstract void makeSpaceInAppOutBuffer(int how_much);
+	/**
+	 * Returns true if the peer has closed its side of the session above the
+	 * transport (eg. TLS close_notify).
+	 */
+	boolean inputClosed() {
+		return false;
+	}
 	
-	void consumeNetOutBuffer(int bytes) {
-		consume(netOutBuffer(),bytes);
+	/**
+	 * Returns true if there is protocol data (eg. TLS handshake records) to write.
+	 */
+	boolean hasNetOutput() {
+		return false;
+	}
+	/**
+	 * Returns false if queued output has to wait (eg. for a TLS handshake).
+	 */
+	boolean canWriteAppOutput() {
+		return true;
+	}
+	/**
+	 * Write pending protocol data.
+	 * @return True if everything was written
+	 */
+	boolean flushNetOutput(SocketChannel channel) throws java.io.IOException {
+		return true;
+	}
+	/**
+	 * Returns the channel that queued output is written to.
+	 */
+	GatheringByteChannel outputChannel(SocketChannel channel) {
+		return channel;
 	}
+	/**
+	 * Called before the channel is closed gracefully.
+	 */
+	void close(SocketChannel channel) {
+	}
+	
+	abstract void makeSpaceInNetInBuffer();
+	
 	void consumeAppInBuffer(int bytes) {
 		consume(appInBuffer(),bytes);
 	}
+	/**
+	 * Give up the buffers. Called when the connection has been closed.
+	 */
+	void release() {
+	}
 	
 	
 	static ByteBuffer makeSpaceInBuffer(ByteBuffer bb, int how_much) {
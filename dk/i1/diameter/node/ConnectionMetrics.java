@@ -0,0 +1,55 @@
+package dk.i1.diameter.node;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Message counters of a connection.
+ * The counters are updated without locking. The output queue is read with
+ * the node lock held.
+ */
+class ConnectionMetrics implements ConnectionMetricsMXBean {
+	private final Connection conn;
+	final LongAdder messages_in;
+	final LongAdder bytes_in;
+	final LongAdder messages_out;
+	final LongAdder bytes_out;
+	final LongAdder decode_errors;
+	final LongAdder outstanding_requests; //maintained by the NodeManager
+	boolean registered; //as an MXBean. Protected by the node lock
+	
+	ConnectionMetrics(Connection conn) {
+		this.conn = conn;
+		messages_in = new LongAdder();
+		bytes_in = new LongAdder();
+		messages_out = new LongAdder();
+		bytes_out = new LongAdder();
+		decode_errors = new LongAdder();
+		outstanding_requests = new LongAdder();
+	}
+	
+	public String getPeer() {
+		return conn.host_id;
+	}
+	public long getMessagesIn() {
+		return messages_in.sum();
+	}
+	public long getBytesIn() {
+		return bytes_in.sum();
+	}
+	public long getMessagesOut() {
+		return messages_out.sum();
+	}
+	public long getBytesOut() {
+		return bytes_out.sum();
+	}
+	public long getDecodeErrors() {
+		return decode_errors.sum();
+	}
+	public long getOutputQueueBytes() {
+		synchronized(conn.node_impl.getLockObject()) {
+			return conn.output_bytes;
+		}
+	}
+	public long getOutstandingRequests() {
+		return outstanding_requests.sum();
+	}
+}
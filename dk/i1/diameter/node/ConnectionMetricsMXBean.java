@@ -0,0 +1,29 @@
+package dk.i1.diameter.node;
+
+/**
+ * Message and queue metrics of a connection.
+ * If JMX is enabled (see {@link NodeSettings#setUseJMX}) the metrics of
+ * each ready connection are registered as an MXBean named
+ * <tt>dk.i1.diameter:type=Connection,node=</tt><em>our host-id</em><tt>,peer=</tt><em>peer host-id</em><tt>,connection=</tt><em>number</em>
+ * until the connection is closed.
+ * @see Node#connectionMetrics
+ * @since 0.9.7
+ */
+public interface ConnectionMetricsMXBean {
+	/**Returns the host-id of the peer*/
+	String getPeer();
+	/**Returns the number of messages received*/
+	long getMessagesIn();
+	/**Returns the number of bytes received in messages*/
+	long getBytesIn();
+	/**Returns the number of messages sent*/
+	long getMessagesOut();
+	/**Returns the number of bytes sent in messages*/
+	long getBytesOut();
+	/**Returns the number of messages that could not be decoded*/
+	long getDecodeErrors();
+	/**Returns the number of bytes queued for output*/
+	long getOutputQueueBytes();
+	/**Returns the number of requests sent by the {@link NodeManager} that have not been answered yet*/
+	long getOutstandingRequests();
+}
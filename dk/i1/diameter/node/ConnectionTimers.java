@@ -6,9 +6,13 @@ class ConnectionTimers {
 	long last_real_activity;
 	long last_in_dw;
 	boolean dw_outstanding;
+	long dwr_out_time; //System.nanoTime() when the outstanding DWR was sent
 	long cfg_watchdog_timer;
 	long watchdog_timer_with_jitter;
 	long cfg_idle_close_timeout;
+	volatile WatchdogState watchdog_state; //rfc3539 section 3.4
+	int num_dwa; //answered DWRs in the reopen state
+	int reopen_dwa_count;
 	
 	//Return -2000..+2000 as per rfc3539 section 3.4.1 item 1:
 	//
@@ -57,17 +61,49 @@ class ConnectionTimers {
 		cfg_watchdog_timer = watchdog_timer;
 		watchdog_timer_with_jitter = cfg_watchdog_timer+generateJitter();
 		cfg_idle_close_timeout = idle_close_timeout;
+		watchdog_state = WatchdogState.initial;
+	}
+	
+	//The capabilities exchange has finished
+	public void markReady() {
+		watchdog_state = WatchdogState.okay;
+	}
+	//The capabilities exchange has finished, and the peer's previous
+	//connection went down. 'count' DWAs are needed to get to okay
+	public void markReopen(int count) {
+		watchdog_state = WatchdogState.reopen;
+		num_dwa = 0;
+		reopen_dwa_count = count;
 	}
 	
 	public void markDWR() { //got a DWR
 		last_in_dw = System.currentTimeMillis();
 	}
-	public void markDWA() { //got a DWA	
+	//got a DWA. Returns true if that took the connection from reopen to okay
+	public boolean markDWA() {
 		last_in_dw = System.currentTimeMillis();
+		if(watchdog_state==WatchdogState.reopen)
+			last_activity = last_in_dw; //the next DWR is due Tw after this DWA
 		dw_outstanding = false;
+		if(watchdog_state==WatchdogState.reopen && ++num_dwa>=reopen_dwa_count) {
+			watchdog_state = WatchdogState.okay;
+			return true;
+		}
+		return false;
 	}
-	public void markActivity() { //got something
+	//got something. Returns true if that took the connection from suspect to okay
+	//In the reopen state only DWAs count (rfc3539 section 3.4.1), so a
+	//peer that keeps sending traffic still gets the DWRs it must answer
+	public boolean markActivity() {
+		if(watchdog_state==WatchdogState.reopen)
+			return false;
 		last_activity = System.currentTimeMillis();
+		if(watchdog_state==WatchdogState.suspect) {
+			//failback
+			watchdog_state = WatchdogState.okay;
+			return true;
+		}
+		return false;
 	}
 	public void markCER() { //got a CER
 		last_activity = System.currentTimeMillis();
@@ -77,6 +113,7 @@ class ConnectionTimers {
 	}
 	public void markDWR_out() { //sent a DWR
 		dw_outstanding = true;
+		dwr_out_time = System.nanoTime();
 		last_activity = System.currentTimeMillis();
 		watchdog_timer_with_jitter = cfg_watchdog_timer + generateJitter();
 	}
@@ -86,7 +123,8 @@ class ConnectionTimers {
 		disconnect_no_cer,
 		disconnect_idle,
 		disconnect_no_dw,
-		dwr
+		dwr,
+		suspect
 	}
 
 	public long calcNextTimeout(boolean ready) {
@@ -95,12 +133,8 @@ class ConnectionTimers {
 			return last_activity + watchdog_timer_with_jitter;
 		}
 		
-		long next_watchdog_timeout;
-
-		if(!dw_outstanding)
-			next_watchdog_timeout = last_activity + watchdog_timer_with_jitter; //when to send a DWR
-		else
-			next_watchdog_timeout = last_activity + watchdog_timer_with_jitter + cfg_watchdog_timer; //when to kill the connection due to no response
+		//when to send a DWR, or change state due to no response
+		long next_watchdog_timeout = last_activity + watchdog_timer_with_jitter;
 
 		if(cfg_idle_close_timeout!=0) {
 			long idle_timeout;
@@ -130,16 +164,28 @@ class ConnectionTimers {
 		}
 		
 		//section 3.4.1 item 1
-		if(now >= last_activity + watchdog_timer_with_jitter) {
-			if(!dw_outstanding) {
-				return timer_action.dwr;
-			} else {
-				if(now >= last_activity + cfg_watchdog_timer + cfg_watchdog_timer) {
-					//section 3.4.1 item 3+4
-					return timer_action.disconnect_no_dw;
+		if(now < last_activity + watchdog_timer_with_jitter)
+			return timer_action.none;
+		if(!dw_outstanding)
+			return timer_action.dwr;
+		switch(watchdog_state) {
+			case okay:
+				//failover: stop routing to the connection
+				watchdog_state = WatchdogState.suspect;
+				last_activity = now;
+				return timer_action.suspect;
+			case reopen:
+				//one unanswered DWR is tolerated
+				if(num_dwa>=0) {
+					num_dwa = -1;
+					last_activity = now;
+					return timer_action.none;
 				}
-			}
+				watchdog_state = WatchdogState.down;
+				return timer_action.disconnect_no_dw;
+			default: //suspect
+				watchdog_state = WatchdogState.down;
+				return timer_action.disconnect_no_dw;
 		}
-		return timer_action.none;
 	}
 }
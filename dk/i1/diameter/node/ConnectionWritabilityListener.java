@@ -0,0 +1,30 @@
+package dk.i1.diameter.node;
+
+/**
+ * A connection observer that also wants to know about output backpressure.
+ * If the {@link ConnectionListener} given to the {@link Node} also
+ * implements this interface it is told when a connection stops and starts
+ * accepting output again.
+ * <p>
+ * A connection becomes unwritable when the output queued for it exceeds
+ * the high watermark of the connection, or when the output queued for all
+ * connections together exceeds the high watermark of the node. It becomes
+ * writable again when the queued output has dropped to the low watermark.
+ * While a connection is unwritable {@link Node#trySendMessage} refuses to
+ * queue more messages for it.
+ * @see NodeSettings#setConnectionOutputWatermarks
+ * @see NodeSettings#setNodeOutputWatermarks
+ * @since 0.9.7
+ */
+public interface ConnectionWritabilityListener extends ConnectionListener {
+	/**
+	 * A connection has changed writability.
+	 * This method is called with internal locks held, and possibly by the
+	 * networking thread, so it must not block. Sending messages from it is
+	 * allowed.
+	 * @param connkey The connection key.
+	 * @param peer The peer the connection is to.
+	 * @param writable True if the connection accepts output again. False if the caller should stop sending.
+	 */
+	public void handleWritability(ConnectionKey connkey, Peer peer, boolean writable);
+}
@@ -0,0 +1,222 @@
+package dk.i1.diameter.node;
+import dk.i1.diameter.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Duplicate request detection.
+ * Requests are remembered by (Origin-Host, End-to-End-Identifier) as
+ * described in RFC3588 section 3. When a retransmitted request (T-bit set)
+ * matches a remembered request the cached answer is sent again instead of
+ * processing the request once more. If the original request has not been
+ * answered yet then the duplicate gets a copy of the answer when it is sent.
+ * <p>
+ * The cache is split into lock-protected segments. Entries expire after the
+ * configured lifetime, and the oldest entries are evicted when a segment
+ * exceeds its share of the memory limit.
+ */
+class DuplicateDetector {
+	private static final int segment_count = 16; //must be a power of 2
+	private static final int entry_overhead = 128; //rough bookkeeping cost of an entry, in bytes
+
+	private static class Key {
+		final String origin_host;
+		final int end_to_end_identifier;
+		Key(String origin_host, int end_to_end_identifier) {
+			this.origin_host = origin_host;
+			this.end_to_end_identifier = end_to_end_identifier;
+		}
+		public int hashCode() {
+			return origin_host.hashCode()*31 + end_to_end_identifier;
+		}
+		public boolean equals(Object o) {
+			if(this==o)
+				return true;
+			if(o==null || o.getClass()!=this.getClass())
+				return false;
+			Key k = (Key)o;
+			return end_to_end_identifier==k.end_to_end_identifier &&
+			       origin_host.equals(k.origin_host);
+		}
+	}
+	//Where a request came from, ie. where the answer must go
+	private static class Origin {
+		final ConnectionKey connkey;
+		final int hop_by_hop_identifier;
+		Origin(ConnectionKey connkey, int hop_by_hop_identifier) {
+			this.connkey = connkey;
+			this.hop_by_hop_identifier = hop_by_hop_identifier;
+		}
+		public int hashCode() {
+			return connkey.hashCode()*31 + hop_by_hop_identifier;
+		}
+		public boolean equals(Object o) {
+			if(this==o)
+				return true;
+			if(o==null || o.getClass()!=this.getClass())
+				return false;
+			Origin r = (Origin)o;
+			return hop_by_hop_identifier==r.hop_by_hop_identifier &&
+			       connkey.equals(r.connkey);
+		}
+	}
+	private static class Entry {
+		final Key key;
+		final Origin origin;
+		final long expire_time;
+		int size;
+		Message answer;          //null until the original request has been answered
+		List<Origin> waiting;    //duplicates that arrived before the answer
+		Entry(Key key, Origin origin, long expire_time) {
+			this.key = key;
+			this.origin = origin;
+			this.expire_time = expire_time;
+			this.size = entry_overhead + key.origin_host.length()*2;
+		}
+	}
+	private class Segment {
+		//insertion-ordered, so the oldest entry is always first
+		private LinkedHashMap<Key,Entry> map = new LinkedHashMap<Key,Entry>();
+		private long bytes;
+
+		void add(Entry e) {
+			map.put(e.key,e);
+			bytes += e.size;
+			in_progress.put(e.origin,e);
+		}
+		void remove(Entry e) {
+			map.remove(e.key);
+			bytes -= e.size;
+			in_progress.remove(e.origin,e);
+		}
+		//Evict expired entries and the oldest entries if we use too much memory
+		void trim(long now) {
+			for(Iterator<Entry> it = map.values().iterator(); it.hasNext(); ) {
+				Entry e = it.next();
+				if(e.expire_time>now && bytes<=segment_memory_limit)
+					break;
+				it.remove();
+				bytes -= e.size;
+				in_progress.remove(e.origin,e);
+			}
+		}
+	}
+
+	private final Node node;
+	private final long lifetime;
+	private final long segment_memory_limit;
+	private final Segment segments[];
+	private final ConcurrentHashMap<Origin,Entry> in_progress;
+	private final Logger logger;
+
+	DuplicateDetector(Node node, long lifetime, long memory_limit, Logger logger) {
+		this.node = node;
+		this.lifetime = lifetime;
+		this.segment_memory_limit = memory_limit/segment_count;
+		this.segments = new Segment[segment_count];
+		for(int i=0; i<segment_count; i++)
+			segments[i] = new Segment();
+		this.in_progress = new ConcurrentHashMap<Origin,Entry>();
+		this.logger = logger;
+	}
+
+	private Segment segmentFor(Key key) {
+		int h = key.hashCode();
+		h ^= (h>>>16);
+		return segments[h&(segment_count-1)];
+	}
+
+	/**
+	 * Examine an incoming request.
+	 * @return True if the request is a duplicate and has been taken care of. False if it must be processed.
+	 */
+	boolean handleRequest(Message request, ConnectionKey connkey) {
+		AVP avp = request.find(ProtocolConstants.DI_ORIGIN_HOST);
+		if(avp==null)
+			return false;
+		Key key = new Key(new AVP_UTF8String(avp).queryValue(),request.hdr.end_to_end_identifier);
+		Origin origin = new Origin(connkey,request.hdr.hop_by_hop_identifier);
+		Segment segment = segmentFor(key);
+		long now = System.currentTimeMillis();
+		Message replay;
+		synchronized(segment) {
+			segment.trim(now);
+			Entry e = segment.map.get(key);
+			if(e==null || !request.hdr.isRetransmit()) {
+				//A new request. (Without the T-bit a reused end-to-end
+				//identifier means that the peer has restarted.)
+				if(e!=null)
+					segment.remove(e);
+				segment.add(new Entry(key,origin,now+lifetime));
+				return false;
+			}
+			if(e.answer==null) {
+				logger.log(Level.FINE,"Duplicate request (end2end="+key.end_to_end_identifier+") from "+key.origin_host+" while the original is still being processed");
+				if(e.waiting==null)
+					e.waiting = new ArrayList<Origin>(1);
+				e.waiting.add(origin);
+				return true;
+			}
+			replay = new Message(e.answer);
+		}
+		logger.log(Level.FINE,"Duplicate request (end2end="+key.end_to_end_identifier+") from "+key.origin_host+". Sending cached answer");
+		replay.hdr.hop_by_hop_identifier = origin.hop_by_hop_identifier;
+		send(replay,origin);
+		return true;
+	}
+
+	/**
+	 * Remember an outgoing answer.
+	 * The answer is cached if it belongs to a remembered request, and
+	 * copies are sent to duplicates of the request that are waiting for it.
+	 */
+	void handleAnswer(Message answer, ConnectionKey connkey) {
+		Entry e = in_progress.remove(new Origin(connkey,answer.hdr.hop_by_hop_identifier));
+		if(e==null)
+			return;
+		Segment segment = segmentFor(e.key);
+		Message cached = new Message(answer);
+		List<Origin> waiting;
+		synchronized(segment) {
+			if(segment.map.get(e.key)!=e)
+				return; //evicted in the meantime
+			e.answer = cached;
+			int answer_size = cached.encodeSize();
+			e.size += answer_size;
+			segment.bytes += answer_size;
+			waiting = e.waiting;
+			e.waiting = null;
+			segment.trim(System.currentTimeMillis());
+		}
+		if(waiting!=null) {
+			for(Origin origin : waiting) {
+				Message replay = new Message(cached);
+				replay.hdr.hop_by_hop_identifier = origin.hop_by_hop_identifier;
+				send(replay,origin);
+			}
+		}
+	}
+
+	private void send(Message answer, Origin origin) {
+		try {
+			node.sendMessage(answer,origin.connkey);
+		} catch(StaleConnectionException ex) {
+			logger.log(Level.FINE,"Could not send cached answer because the connection is gone");
+		}
+	}
+
+	/**
+	 * Returns the number of remembered requests.
+	 */
+	int size() {
+		int n=0;
+		for(Segment segment : segments) {
+			synchronized(segment) {
+				n += segment.map.size();
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,143 @@
+package dk.i1.diameter.node;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the node.
+ * The events are in the "Diameter" category and are named
+ * dk.i1.diameter.<i>Event</i>. Connection and request timeout events are
+ * enabled by default. The per-message events (Decode, Dispatch, Send) and
+ * the session state event (SessionState, see
+ * {@link dk.i1.diameter.session.BaseSession}) are disabled by default. They
+ * are enabled per event in the recording settings, eg. (JDK 17 and later)
+ * <pre>
+ * java -XX:StartFlightRecording:+dk.i1.diameter.Decode#enabled=true,+dk.i1.diameter.Dispatch#enabled=true ...
+ * jcmd &lt;pid&gt; JFR.start +dk.i1.diameter.Send#enabled=true,+dk.i1.diameter.SessionState#enabled=true
+ * </pre>
+ * or by adding them to a copy of a .jfc file with <tt>jfr configure</tt>,
+ * from JMC, or with {@link jdk.jfr.Recording#enable}.
+ * <p>
+ * An event object is created, checked with isEnabled() or shouldCommit(),
+ * and committed at the place the event happens. When no recording has
+ * the event enabled the checks are constant false and the JIT removes the
+ * event object, so the events cost nothing when they are off.
+ */
+class FlightRecorderEvents {
+	@Name("dk.i1.diameter.Connection")
+	@Label("Diameter Connection")
+	@Description("A step in the life of a connection: connect, accept, CER/CEA, ready, DPR, closed or failed")
+	@Category("Diameter")
+	@StackTrace(false)
+	static class ConnectionEvent extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Connection")
+		int connection;
+		@Label("Action")
+		String action;
+	}
+
+	@Name("dk.i1.diameter.Decode")
+	@Label("Diameter Decode")
+	@Description("Decoding of a received message")
+	@Category("Diameter")
+	@StackTrace(false)
+	@Enabled(false)
+	static class DecodeEvent extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Size")
+		@DataAmount
+		int size;
+		@Label("AVPs")
+		int avps;
+		@Label("Command Code")
+		int commandCode;
+		@Label("Request")
+		boolean request;
+		@Label("Decoded")
+		boolean decoded;
+	}
+
+	@Name("dk.i1.diameter.Dispatch")
+	@Label("Diameter Dispatch")
+	@Description("Handling of a received request or answer by the message dispatcher")
+	@Category("Diameter")
+	@StackTrace(false)
+	@Enabled(false)
+	static class DispatchEvent extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Application")
+		int applicationId;
+		@Label("Command Code")
+		int commandCode;
+		@Label("Request")
+		boolean request;
+		@Label("Queue Wait")
+		@Description("Time from the message was read from the connection until it was dispatched")
+		@Timespan(Timespan.NANOSECONDS)
+		long queueWait;
+	}
+
+	@Name("dk.i1.diameter.Send")
+	@Label("Diameter Send")
+	@Description("Encoding of a message and queuing it for output")
+	@Category("Diameter")
+	@StackTrace(false)
+	@Enabled(false)
+	static class SendEvent extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Size")
+		@DataAmount
+		int size;
+		@Label("Application")
+		int applicationId;
+		@Label("Command Code")
+		int commandCode;
+		@Label("Request")
+		boolean request;
+	}
+
+	@Name("dk.i1.diameter.RequestTimeout")
+	@Label("Diameter Request Timeout")
+	@Description("A request that was not answered in time")
+	@Category("Diameter")
+	@StackTrace(false)
+	static class RequestTimeoutEvent extends Event {
+		@Label("Peer")
+		String peer;
+		@Label("Application")
+		int applicationId;
+		@Label("Command Code")
+		int commandCode;
+		@Label("Hop-by-Hop Identifier")
+		int hopByHopIdentifier;
+		@Label("Waited")
+		@Timespan(Timespan.NANOSECONDS)
+		long waited;
+	}
+
+	static void connection(Connection conn, String action) {
+		ConnectionEvent event = new ConnectionEvent();
+		if(!event.isEnabled())
+			return;
+		event.peer = conn.host_id;
+		event.connection = conn.key.hashCode();
+		event.action = action;
+		event.commit();
+	}
+
+	//Returns true if dispatch events are recorded, so the read time of input should be noted
+	static boolean dispatchEnabled() {
+		return new DispatchEvent().isEnabled();
+	}
+}
@@ -0,0 +1,173 @@
+package dk.i1.diameter.node;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Resolves host names on a small pool of threads, so the node threads and
+ * callers holding the node lock do not wait for DNS.
+ * Results are cached, failures too (for a shorter time, see
+ * {@link NodeSettings#setResolverCacheTTL}), and concurrent requests for
+ * the same host name share one lookup. Literal IP addresses and cached
+ * results are returned right away.
+ * The threads are daemon threads and exit when they have been idle for a
+ * while, so the resolver needs no shutdown.
+ */
+class HostResolver {
+	interface Callback {
+		/**
+		 * Called when the resolution is done. This is done by a resolver
+		 * thread, or by the calling thread if the result was known.
+		 * @param host The host name
+		 * @param address The address, or null if the host could not be resolved.
+		 */
+		void resolved(String host, InetAddress address);
+	}
+	
+	private static final int max_threads = 4;
+	private static final int prune_size = 4096;
+	private static class CacheEntry {
+		final InetAddress address; //null if the lookup failed
+		final long expires;
+		CacheEntry(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+	private final ThreadPoolExecutor executor;
+	private final NodeSettings settings;
+	private final Logger logger;
+	private final ConcurrentHashMap<String,CacheEntry> cache;
+	private final HashMap<String,ArrayList<Callback>> in_flight; //lookups in progress, and who waits for them. Protected by itself
+	
+	HostResolver(NodeSettings settings, Logger logger) {
+		this.settings = settings;
+		this.logger = logger;
+		cache = new ConcurrentHashMap<String,CacheEntry>();
+		in_flight = new HashMap<String,ArrayList<Callback>>();
+		executor = new ThreadPoolExecutor(max_threads, max_threads,
+		                                  30, TimeUnit.SECONDS,
+		                                  new LinkedBlockingQueue<Runnable>(),
+		                                  new ThreadFactory() {
+		                                  	public Thread newThread(Runnable r) {
+		                                  		Thread t = new Thread(r,"DiameterNode resolver thread");
+		                                  		t.setDaemon(true);
+		                                  		return t;
+		                                  	}
+		                                  });
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	//True if the host is an IPv4 or IPv6 address literal, which needs no
+	//lookup. IPv4 literals must be four decimal octets (0-255); anything
+	//else goes through the resolver threads so InetAddress.getByName()
+	//never does a DNS lookup on the caller's thread.
+	static boolean isLiteral(String host) {
+		if(host.indexOf(':')!=-1)
+			return true;
+		int octets=0;
+		int digits=0;
+		int value=0;
+		for(int i=0; i<host.length(); i++) {
+			char c = host.charAt(i);
+			if(c=='.') {
+				if(digits==0)
+					return false;
+				octets++;
+				digits = 0;
+				value = 0;
+			} else if(c>='0' && c<='9') {
+				value = value*10 + (c-'0');
+				if(++digits>3 || value>255)
+					return false;
+			} else
+				return false;
+		}
+		return octets==3 && digits!=0;
+	}
+	
+	/**
+	 * Resolve a host name.
+	 */
+	void resolve(String host, Callback callback) {
+		if(isLiteral(host)) {
+			InetAddress address;
+			try {
+				address = InetAddress.getByName(host);
+			} catch(UnknownHostException ex) {
+				logger.log(Level.WARNING,"Invalid address '"+host+"'",ex);
+				address = null;
+			}
+			callback.resolved(host,address);
+			return;
+		}
+		final String key = host.toLowerCase();
+		CacheEntry entry = cache.get(key);
+		if(entry!=null && entry.expires>System.currentTimeMillis()) {
+			callback.resolved(host,entry.address);
+			return;
+		}
+		synchronized(in_flight) {
+			ArrayList<Callback> waiting = in_flight.get(key);
+			if(waiting!=null) {
+				waiting.add(callback);
+				return;
+			}
+			waiting = new ArrayList<Callback>();
+			waiting.add(callback);
+			in_flight.put(key,waiting);
+		}
+		final String host_ = host;
+		executor.execute(new Runnable() {
+			public void run() {
+				lookup(host_,key);
+			}
+		});
+	}
+	
+	private void lookup(String host, String key) {
+		InetAddress address = null;
+		NameResolver resolver = settings.nameResolver();
+		try {
+			InetAddress addresses[] = resolver!=null ? resolver.resolve(host) : InetAddress.getAllByName(host);
+			if(addresses!=null && addresses.length>0)
+				address = addresses[0];
+			else
+				logger.log(Level.WARNING,"No addresses found for '"+host+"'");
+		} catch(UnknownHostException ex) {
+			logger.log(Level.WARNING,"Could not resolve '"+host+"'",ex);
+		} catch(RuntimeException ex) {
+			logger.log(Level.WARNING,"Name resolver failed on '"+host+"'",ex);
+		}
+		long ttl = address!=null ? settings.resolverCacheTTL() : settings.resolverNegativeCacheTTL();
+		long now = System.currentTimeMillis();
+		if(ttl>0) {
+			if(cache.size()>=prune_size)
+				prune(now);
+			cache.put(key,new CacheEntry(address,now+ttl));
+		}
+		ArrayList<Callback> waiting;
+		synchronized(in_flight) {
+			waiting = in_flight.remove(key);
+		}
+		for(Callback callback : waiting)
+			callback.resolved(host,address);
+	}
+	
+	private void prune(long now) {
+		for(Iterator<Map.Entry<String,CacheEntry>> it=cache.entrySet().iterator(); it.hasNext(); ) {
+			if(it.next().getValue().expires<=now)
+				it.remove();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package dk.i1.diameter.node;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency quantile estimator.
+ * Latencies are counted in a {@link LatencyHistogram}. Once enough samples
+ * have been recorded all buckets are halved so the estimate follows
+ * changes in the latency of the peer.
+ * Recording and querying are lock-free.
+ */
+class LatencyEstimator {
+	private static final long decay_interval = 1024;
+	private static final long min_samples = 20;
+
+	private final LatencyHistogram histogram;
+	private final AtomicLong samples_since_decay;
+
+	LatencyEstimator() {
+		histogram = new LatencyHistogram();
+		samples_since_decay = new AtomicLong();
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanoseconds The latency in nanoseconds.
+	 */
+	void record(long nanoseconds) {
+		histogram.record(nanoseconds);
+		long n = samples_since_decay.incrementAndGet();
+		if(n>=decay_interval && samples_since_decay.compareAndSet(n,0))
+			histogram.halve();
+	}
+
+	/**
+	 * Estimate a latency quantile.
+	 * @param q The quantile, eg. 0.95
+	 * @return The estimated latency in microseconds, or -1 if not enough samples have been recorded.
+	 */
+	long quantile(double q) {
+		return histogram.quantile(q,min_samples);
+	}
+}
@@ -0,0 +1,149 @@
+package dk.i1.diameter.node;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram.
+ * Latencies are counted in log-linear buckets, as in HdrHistogram: each
+ * power of 2 is split into 32 buckets of equal width, so latencies below
+ * 32 microseconds are counted exactly and a quantile is otherwise within
+ * about 3% of the true value. The sum and maximum are kept as well.
+ * Recording and querying are lock-free and do not allocate, so any number
+ * of threads can record into the same histogram. Snapshots copy the
+ * buckets and can be merged, eg. the snapshots of all peers of a command.
+ */
+class LatencyHistogram {
+	static final int sub_bucket_bits = 5;
+	static final int sub_buckets = 1<<sub_bucket_bits;
+	static final int max_exponent = 40; //up to 2^41 microseconds
+	static final int bucket_count = (max_exponent-sub_bucket_bits+2)*sub_buckets;
+
+	private final AtomicLongArray buckets;
+	private final LongAdder sum; //microseconds
+	private final AtomicLong max; //microseconds
+	//The buckets at the previous interval snapshot. Protected by this
+	private long interval_base[];
+	private long interval_base_sum;
+
+	LatencyHistogram() {
+		buckets = new AtomicLongArray(bucket_count);
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	static int bucketIndex(long microseconds) {
+		if(microseconds<sub_buckets)
+			return (int)Math.max(microseconds,0);
+		int exponent = 63-Long.numberOfLeadingZeros(microseconds); //>=sub_bucket_bits
+		int mantissa = (int)(microseconds>>>(exponent-sub_bucket_bits)) & (sub_buckets-1);
+		int i = (exponent-sub_bucket_bits+1)*sub_buckets + mantissa;
+		return Math.min(i,bucket_count-1);
+	}
+	//The highest value (in microseconds) that falls into a bucket
+	static long bucketUpperBound(int i) {
+		if(i<sub_buckets)
+			return i;
+		int shift = i/sub_buckets - 1;
+		int mantissa = i%sub_buckets;
+		return ((long)(sub_buckets+mantissa+1)<<shift) - 1;
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanoseconds The latency in nanoseconds.
+	 */
+	void record(long nanoseconds) {
+		long microseconds = nanoseconds/1000;
+		buckets.incrementAndGet(bucketIndex(microseconds));
+		sum.add(microseconds);
+		long m;
+		while(microseconds>(m=max.get()) && !max.compareAndSet(m,microseconds))
+			;
+	}
+
+	/**
+	 * Halve all buckets, so older latencies count less.
+	 * Concurrent recordings may be halved too. That is harmless.
+	 * The sum and maximum are not changed. Histograms that are halved
+	 * should not be used for interval snapshots.
+	 */
+	void halve() {
+		for(int i=0; i<bucket_count; i++) {
+			long v;
+			do {
+				v = buckets.get(i);
+			} while(v!=0 && !buckets.compareAndSet(i,v,v/2));
+		}
+	}
+
+	/**Returns the number of latencies in the buckets*/
+	long count() {
+		long total=0;
+		for(int i=0; i<bucket_count; i++)
+			total += buckets.get(i);
+		return total;
+	}
+	/**Returns the sum of the recorded latencies in microseconds*/
+	long sum() {
+		return sum.sum();
+	}
+	/**Returns the highest recorded latency in microseconds*/
+	long max() {
+		return max.get();
+	}
+
+	/**
+	 * Estimate a latency quantile.
+	 * The buckets are read twice (for the total and the quantile) instead
+	 * of being copied, so latencies recorded in between can make the
+	 * estimate a bucket too high. That is harmless.
+	 * @param q The quantile, eg. 0.95
+	 * @param min_samples The number of latencies needed for an estimate
+	 * @return The estimated latency in microseconds, or -1 if there are fewer than min_samples latencies.
+	 */
+	long quantile(double q, long min_samples) {
+		long total = count();
+		if(total<min_samples || total==0)
+			return -1;
+		long target = Math.max((long)Math.ceil(total*q),1);
+		long seen=0;
+		for(int i=0; i<bucket_count; i++) {
+			seen += buckets.get(i);
+			if(seen>=target)
+				return bucketUpperBound(i);
+		}
+		return bucketUpperBound(bucket_count-1);
+	}
+
+	/**Returns a snapshot of all latencies recorded*/
+	LatencySnapshot snapshot() {
+		long counts[] = new long[bucket_count];
+		for(int i=0; i<bucket_count; i++)
+			counts[i] = buckets.get(i);
+		return new LatencySnapshot(counts,sum.sum(),max.get());
+	}
+	/**
+	 * Returns a snapshot of the latencies recorded since the previous
+	 * interval snapshot (or since the histogram was created).
+	 */
+	synchronized LatencySnapshot intervalSnapshot() {
+		long counts[] = new long[bucket_count];
+		long interval_sum = sum.sum();
+		for(int i=0; i<bucket_count; i++)
+			counts[i] = buckets.get(i);
+		long current[] = counts.clone();
+		long highest=0;
+		for(int i=0; i<bucket_count; i++) {
+			if(interval_base!=null)
+				counts[i] -= interval_base[i];
+			if(counts[i]!=0)
+				highest = bucketUpperBound(i);
+		}
+		long s = interval_sum - interval_base_sum;
+		interval_base = current;
+		interval_base_sum = interval_sum;
+		//The exact maximum is only known for all latencies
+		return new LatencySnapshot(counts,s,Math.min(highest,max.get()));
+	}
+}
@@ -0,0 +1,97 @@
+package dk.i1.diameter.node;
+
+/**
+ * A snapshot of a latency histogram.
+ * The {@link NodeManager} records the time from sending a request until
+ * its answer arrives in log-linear histograms (as in HdrHistogram) per
+ * command and per peer and command. A snapshot holds the counts of the
+ * histogram buckets at one point in time, or for an interval. Quantiles are
+ * within about 3% of the true latency. Snapshots can be merged, eg. to get
+ * the latency of a set of peers.
+ * <p>
+ * All values are in microseconds.
+ * @see NodeManager#requestLatency
+ * @since 0.9.7
+ */
+public class LatencySnapshot {
+	private final long counts[];
+	private long count;
+	private long sum;
+	private long max;
+
+	LatencySnapshot(long counts[], long sum, long max) {
+		this.counts = counts;
+		long total=0;
+		for(long c : counts)
+			total += c;
+		this.count = total;
+		this.sum = sum;
+		this.max = max;
+	}
+	/**
+	 * Construct an empty snapshot. Useful as the start of a merge.
+	 */
+	public LatencySnapshot() {
+		this(new long[LatencyHistogram.bucket_count],0,0);
+	}
+
+	/**Returns the number of latencies*/
+	public long count() {
+		return count;
+	}
+	/**Returns the mean latency, or 0 if there are no latencies*/
+	public long mean() {
+		return count!=0 ? sum/count : 0;
+	}
+	/**Returns the highest latency, or 0 if there are no latencies*/
+	public long max() {
+		return max;
+	}
+	/**
+	 * Returns a quantile of the latencies.
+	 * @param q The quantile, eg. 0.99 for the 99th percentile
+	 * @return The latency, or -1 if there are no latencies
+	 */
+	public long quantile(double q) {
+		if(count==0)
+			return -1;
+		long target = Math.max((long)Math.ceil(count*q),1);
+		long seen=0;
+		for(int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if(seen>=target)
+				return Math.min(LatencyHistogram.bucketUpperBound(i),max);
+		}
+		return max;
+	}
+	/**Returns the median latency, or -1 if there are no latencies*/
+	public long p50() {
+		return quantile(0.50);
+	}
+	/**Returns the 99th percentile of the latencies, or -1 if there are no latencies*/
+	public long p99() {
+		return quantile(0.99);
+	}
+	/**Returns the 99.9th percentile of the latencies, or -1 if there are no latencies*/
+	public long p999() {
+		return quantile(0.999);
+	}
+
+	/**
+	 * Add the latencies of another snapshot to this one.
+	 * @param other The snapshot to merge into this one.
+	 * @return this
+	 */
+	public LatencySnapshot merge(LatencySnapshot other) {
+		for(int i=0; i<counts.length; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max,other.max);
+		return this;
+	}
+
+	public String toString() {
+		return "count="+count+" mean="+mean()+"us p50="+p50()+"us p99="+p99()+"us p99.9="+p999()+"us max="+max+"us";
+	}
+}
@@ -0,0 +1,52 @@
+package dk.i1.diameter.node;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One end of an in-JVM connection between two nodes.
+ * Each end has a queue of encoded messages sent by the other end.
+ */
+class LoopbackConnection extends Connection {
+	LoopbackNode node_impl;
+	volatile LoopbackConnection partner; //the other end. Set when connected
+	final SPSCQueue<byte[]> input;       //written by the partner, read by our node thread
+	final AtomicBoolean scheduled;       //in the node's ready queue
+	volatile boolean partner_closed;
+	
+	public LoopbackConnection(LoopbackNode node_impl, long watchdog_interval, long idle_timeout) {
+		super(node_impl,watchdog_interval,idle_timeout);
+		this.node_impl = node_impl;
+		input = new SPSCQueue<byte[]>();
+		scheduled = new AtomicBoolean();
+	}
+	
+	void sendMessage(byte[] raw, OutputLane lane) {
+		node_impl.sendMessage(this,raw);
+	}
+	
+	InetAddress toInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+	
+	Object getRelevantNodeAuthInfo() {
+		return null; //nothing to authenticate; the peer is in the same JVM
+	}
+	
+	Collection<InetAddress> getLocalAddresses() {
+		Collection<InetAddress> coll = new ArrayList<InetAddress>();
+		coll.add(InetAddress.getLoopbackAddress());
+		return coll;
+	}
+	
+	Peer toPeer() {
+		if(peer!=null)
+			return new Peer(peer); //outbound
+		try {
+			return new Peer(host_id,0,Peer.TransportProtocol.loopback);
+		} catch(EmptyHostNameException ex) {
+			return null; //cannot happen; host_id is set
+		}
+	}
+}
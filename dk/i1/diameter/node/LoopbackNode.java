@@ -0,0 +1,233 @@
+package dk.i1.diameter.node;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import dk.i1.diameter.Message;
+
+/**
+ * In-JVM transport.
+ * Nodes in the same JVM connect to each other without sockets: a node
+ * listens on its port number in a JVM-wide namespace, and each end of a
+ * connection passes encoded messages to the other end through a lock-free
+ * queue. Messages are still encoded and decoded, and the capabilities
+ * exchange, watchdogs and disconnects work as for TCP, so the whole stack
+ * can be exercised (eg. benchmarked) without the kernel networking.
+ */
+class LoopbackNode extends NodeImplementation {
+	private static final int input_budget = 256; //messages per connection per turn
+	private static final ConcurrentHashMap<Integer,LoopbackNode> listeners = new ConcurrentHashMap<Integer,LoopbackNode>();
+
+	private Thread node_thread;
+	private volatile boolean please_stop;
+	private long shutdown_deadline;
+	private int port; //0 if not listening
+	private ConcurrentLinkedQueue<LoopbackConnection> ready; //connections with input or a closed partner
+	private ConcurrentLinkedQueue<LoopbackConnection> pending_connects;
+
+	public LoopbackNode(Node node, NodeSettings settings, Logger logger) {
+		super(node,settings,logger);
+		ready = new ConcurrentLinkedQueue<LoopbackConnection>();
+		pending_connects = new ConcurrentLinkedQueue<LoopbackConnection>();
+	}
+
+	void openIO() throws java.io.IOException {
+		if(settings.port()!=0) {
+			if(listeners.putIfAbsent(settings.port(),this)!=null)
+				throw new java.net.BindException("Loopback port "+settings.port()+" is already in use");
+			port = settings.port();
+		}
+	}
+
+	void start() {
+		logger.log(Level.FINEST,"Starting loopback node");
+		please_stop = false;
+		node_thread = new NodeThread();
+		node_thread.setDaemon(true);
+		node_thread.start();
+		logger.log(Level.FINEST,"Started loopback node");
+	}
+
+	void wakeup() {
+		LockSupport.unpark(node_thread);
+	}
+
+	void initiateStop(long shutdown_deadline) {
+		logger.log(Level.FINEST,"Initiating stop of loopback node");
+		this.shutdown_deadline = shutdown_deadline;
+		please_stop = true;
+	}
+
+	void join() {
+		logger.log(Level.FINEST,"Joining loopback node thread");
+		try {
+			node_thread.join();
+		} catch(java.lang.InterruptedException ex) {}
+		node_thread = null;
+	}
+
+	void closeIO() {
+		if(port!=0)
+			listeners.remove(port,this);
+		port = 0;
+	}
+
+	private class NodeThread extends Thread {
+		NodeThread() {
+			super("DiameterNode thread (loopback)");
+		}
+		public void run() {
+			ArrayList<LoopbackConnection> batch = new ArrayList<LoopbackConnection>();
+			for(;;) {
+				if(please_stop) {
+					if(System.currentTimeMillis()>=shutdown_deadline)
+						break;
+					if(!anyOpenConnections())
+						break;
+				}
+				LoopbackConnection conn;
+				while((conn=pending_connects.poll())!=null)
+					connect(conn);
+				//Connections that use up their budget are put back in the
+				//ready queue, so take a batch to give the others a turn first
+				while((conn=ready.poll())!=null)
+					batch.add(conn);
+				for(LoopbackConnection c : batch)
+					processInput(c);
+				batch.clear();
+				runTimers();
+				if(ready.isEmpty() && pending_connects.isEmpty()) {
+					long timeout = calcNextTimeout();
+					if(timeout==-1)
+						LockSupport.park(this);
+					else {
+						long now = System.currentTimeMillis();
+						if(timeout>now)
+							LockSupport.parkNanos(this,(timeout-now)*1000000);
+					}
+				}
+			}
+		}
+	}
+
+	//Make the node thread process a connection
+	private void schedule(LoopbackConnection conn) {
+		if(conn.scheduled.compareAndSet(false,true)) {
+			ready.add(conn);
+			LockSupport.unpark(node_thread);
+		}
+	}
+
+	private void processInput(LoopbackConnection conn) {
+		conn.scheduled.set(false);
+		conn.input_time = FlightRecorderEvents.dispatchEnabled() ? System.nanoTime() : 0;
+		long bytes=0;
+		int messages=0;
+		byte raw[];
+		while(conn.state!=Connection.State.closed &&
+		      messages<input_budget &&
+		      (raw=conn.input.poll())!=null)
+		{
+			messages++;
+			bytes += raw.length;
+			if(!admitMessage(conn,raw,0,raw.length))
+				continue;
+			Message msg = new Message();
+			if(msg.decode(raw)!=Message.decode_status.decoded) {
+				logGarbagePacket(conn,raw,0,raw.length);
+				closeConnection(conn,true);
+				break;
+			}
+			logRawDecodedPacket(raw,0,raw.length);
+			if(!handleMessage(msg,conn)) {
+				logger.log(Level.FINER,"handle error");
+				closeConnection(conn);
+				break;
+			}
+		}
+		LoopbackConnection partner = conn.partner;
+		Object partner_lock = partner!=null ? partner.node_impl.getLockObject() : null;
+		if(bytes!=0 && partner_lock!=null) { //(the lock is null if the partner's node has stopped)
+			//The messages were queued output of the partner
+			synchronized(partner_lock) {
+				if(partner.state!=Connection.State.closed)
+					partner.node_impl.outputQueueChanged(partner,-bytes);
+			}
+		}
+		if(conn.state==Connection.State.closed)
+			return;
+		if(!conn.input.isEmpty())
+			schedule(conn);
+		else if(conn.partner_closed)
+			closeConnection(conn);
+	}
+
+	private void connect(LoopbackConnection conn) {
+		LoopbackNode listener = listeners.get(conn.peer.port());
+		LoopbackConnection partner = listener!=null ? listener.accept(conn) : null;
+		if(partner==null) {
+			logger.log(Level.WARNING,"Loopback connection to '"+conn.host_id+"' failed: nothing listens on port "+conn.peer.port());
+			unregisterConnection(conn);
+			return;
+		}
+		logger.log(Level.FINEST,"Connected!");
+		conn.partner = partner;
+		conn.state = Connection.State.connected_out;
+		initiateCER(conn);
+	}
+
+	//Called by the node thread of the connecting node
+	private LoopbackConnection accept(LoopbackConnection client) {
+		if(please_stop)
+			return null;
+		LoopbackConnection conn = new LoopbackConnection(this,settings.watchdogInterval(),settings.idleTimeout());
+		conn.host_id = "localhost";
+		conn.state = Connection.State.connected_in;
+		conn.partner = client;
+		registerInboundConnection(conn);
+		logger.log(Level.INFO,"Got an inbound loopback connection");
+		return conn;
+	}
+
+	void sendMessage(LoopbackConnection conn, byte[] raw) {
+		LoopbackConnection partner = conn.partner;
+		synchronized(getLockObject()) {
+			//The node lock serializes the senders, so the partner's input
+			//queue has a single producer
+			if(conn.state==Connection.State.closed || partner==null)
+				return;
+			partner.input.offer(raw);
+			outputQueueChanged(conn,raw.length);
+		}
+		partner.node_impl.schedule(partner);
+	}
+
+	boolean initiateConnection(Connection conn_, Peer peer) {
+		LoopbackConnection conn = (LoopbackConnection)conn_;
+		conn.state = Connection.State.connecting;
+		pending_connects.add(conn);
+		LockSupport.unpark(node_thread);
+		return true;
+	}
+
+	void close(Connection conn_, boolean reset) {
+		LoopbackConnection conn = (LoopbackConnection)conn_;
+		LoopbackConnection partner = conn.partner;
+		if(partner!=null) {
+			partner.partner_closed = true;
+			partner.node_impl.schedule(partner);
+		}
+		synchronized(getLockObject()) {
+			if(conn.output_bytes!=0)
+				outputQueueChanged(conn,-conn.output_bytes);
+		}
+		if(please_stop)
+			wakeup(); //the node thread waits for all connections to close
+	}
+
+	Connection newConnection(long watchdog_interval, long idle_timeout) {
+		return new LoopbackConnection(this,watchdog_interval,idle_timeout);
+	}
+}
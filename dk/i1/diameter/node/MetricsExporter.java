@@ -0,0 +1,75 @@
+package dk.i1.diameter.node;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The metrics endpoint of a NodeManager.
+ * Serves /metrics in the Prometheus text format with the HTTP server of
+ * the JDK. Requests are handled by the server's dispatcher thread one at a
+ * time, and the metrics are rendered into the same buffer every time, so a
+ * scrape reads the counters without locking the hot paths and allocates
+ * little.
+ */
+class MetricsExporter implements HttpHandler {
+	private static final String content_type = "text/plain; version=0.0.4; charset=utf-8";
+	private final NodeManager node_manager;
+	private final Logger logger;
+	private final MetricsWriter writer;
+	private HttpServer server;
+
+	MetricsExporter(NodeManager node_manager, Logger logger) {
+		this.node_manager = node_manager;
+		this.logger = logger;
+		this.writer = new MetricsWriter();
+	}
+
+	void start(int port) throws IOException {
+		HttpServer s = HttpServer.create(new InetSocketAddress(port),0);
+		s.createContext("/metrics",this);
+		s.start();
+		server = s;
+		logger.log(Level.INFO,"Serving metrics on port "+s.getAddress().getPort());
+	}
+
+	void stop() {
+		if(server==null)
+			return;
+		server.stop(0);
+		server = null;
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if(!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.sendResponseHeaders(405,-1);
+				return;
+			}
+			writer.reset();
+			try {
+				node_manager.writeMetrics(writer);
+			} catch(RuntimeException ex) {
+				logger.log(Level.WARNING,"Could not render the metrics",ex);
+				exchange.sendResponseHeaders(500,-1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type",content_type);
+			if(method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200,-1);
+				return;
+			}
+			exchange.sendResponseHeaders(200,writer.length());
+			OutputStream os = exchange.getResponseBody();
+			os.write(writer.buffer(),0,writer.length());
+			os.close();
+		} finally {
+			exchange.close();
+		}
+	}
+}
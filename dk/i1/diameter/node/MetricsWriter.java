@@ -0,0 +1,192 @@
+package dk.i1.diameter.node;
+
+/**
+ * Writer of metrics in the Prometheus text format.
+ * The metrics endpoint of the {@link NodeManager} (see
+ * {@link NodeSettings#setMetricsPort}) renders the metrics with a
+ * MetricsWriter, and subclasses of NodeManager can add their own metrics
+ * by overriding {@link NodeManager#writeMetrics}. A metric family is
+ * started with {@link #family} and its samples are written with
+ * {@link #sample}, {@link #label} and {@link #value}:
+ * <pre>
+ * out.family("myapp_queue_length","gauge","Requests waiting in the queue");
+ * out.sample("myapp_queue_length").label("queue","low").value(queue_low.size());
+ * out.sample("myapp_queue_length").label("queue","high").value(queue_high.size());
+ * </pre>
+ * The text is written as ASCII into a buffer that is reused between
+ * scrapes, so rendering numbers and labels does not allocate.
+ * @since 0.9.7
+ */
+public class MetricsWriter {
+	private byte buf[];
+	private int length;
+	private boolean in_labels; //a '{' has been written for the current sample
+
+	MetricsWriter() {
+		buf = new byte[8192];
+	}
+
+	/**
+	 * Start a metric family.
+	 * @param name The metric name
+	 * @param type The type: "counter", "gauge", "summary", "histogram" or "untyped"
+	 * @param help The description of the metric
+	 */
+	public void family(String name, String type, String help) {
+		append("# HELP ").append(name).append(' ');
+		for(int i=0; i<help.length(); i++) {
+			char c = help.charAt(i);
+			if(c=='\\')
+				append("\\\\");
+			else if(c=='\n')
+				append("\\n");
+			else
+				append(c);
+		}
+		append('\n');
+		append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Start a sample.
+	 * It must be finished with one of the value() methods.
+	 * @param name The metric name, possibly with a suffix such as _sum.
+	 * @return this
+	 */
+	public MetricsWriter sample(String name) {
+		append(name);
+		in_labels = false;
+		return this;
+	}
+	/**
+	 * Start a sample with a suffix to the metric name, eg. "_sum" or
+	 * "_count" for the samples of a summary.
+	 * It must be finished with one of the value() methods.
+	 * @return this
+	 */
+	public MetricsWriter sample(String name, String suffix) {
+		append(name).append(suffix);
+		in_labels = false;
+		return this;
+	}
+	/**
+	 * Add a label to the current sample.
+	 * @param name The label name
+	 * @param value The label value. It is escaped as needed.
+	 * @return this
+	 */
+	public MetricsWriter label(String name, String value) {
+		append(in_labels ? ',' : '{');
+		in_labels = true;
+		append(name).append("=\"");
+		for(int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if(c=='\\' || c=='"')
+				append('\\').append(c);
+			else if(c=='\n')
+				append("\\n");
+			else
+				append(c);
+		}
+		return append('"');
+	}
+	/**
+	 * Add a label with a numeric value to the current sample.
+	 * @return this
+	 */
+	public MetricsWriter label(String name, long value) {
+		append(in_labels ? ',' : '{');
+		in_labels = true;
+		append(name).append("=\"");
+		appendLong(value);
+		return append('"');
+	}
+	/**
+	 * Finish the current sample with its value.
+	 */
+	public void value(long value) {
+		endLabels();
+		appendLong(value);
+		append('\n');
+	}
+	/**
+	 * Finish the current sample with its value.
+	 */
+	public void value(double value) {
+		endLabels();
+		if(Double.isNaN(value))
+			append("NaN");
+		else if(Double.isInfinite(value))
+			append(value>0 ? "+Inf" : "-Inf");
+		else if(value==Math.rint(value) && Math.abs(value)<1e15)
+			appendLong((long)value);
+		else
+			append(Double.toString(value));
+		append('\n');
+	}
+	/**
+	 * Finish the current sample with a value in microseconds, written in
+	 * seconds (the unit Prometheus uses for durations).
+	 */
+	void valueMicroseconds(long microseconds) {
+		endLabels();
+		if(microseconds<0) {
+			append('-');
+			microseconds = -microseconds;
+		}
+		appendLong(microseconds/1000000);
+		append('.');
+		long fraction = microseconds%1000000;
+		for(long d=100000; d>0; d/=10)
+			append((char)('0'+(fraction/d)%10));
+		append('\n');
+	}
+
+	private void endLabels() {
+		if(in_labels)
+			append('}');
+		in_labels = false;
+		append(' ');
+	}
+
+	private void appendLong(long v) {
+		if(v==Long.MIN_VALUE) {
+			append(Long.toString(v));
+			return;
+		}
+		if(v<0) {
+			append('-');
+			v = -v;
+		}
+		long d=1;
+		while(d<=v/10)
+			d *= 10;
+		for(; d>0; d/=10)
+			append((char)('0'+(v/d)%10));
+	}
+
+	private MetricsWriter append(String s) {
+		for(int i=0; i<s.length(); i++)
+			append(s.charAt(i));
+		return this;
+	}
+	//Characters outside ASCII are written as '?'. Metric and label names
+	//are ASCII, and host-ids nearly always are.
+	private MetricsWriter append(char c) {
+		if(length==buf.length)
+			buf = java.util.Arrays.copyOf(buf,buf.length*2);
+		buf[length++] = (byte)(c<128 ? c : '?');
+		return this;
+	}
+
+	void reset() {
+		length = 0;
+		in_labels = false;
+	}
+	byte[] buffer() {
+		return buf;
+	}
+	int length() {
+		return length;
+	}
+}
@@ -0,0 +1,27 @@
+package dk.i1.diameter.node;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves the host names of peers.
+ * The node resolves the host names of the peers it connects to in the
+ * background and caches the results (see
+ * {@link NodeSettings#setResolverCacheTTL}). By default host names are
+ * resolved with {@link InetAddress#getAllByName}. Another resolver can be
+ * set with {@link NodeSettings#setNameResolver}, eg. a
+ * {@link StaticNameResolver} for tests.
+ * <p>
+ * Literal IP addresses are not passed to the resolver.
+ * @since 0.9.7
+ */
+public interface NameResolver {
+	/**
+	 * Resolve a host name.
+	 * This method is called by the resolver threads of the node and may
+	 * block. It can be called by several threads at the same time.
+	 * @param host The host name
+	 * @return The addresses of the host. The first one is used.
+	 * @throws UnknownHostException If the host name could not be resolved.
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException;
+}
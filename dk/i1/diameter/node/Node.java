@@ -1,7 +1,10 @@
 package dk.i1.diameter.node;
 import dk.i1.diameter.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.net.InetAddress;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.lang.reflect.Constructor;
@@ -25,11 +28,13 @@ import java.lang.reflect.Constructor;
  * <ul>
  * <li><tt>dk.i1.diameter.node.use_tcp=</tt> [<tt><em>true</em></tt>|<tt><em>false</em></tt>|<tt><em>maybe</em></tt>] (default:true)</li>
  * <li><tt>dk.i1.diameter.node.use_sctp=</tt> [<tt><em>true</em></tt>|<tt><em>false</em></tt>|<tt><em>maybe</em></tt>] (default:maybe)</li>
+ * <li><tt>dk.i1.diameter.node.use_unix=</tt> [<tt><em>true</em></tt>|<tt><em>false</em></tt>|<tt><em>maybe</em></tt>] (default:true if a Unix socket path is set, otherwise false)</li>
+ * <li><tt>dk.i1.diameter.node.use_loopback=</tt> [<tt><em>true</em></tt>|<tt><em>false</em></tt>|<tt><em>maybe</em></tt>] (default:false)</li>
  * </ul>
  * If a setting is set to true and the support class could not be loaded, then start operation fails.
  * If a setting is false, then no attempt will be made to use that transport-protocol.
  * If a setting is 'maybe' then the stack will try to initialize and use that trasnport-protocol, but failure to do so will not cause the stack initialization to fail.
- * You can override the properties by changing the setting with {@link NodeSettings#setUseTCP} and {@link NodeSettings#setUseSCTP}.
+ * You can override the properties by changing the setting with {@link NodeSettings#setUseTCP}, {@link NodeSettings#setUseSCTP}, {@link NodeSettings#setUseUnix} and {@link NodeSettings#setUseLoopback}.
  *
  * <h3>DW jitter, system RNG and stalls on first connection</h3>
  * The node applies jitter to the DW intervals as required by RFC3588->RFC3539->RFC1750, by using
@@ -49,15 +54,25 @@ public class Node {
 	private NodeSettings settings;
 	private NodeValidator node_validator;
 	private NodeState node_state;
-	private Thread reconnect_thread;
 	private boolean please_stop;
 	private long shutdown_deadline;
 	private Map<ConnectionKey,Connection> map_key_conn;
-	private Set<Peer> persistent_peers;
+	private ReconnectScheduler reconnect_scheduler; //protected by map_key_conn
+	private Set<String> watchdog_down_hosts; //host-ids of peers whose connection went down due to no DWA. protected by map_key_conn
 	private Logger logger;
 	private Object obj_conn_wait;
 	private NodeImplementation tcp_node;
 	private NodeImplementation sctp_node;
+	private NodeImplementation unix_node;
+	private NodeImplementation loopback_node;
+	private BufferPool buffer_pool;
+	private HostResolver host_resolver;
+	private ConcurrentHashMap<String,PeerHealth> peer_health;
+	private NodeMetrics metrics;
+	private boolean jmx_registered; //protected by metrics
+	private OutputLaneStatistics.Counters output_lane_counters; //protected by map_key_conn
+	private long node_output_bytes;    //protected by map_key_conn
+	private boolean node_output_writable; //protected by map_key_conn
 	
 	/**
 	 * Constructor for Node.
@@ -101,6 +116,14 @@ public class Node {
 		this.obj_conn_wait = new Object();
 		this.tcp_node = null;
 		this.sctp_node = null;
+		this.unix_node = null;
+		this.loopback_node = null;
+		this.buffer_pool = new BufferPool();
+		this.host_resolver = new HostResolver(settings,this.logger);
+		this.peer_health = new ConcurrentHashMap<String,PeerHealth>();
+		this.metrics = new NodeMetrics(this);
+		this.output_lane_counters = new OutputLaneStatistics.Counters();
+		this.node_output_writable = true;
 	}
 	
 	/**
@@ -111,7 +134,7 @@ public class Node {
 	 * @throws UnsupportedTransportProtocolException If a transport-protocol has been specified as mandatory but could not be initialised.
 	 */
 	public void start() throws java.io.IOException, UnsupportedTransportProtocolException {
-		if(tcp_node!=null || sctp_node!=null) //use these members to signal that we are running
+		if(tcp_node!=null || sctp_node!=null || unix_node!=null || loopback_node!=null) //use these members to signal that we are running
 			throw new java.io.IOException("Diameter stack is already running");
 		logger.log(Level.INFO,"Starting Diameter node");
 		please_stop = false;
@@ -120,9 +143,12 @@ public class Node {
 			tcp_node.start();
 		if(sctp_node!=null)
 			sctp_node.start();
-		reconnect_thread = new ReconnectThread();
-		reconnect_thread.setDaemon(true);
-		reconnect_thread.start();
+		if(unix_node!=null)
+			unix_node.start();
+		if(loopback_node!=null)
+			loopback_node.start();
+		if(settings.useJMX())
+			registerMetricsMBeans();
 		logger.log(Level.INFO,"Diameter node started");
 	}
 	
@@ -150,6 +176,10 @@ public class Node {
 			tcp_node.initiateStop(shutdown_deadline);
 		if(sctp_node!=null)
 			sctp_node.initiateStop(shutdown_deadline);
+		if(unix_node!=null)
+			unix_node.initiateStop(shutdown_deadline);
+		if(loopback_node!=null)
+			loopback_node.initiateStop(shutdown_deadline);
 		if(map_key_conn==null) {
 			logger.log(Level.INFO,"Cannot stop node: It appears to not be running. (This is the fault of the caller)");
 			return;
@@ -187,31 +217,38 @@ public class Node {
 			tcp_node.wakeup();
 		if(sctp_node!=null)
 			sctp_node.wakeup();
-		synchronized(map_key_conn) {
-			map_key_conn.notify();
-		}
-		try {
-			if(tcp_node!=null)
-				tcp_node.join();
-			if(sctp_node!=null)
-				sctp_node.join();
-			reconnect_thread.join();
-		} catch(java.lang.InterruptedException ex) {}
-		reconnect_thread = null;
+		if(unix_node!=null)
+			unix_node.wakeup();
+		if(loopback_node!=null)
+			loopback_node.wakeup();
+		if(tcp_node!=null)
+			tcp_node.join();
+		if(sctp_node!=null)
+			sctp_node.join();
+		if(unix_node!=null)
+			unix_node.join();
+		if(loopback_node!=null)
+			loopback_node.join();
 		//close all connections not already closed
 		//(todo) if a connection's out-buffer is non-empty we should wait for it to empty.
 		synchronized(map_key_conn) {
-			for(Map.Entry<ConnectionKey,Connection> e : map_key_conn.entrySet()) {
-				Connection conn = e.getValue();
+			//closeConnection() removes the connection from the map
+			for(Connection conn : new ArrayList<Connection>(map_key_conn.values()))
 				closeConnection(conn);
-			}
 		}
 		//other cleanup
 		synchronized(obj_conn_wait) {
 			obj_conn_wait.notifyAll();
 		}
 		map_key_conn = null;
-		persistent_peers = null;
+		reconnect_scheduler = null;
+		watchdog_down_hosts = null;
+		if(settings.useJMX()) {
+			for(String host_id : peer_health.keySet())
+				unregisterMBean("PeerHealth","peer",host_id);
+			unregisterMetricsMBeans();
+		}
+		peer_health.clear();
 		if(tcp_node!=null) {
 			tcp_node.closeIO();
 			tcp_node = null;
@@ -220,6 +257,14 @@ public class Node {
 			sctp_node.closeIO();
 			sctp_node = null;
 		}
+		if(unix_node!=null) {
+			unix_node.closeIO();
+			unix_node = null;
+		}
+		if(loopback_node!=null) {
+			loopback_node.closeIO();
+			loopback_node = null;
+		}
 		logger.log(Level.INFO,"Diameter node stopped");
 	}
 	
@@ -378,23 +423,324 @@ public class Node {
 	public void sendMessage(Message msg, ConnectionKey connkey) throws StaleConnectionException {
 		if(map_key_conn==null)
 			throw new StaleConnectionException();
+		synchronized(map_key_conn) {
+			sendMessage(msg,readyConnection(connkey));
+		}
+	}
+	/**
+	 * Send a message to a peer unless its output queue is full.
+	 * The message is not sent if the output queued for the connection, or
+	 * for the whole node, has exceeded the high watermark and not yet
+	 * dropped to the low watermark. The caller should then hold back until
+	 * the connection becomes writable again, which a
+	 * {@link ConnectionWritabilityListener} is told about.
+	 * @param msg The message to be sent
+	 * @param connkey The connection to use. If the connection has been closed in the meantime StaleConnectionException is thrown.
+	 * @return False if the message was not sent because it would block.
+	 * @throws StaleConnectionException If the connection has been closed
+	 * @see NodeSettings#setConnectionOutputWatermarks
+	 * @see NodeSettings#setNodeOutputWatermarks
+	 * @since 0.9.7
+	 */
+	public boolean trySendMessage(Message msg, ConnectionKey connkey) throws StaleConnectionException {
+		if(map_key_conn==null)
+			throw new StaleConnectionException();
+		synchronized(map_key_conn) {
+			Connection conn = readyConnection(connkey);
+			if(!isWritable(conn))
+				return false;
+			sendMessage(msg,conn);
+			return true;
+		}
+	}
+	/**
+	 * Returns if a connection accepts more output.
+	 * @param connkey The connection
+	 * @return True if the connection is writable. False if it is over the output watermarks or has been closed.
+	 * @see #trySendMessage
+	 * @since 0.9.7
+	 */
+	public boolean isWritable(ConnectionKey connkey) {
+		if(map_key_conn==null)
+			return false;
 		synchronized(map_key_conn) {
 			Connection conn = map_key_conn.get(connkey);
-			if(conn==null)
-				throw new StaleConnectionException();
-			if(conn.state!=Connection.State.ready)
-				throw new StaleConnectionException();
+			return conn!=null && isWritable(conn);
+		}
+	}
+	private boolean isWritable(Connection conn) {
+		return conn.output_writable && node_output_writable;
+	}
+	/**
+	 * Send a request if the connection is writable and the outbound rate limit of the connection allows it.
+	 * @return False if the request was not sent because the connection is busy.
+	 */
+	boolean sendRequestWithinRateLimit(Message msg, ConnectionKey connkey) throws StaleConnectionException {
+		if(map_key_conn==null)
+			throw new StaleConnectionException();
+		synchronized(map_key_conn) {
+			Connection conn = readyConnection(connkey);
+			if(!isWritable(conn)) {
+				logger.log(Level.FINE,"Not sending request (command="+msg.hdr.command_code+") to "+conn.host_id+" because its output queue is full");
+				return false;
+			}
+			if(conn.outbound_admission!=null && !conn.outbound_admission.admit(msg.hdr.application_id)) {
+				logger.log(Level.FINE,"Not sending request (command="+msg.hdr.command_code+") to "+conn.host_id+" because of the rate limit");
+				return false;
+			}
 			sendMessage(msg,conn);
+			return true;
 		}
 	}
+	//must be called with map_key_conn locked
+	private Connection readyConnection(ConnectionKey connkey) throws StaleConnectionException {
+		Connection conn = map_key_conn.get(connkey);
+		if(conn==null)
+			throw new StaleConnectionException();
+		if(conn.state!=Connection.State.ready)
+			throw new StaleConnectionException();
+		return conn;
+	}
 	private void sendMessage(Message msg, Connection conn) {
 		logger.log(Level.FINER,"command=" + msg.hdr.command_code +", to=" + (conn.peer!=null ? conn.peer.toString() : conn.host_id));
+		FlightRecorderEvents.SendEvent event = new FlightRecorderEvents.SendEvent();
+		event.begin();
 		byte[] raw = msg.encode();
+		metrics.sent(conn,msg,raw.length);
 		
 		if(logger.isLoggable(Level.FINEST))
 			hexDump(Level.FINEST,"Raw packet encoded",raw,0,raw.length);
 		
-		conn.sendMessage(raw);
+		conn.sendMessage(raw,OutputLane.of(msg));
+		if(event.shouldCommit()) {
+			event.peer = conn.host_id;
+			event.size = raw.length;
+			event.applicationId = msg.hdr.application_id;
+			event.commandCode = msg.hdr.command_code;
+			event.request = msg.hdr.isRequest();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Returns the occupancy of the connection buffer pool.
+	 * @see NodeSettings#setPooledConnectionBuffers
+	 * @since 0.9.7
+	 */
+	public BufferPoolUsage bufferPoolUsage() {
+		return buffer_pool.usage();
+	}
+	BufferPool bufferPool() {
+		return buffer_pool;
+	}
+	HostResolver hostResolver() {
+		return host_resolver;
+	}
+	
+	/**
+	 * Returns the queue wait statistics of the output lanes for all TCP connections.
+	 * @see OutputLane
+	 * @since 0.9.7
+	 */
+	public OutputLaneStatistics outputLaneStatistics() {
+		Object lock = map_key_conn;
+		if(lock==null)
+			return output_lane_counters.snapshot();
+		synchronized(lock) {
+			return output_lane_counters.snapshot();
+		}
+	}
+	/**
+	 * Returns the queue wait statistics of the output lanes for a connection.
+	 * @return The statistics, or null if the connection is unknown or does not queue output in lanes (SCTP).
+	 * @see OutputLane
+	 * @since 0.9.7
+	 */
+	public OutputLaneStatistics outputLaneStatistics(ConnectionKey connkey) {
+		if(map_key_conn==null)
+			return null;
+		synchronized(map_key_conn) {
+			Connection conn = map_key_conn.get(connkey);
+			return conn!=null ? conn.outputLaneStatistics() : null;
+		}
+	}
+	
+	/**
+	 * Returns the watchdog state of a connection.
+	 * {@link NodeManager} does not route requests to connections in the
+	 * suspect or reopen state.
+	 * @param connkey The connection
+	 * @return The watchdog state, or null if the connection does not exist
+	 * @since 0.9.7
+	 */
+	public WatchdogState watchdogState(ConnectionKey connkey) {
+		if(map_key_conn==null)
+			return null;
+		synchronized(map_key_conn) {
+			Connection conn = map_key_conn.get(connkey);
+			return conn!=null ? conn.timers.watchdog_state : null;
+		}
+	}
+	/**
+	 * Returns the health of a peer.
+	 * This method does not lock, so it is cheap enough to call when
+	 * selecting a peer for each request.
+	 * @param host_id The host-id of the peer
+	 * @return The health, or null if the peer has not been connected since the node was started
+	 * @since 0.9.7
+	 */
+	public PeerHealthMXBean peerHealth(String host_id) {
+		return peer_health.get(host_id);
+	}
+	//The health of a peer, created when the first connection to it is ready
+	PeerHealth peerHealthRecord(String host_id) {
+		PeerHealth ph = peer_health.get(host_id);
+		if(ph!=null)
+			return ph;
+		ph = new PeerHealth();
+		PeerHealth prev = peer_health.putIfAbsent(host_id,ph);
+		if(prev!=null)
+			return prev;
+		if(settings.useJMX())
+			registerMBean(ph,"PeerHealth","peer",host_id);
+		return ph;
+	}
+	
+	/**
+	 * Returns the message and queue metrics of the node.
+	 * @since 0.9.7
+	 */
+	public NodeMetricsMXBean metrics() {
+		return metrics;
+	}
+	/**
+	 * Returns the message and queue metrics of a connection.
+	 * @param connkey The connection
+	 * @return The metrics, or null if the connection does not exist
+	 * @since 0.9.7
+	 */
+	public ConnectionMetricsMXBean connectionMetrics(ConnectionKey connkey) {
+		if(map_key_conn==null)
+			return null;
+		synchronized(map_key_conn) {
+			Connection conn = map_key_conn.get(connkey);
+			return conn!=null ? conn.metrics : null;
+		}
+	}
+	/**
+	 * Returns the metrics of a command.
+	 * @param application_id The application-id
+	 * @param command_code The command code
+	 * @return The metrics, or null if no messages with the command have been sent or received
+	 * @since 0.9.7
+	 */
+	public CommandMetricsMXBean commandMetrics(int application_id, int command_code) {
+		return metrics.existingCommand(application_id,command_code);
+	}
+	NodeMetrics nodeMetrics() {
+		return metrics;
+	}
+	//For NodeMetrics
+	int readyConnectionCount() {
+		if(map_key_conn==null)
+			return 0;
+		int n=0;
+		synchronized(map_key_conn) {
+			for(Connection conn : map_key_conn.values()) {
+				if(conn.state==Connection.State.ready)
+					n++;
+			}
+		}
+		return n;
+	}
+	long outputQueueBytes() {
+		if(map_key_conn==null)
+			return 0;
+		synchronized(map_key_conn) {
+			return node_output_bytes;
+		}
+	}
+	long outstandingRequests() {
+		if(map_key_conn==null)
+			return 0;
+		long n=0;
+		synchronized(map_key_conn) {
+			for(Connection conn : map_key_conn.values())
+				n += conn.metrics.outstanding_requests.sum();
+		}
+		return n;
+	}
+	//Returns a connection. For the NodeManager's bookkeeping
+	Connection connection(ConnectionKey connkey) {
+		if(map_key_conn==null)
+			return null;
+		synchronized(map_key_conn) {
+			return map_key_conn.get(connkey);
+		}
+	}
+	
+	private void registerMetricsMBeans() {
+		synchronized(metrics) {
+			registerMBean(metrics,"Node");
+			for(CommandMetrics cm : metrics.commands())
+				registerCommandMBean(cm);
+			jmx_registered = true;
+		}
+	}
+	private void unregisterMetricsMBeans() {
+		synchronized(metrics) {
+			jmx_registered = false;
+			unregisterMBean("Node");
+			for(CommandMetrics cm : metrics.commands())
+				unregisterMBean("Command","application",cm.applicationLabel(),"command",cm.commandLabel());
+		}
+	}
+	void commandMetricsCreated(CommandMetrics cm) {
+		synchronized(metrics) {
+			if(jmx_registered)
+				registerCommandMBean(cm);
+		}
+	}
+	private void registerCommandMBean(CommandMetrics cm) {
+		registerMBean(cm,"Command","application",cm.applicationLabel(),"command",cm.commandLabel());
+	}
+	//Called with the node lock held
+	private void registerConnectionMBean(Connection conn) {
+		registerMBean(conn.metrics,"Connection","peer",conn.host_id,"connection",Integer.toString(conn.key.hashCode()));
+		conn.metrics.registered = true;
+	}
+	private void unregisterConnectionMBean(Connection conn) {
+		if(!conn.metrics.registered)
+			return;
+		conn.metrics.registered = false;
+		unregisterMBean("Connection","peer",conn.host_id,"connection",Integer.toString(conn.key.hashCode()));
+	}
+	
+	//The name of one of our MXBeans. 'properties' are key/value pairs
+	private ObjectName objectName(String type, String... properties) throws javax.management.MalformedObjectNameException {
+		Hashtable<String,String> table = new Hashtable<String,String>();
+		table.put("type",type);
+		table.put("node",ObjectName.quote(settings.hostId()));
+		for(int i=0; i+1<properties.length; i+=2)
+			table.put(properties[i],ObjectName.quote(properties[i+1]));
+		return new ObjectName("dk.i1.diameter",table);
+	}
+	private void registerMBean(Object mbean, String type, String... properties) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,objectName(type,properties));
+		} catch(javax.management.JMException ex) {
+			logger.log(Level.WARNING,"Could not register "+type+" MXBean",ex);
+		}
+	}
+	private void unregisterMBean(String type, String... properties) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(type,properties));
+		} catch(javax.management.JMException ex) {
+			logger.log(Level.FINE,"Could not unregister "+type+" MXBean",ex);
+		}
+	}
+	OutputLaneStatistics.Counters outputLaneCounters() {
+		return output_lane_counters;
 	}
 	
 	/**
@@ -404,8 +750,8 @@ public class Node {
 	 * take a few seconds before it is. It is safe to call multiple times.
 	 * If <code>persistent</code> true then the peer is added to a list of
 	 * persistent peers and if the connection is lost it will automatically
-	 * be re-established. There is no way to change a peer from persistent
-	 * to non-persistent.
+	 * be re-established (see {@link NodeSettings#setReconnectBackoff}).
+	 * There is no way to change a peer from persistent to non-persistent.
 	 * <p>
 	 * If/when the connection has been established and capability-exchange
 	 * has finished threads waiting in {@link #waitForConnection} are woken.
@@ -416,62 +762,105 @@ public class Node {
 	 * @param persistent If true the Node wil try to keep a connection open to the peer.
 	 */
 	public void initiateConnection(Peer peer, boolean persistent) {
-		if(persistent) {
-			synchronized(persistent_peers) {
-				persistent_peers.add(new Peer(peer));
-			}
-		}
 		synchronized(map_key_conn) {
-			for(Map.Entry<ConnectionKey,Connection> e : map_key_conn.entrySet()) {
-				Connection conn = e.getValue();
-				if(conn.peer!=null &&
-				   conn.peer.equals(peer))
-					return; //already has a connection to that peer
-				//what if we are connecting and the host_id matches?
-			}
-			logger.log(Level.INFO,"Initiating connection to '" + peer.host() +"' port "+peer.port());
-			NodeImplementation node_impl=null;
-			switch(peer.transportProtocol()) {
-				case tcp:
-					node_impl = tcp_node;
-					break;
-				case sctp:
-					node_impl = sctp_node;
-					break;
-			}
-			if(node_impl!=null) {
-				Connection conn = node_impl.newConnection(settings.watchdogInterval(),settings.idleTimeout());
-				conn.host_id = peer.host();
-				conn.peer = peer;
-				if(node_impl.initiateConnection(conn,peer)) {
-					map_key_conn.put(conn.key,conn);
-					logger.log(Level.FINEST,"Initiated connection to ["+peer.toString()+"]");
-				}
-			} else {
-				logger.log(Level.INFO,"Transport connection to '" + peer.host() + "' cannot be established because the transport protocol ("+peer.transportProtocol()+") is not supported");
+			Connection conn = connect(peer);
+			if(persistent) {
+				NodeImplementation node_impl = nodeImplementation(peer);
+				if(node_impl!=null)
+					reconnect_scheduler.add(new Peer(peer),node_impl,conn,System.currentTimeMillis());
 			}
 		}
 	}
 	
-	private class ReconnectThread extends Thread {
-		public ReconnectThread() {
-			super("Diameter node reconnect thread");
-		}
-		public void run() {
-			for(;;) {
-				synchronized(map_key_conn) {
-					if(please_stop) return;
-					try {
-						map_key_conn.wait(30000);
-					} catch(java.lang.InterruptedException ex) {}
-					if(please_stop) return;
-				}
-				synchronized(persistent_peers) {
-					for(Peer peer : persistent_peers)
-						initiateConnection(peer,false);
-				}
-			}
+	//Returns the connection to the peer, which may already have been there,
+	//or null if a connection could not be initiated. Called with the node lock held
+	private Connection connect(Peer peer) {
+		for(Map.Entry<ConnectionKey,Connection> e : map_key_conn.entrySet()) {
+			Connection conn = e.getValue();
+			if(conn.peer!=null &&
+			   conn.peer.equals(peer))
+				return conn; //already has a connection to that peer
+			//what if we are connecting and the host_id matches?
+		}
+		NodeImplementation node_impl = nodeImplementation(peer);
+		if(node_impl==null) {
+			logger.log(Level.INFO,"Transport connection to '" + peer.host() + "' cannot be established because the transport protocol ("+peer.transportProtocol()+") is not supported");
+			return null;
 		}
+		logger.log(Level.INFO,"Initiating connection to '" + peer.host() +"' port "+peer.port());
+		Connection conn = node_impl.newConnection(settings.watchdogInterval(),settings.idleTimeout());
+		conn.host_id = peer.host();
+		conn.peer = peer;
+		//Registered first because the connection attempt may fail
+		//(and unregister the connection) before initiateConnection() returns
+		map_key_conn.put(conn.key,conn);
+		if(!node_impl.initiateConnection(conn,peer)) {
+			map_key_conn.remove(conn.key);
+			return null;
+		}
+		if(!map_key_conn.containsKey(conn.key))
+			return null; //failed already
+		logger.log(Level.FINEST,"Initiated connection to ["+peer.toString()+"]");
+		return conn;
+	}
+	
+	private NodeImplementation nodeImplementation(Peer peer) {
+		switch(peer.transportProtocol()) {
+			case tcp:
+				return tcp_node;
+			case sctp:
+				return sctp_node;
+			case unix:
+				return unix_node;
+			case loopback:
+				return loopback_node;
+		}
+		return null;
+	}
+	
+	//Make the attempts to persistent peers that are due. Called with the node lock held
+	private void reconnect(NodeImplementation node_impl) {
+		long now = System.currentTimeMillis();
+		for(Peer peer : reconnect_scheduler.due(node_impl,now))
+			reconnect_scheduler.attempted(peer,connect(peer),now);
+	}
+	
+	//The capabilities exchange on a connection has finished
+	private void connectionReady(Connection conn) {
+		FlightRecorderEvents.connection(conn,"ready");
+		conn.health = peerHealthRecord(conn.host_id);
+		synchronized(map_key_conn) {
+			if(settings.useJMX())
+				registerConnectionMBean(conn);
+			reconnectReady(conn);
+			if(watchdog_down_hosts.remove(conn.host_id) && settings.watchdogReopenCount()>0) {
+				logger.log(Level.INFO,"The previous connection to "+conn.host_id+" went down. Waiting for "+settings.watchdogReopenCount()+" DWAs before routing requests to it");
+				conn.timers.markReopen(settings.watchdogReopenCount());
+				sendDWR(conn);
+			} else
+				conn.timers.markReady();
+		}
+	}
+	
+	//A connection is ready, or gone. Called with the node lock held
+	private void reconnectReady(Connection conn) {
+		if(!please_stop && reconnect_scheduler.ready(conn,System.currentTimeMillis()))
+			wakeupNodeImplementations();
+	}
+	private void reconnectLost(Connection conn) {
+		if(!please_stop && reconnect_scheduler.lost(conn,System.currentTimeMillis()))
+			wakeupNodeImplementations();
+	}
+	
+	private void wakeupNodeImplementations() {
+		if(tcp_node!=null)
+			tcp_node.wakeup();
+		if(sctp_node!=null)
+			sctp_node.wakeup();
+		if(unix_node!=null)
+			unix_node.wakeup();
+		if(loopback_node!=null)
+			loopback_node.wakeup();
 	}
 	
 	private static Boolean getUseOption(Boolean setting, String property_name, Boolean default_setting) {
@@ -560,11 +949,16 @@ public class Node {
 		                                  "dk.i1.diameter.node.TCPNode", "TCP");
 		sctp_node = loadTransportProtocol(settings.useSCTP(),"dk.i1.diameter.node.use_sctp",null,
 		                                  "dk.i1.diameter.node.SCTPNode", "SCTP");
-		if(tcp_node==null && sctp_node==null)
+		unix_node = loadTransportProtocol(settings.useUnix(),"dk.i1.diameter.node.use_unix",settings.unixSocketPath()!=null,
+		                                  "dk.i1.diameter.node.UnixNode", "Unix domain socket");
+		loopback_node = loadTransportProtocol(settings.useLoopback(),"dk.i1.diameter.node.use_loopback",false,
+		                                      "dk.i1.diameter.node.LoopbackNode", "Loopback");
+		if(tcp_node==null && sctp_node==null && unix_node==null && loopback_node==null)
 			logger.log(Level.WARNING,"No transport protocol classes could be loaded. The stack is running but without have any connectivity");
 		
 		map_key_conn = new HashMap<ConnectionKey,Connection>();
-		persistent_peers = new HashSet<Peer>();
+		reconnect_scheduler = new ReconnectScheduler(settings);
+		watchdog_down_hosts = new HashSet<String>();
 	}
 	
 	
@@ -582,6 +976,11 @@ public class Node {
 				if(timeout==-1 || conn_timeout<timeout)
 					timeout = conn_timeout;
 			}
+			if(!please_stop) {
+				long reconnect_timeout = reconnect_scheduler.nextAttempt(node_impl);
+				if(reconnect_timeout!=-1 && (timeout==-1 || reconnect_timeout<timeout))
+					timeout = reconnect_timeout;
+			}
 		}
 		if(please_stop && shutdown_deadline<timeout)
 			timeout=shutdown_deadline;
@@ -601,6 +1000,7 @@ public class Node {
 				Connection conn = e.getValue();
 				if(conn.node_impl!=node_impl) continue;
 				boolean ready = conn.state==Connection.State.ready;
+				WatchdogState watchdog_state = conn.timers.watchdog_state;
 				switch(conn.timers.calcAction(ready)) {
 					case none:
 						break;
@@ -617,14 +1017,25 @@ public class Node {
 						break;
 					case disconnect_no_dw:
 						logger.log(Level.WARNING,"Disconnecting due to no DWA");
+						//a failure from suspect was recorded when it became suspect
+						if(conn.health!=null && watchdog_state!=WatchdogState.suspect)
+							conn.health.recordTimeout();
+						watchdog_down_hosts.add(conn.host_id);
 						it.remove();
 						closeConnection(conn);
 						break;
 					case dwr:
 						sendDWR(conn);
 						break;
+					case suspect:
+						logger.log(Level.WARNING,"No DWA from "+conn.host_id+". Not routing requests to it");
+						if(conn.health!=null)
+							conn.health.recordTimeout();
+						break;
 				}
 			}
+			if(!please_stop)
+				reconnect(node_impl);
 		}
 	}
 	
@@ -635,6 +1046,7 @@ public class Node {
 	}
 	/**Logs an incorrectly decoded (non-diameter-)message.*/
 	void logGarbagePacket(Connection conn, byte[] raw, int offset, int msg_size) {
+		metrics.decodeError(conn);
 		hexDump(Level.WARNING,"Garbage from "+conn.host_id,raw,offset,msg_size);
 	}
 	
@@ -678,10 +1090,13 @@ public class Node {
 	void closeConnection(Connection conn, boolean reset) {
 		if(conn.state==Connection.State.closed) return;
 		logger.log(Level.INFO,"Closing connection to " + (conn.peer!=null ? conn.peer.toString() : conn.host_id));
+		FlightRecorderEvents.connection(conn,"closed");
 		synchronized(map_key_conn) {
 			conn.node_impl.close(conn,reset);
 			map_key_conn.remove(conn.key);
 			conn.state = Connection.State.closed;
+			unregisterConnectionMBean(conn);
+			reconnectLost(conn);
 		}
 		connection_listener.handle(conn.key, conn.peer, false);
 	}
@@ -697,7 +1112,8 @@ public class Node {
 	boolean handleMessage(Message msg, Connection conn) {
 		if(logger.isLoggable(Level.FINE))
 			logger.log(Level.FINE,"command_code=" + msg.hdr.command_code + " application_id=" + msg.hdr.application_id + " connection_state=" + conn.state);
-		conn.timers.markActivity();
+		if(conn.timers.markActivity())
+			logger.log(Level.INFO,"Connection to "+conn.host_id+" is responsive again");
 		if(conn.state==Connection.State.connected_in) {
 			//only CER allowed
 			if(!msg.hdr.isRequest() ||
@@ -721,6 +1137,12 @@ public class Node {
 			conn.timers.markRealActivity();
 			return handleCEA(msg,conn);
 		} else {
+			//Command metrics are only kept for the base protocol and for
+			//allowed applications, so peers cannot create them at will
+			if(msg.hdr.application_id==ProtocolConstants.DIAMETER_APPLICATION_COMMON &&
+			   (msg.hdr.command_code==ProtocolConstants.DIAMETER_COMMAND_DEVICE_WATCHDOG ||
+			    msg.hdr.command_code==ProtocolConstants.DIAMETER_COMMAND_DISCONNECT_PEER))
+				metrics.command(msg.hdr.application_id,msg.hdr.command_code).received(msg);
 			switch(msg.hdr.command_code) {
 				case ProtocolConstants.DIAMETER_COMMAND_CAPABILITIES_EXCHANGE:
 					logger.log(Level.WARNING,"Got CER from "+conn.host_id+" after initial capability-exchange");
@@ -749,7 +1171,22 @@ public class Node {
 						}
 						//We could also reject requests if we ar shutting down, but there are no result-code for this.
 					}
-					if(!message_dispatcher.handle(msg,conn.key,conn.peer)) {
+					metrics.command(msg.hdr.application_id,msg.hdr.command_code).received(msg);
+					FlightRecorderEvents.DispatchEvent event = new FlightRecorderEvents.DispatchEvent();
+					if(event.isEnabled()) {
+						if(conn.input_time!=0)
+							event.queueWait = System.nanoTime()-conn.input_time;
+						event.begin();
+					}
+					boolean handled = message_dispatcher.handle(msg,conn.key,conn.peer);
+					if(event.shouldCommit()) {
+						event.peer = conn.host_id;
+						event.applicationId = msg.hdr.application_id;
+						event.commandCode = msg.hdr.command_code;
+						event.request = msg.hdr.isRequest();
+						event.commit();
+					}
+					if(!handled) {
 						if(msg.hdr.isRequest())
 							return handleUnknownRequest(msg,conn);
 						else
@@ -760,6 +1197,82 @@ public class Node {
 		}
 	}
 	
+	/**
+	 * Account for output queued or written by a node implementation.
+	 * Must be called with the node lock held. Writability listeners are
+	 * told about connections crossing the watermarks.
+	 * @param delta Bytes added to (positive) or removed from (negative) the output queue of the connection.
+	 */
+	void outputQueueChanged(Connection conn, long delta) {
+		boolean conn_was_writable = isWritable(conn);
+		boolean node_was_writable = node_output_writable;
+		conn.output_bytes += delta;
+		node_output_bytes += delta;
+		if(conn.output_writable) {
+			if(conn.output_bytes>settings.connectionOutputHighWatermark())
+				conn.output_writable = false;
+		} else {
+			if(conn.output_bytes<=settings.connectionOutputLowWatermark())
+				conn.output_writable = true;
+		}
+		if(node_output_writable) {
+			if(node_output_bytes>settings.nodeOutputHighWatermark()) {
+				logger.log(Level.WARNING,"Output queued for all connections exceeds the high watermark ("+node_output_bytes+" bytes)");
+				node_output_writable = false;
+			}
+		} else {
+			if(node_output_bytes<=settings.nodeOutputLowWatermark()) {
+				logger.log(Level.INFO,"Output queued for all connections has dropped to the low watermark");
+				node_output_writable = true;
+			}
+		}
+		if(node_output_writable!=node_was_writable) {
+			for(Connection c : map_key_conn.values()) {
+				if(c==conn) continue;
+				if(c.output_writable)
+					notifyWritability(c,node_output_writable);
+			}
+		}
+		if(isWritable(conn)!=conn_was_writable)
+			notifyWritability(conn,isWritable(conn));
+	}
+	private void notifyWritability(Connection conn, boolean writable) {
+		if(conn.state!=Connection.State.ready)
+			return;
+		logger.log(Level.FINE,"Connection to "+conn.host_id+" is now "+(writable?"writable":"not writable"));
+		if(connection_listener instanceof ConnectionWritabilityListener)
+			((ConnectionWritabilityListener)connection_listener).handleWritability(conn.key,conn.peer,writable);
+	}
+	
+	/**
+	 * Admission control for an incoming message.
+	 * Called by the node implementations before the message is decoded.
+	 * Only the header is decoded here. A request that exceeds the inbound
+	 * rate limit of the connection is rejected with DIAMETER_TOO_BUSY.
+	 * @return False if the message has been rejected and must be skipped.
+	 */
+	boolean admitMessage(Connection conn, byte[] raw, int offset, int msg_size) {
+		metrics.received(conn,msg_size); //(the transports call this for every message)
+		if(conn.inbound_admission==null || conn.state!=Connection.State.ready)
+			return true;
+		Message msg = new Message();
+		if(msg.decodeHeader(raw,offset,msg_size)!=Message.decode_status.decoded)
+			return true; //let the real decoding deal with it
+		if(!msg.hdr.isRequest() ||
+		   msg.hdr.application_id==ProtocolConstants.DIAMETER_APPLICATION_COMMON)
+			return true;
+		if(conn.inbound_admission.admit(msg.hdr.application_id))
+			return true;
+		logger.log(Level.FINE,"Rejecting request from "+conn.host_id+" (command="+msg.hdr.command_code+") because of the rate limit");
+		conn.timers.markActivity();
+		//The answer needs the Session-Id and Proxy-Info of the request,
+		//so the whole message is decoded. Rejecting is the uncommon path.
+		if(msg.decode(raw,offset,msg_size)!=Message.decode_status.decoded)
+			return true; //let the real decoding deal with it
+		rejectRequest(msg,conn,ProtocolConstants.DIAMETER_RESULT_TOO_BUSY);
+		return false;
+	}
+	
 	private boolean isLoopedMessage(Message msg) {
 		//6.1.3
 		for(AVP a : msg.subset(ProtocolConstants.DI_ROUTE_RECORD)) {
@@ -899,6 +1412,9 @@ public class Node {
 		response.prepareResponse(msg);
 		if(result_code>=3000 && result_code<=3999)
 			response.hdr.setError(true);
+		AVP session_id = msg.find(ProtocolConstants.DI_SESSION_ID);
+		if(session_id!=null)
+			response.add(session_id);
 		response.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, result_code));
 		addOurHostAndRealm(response);
 		Utils.copyProxyInfo(msg,response);
@@ -988,6 +1504,7 @@ public class Node {
 	
 	private boolean handleCER(Message msg, Connection conn) {
 		logger.log(Level.FINE,"CER received from " + conn.host_id);
+		FlightRecorderEvents.connection(conn,"CER received");
 		//Handle election
 		String host_id;
 		{
@@ -1056,6 +1573,7 @@ public class Node {
 			Utils.setMandatory_RFC3588(cea);
 			sendMessage(cea,conn);
 			conn.state=Connection.State.ready;
+			connectionReady(conn);
 			connection_listener.handle(conn.key, conn.peer, true);
 			synchronized(obj_conn_wait) {
 				obj_conn_wait.notifyAll();
@@ -1066,6 +1584,7 @@ public class Node {
 	}
 	private boolean handleCEA(Message msg, Connection conn) {
 		logger.log(Level.FINE,"CEA received from "+conn.host_id);
+		FlightRecorderEvents.connection(conn,"CEA received");
 		AVP avp = msg.find(ProtocolConstants.DI_RESULT_CODE);
 		if(avp==null) {
 			logger.log(Level.WARNING,"CEA from "+conn.host_id+" did not contain a Result-Code AVP (violation of RFC3588 section 5.3.2 page 61). Dropping connection");
@@ -1096,6 +1615,7 @@ public class Node {
 		boolean rc = handleCEx(msg,conn);
 		if(rc) {
 			conn.state=Connection.State.ready;
+			connectionReady(conn);
 			logger.log(Level.INFO,"Connection to " +conn.peer.toString() + " is now ready");
 			connection_listener.handle(conn.key, conn.peer, true);
 			synchronized(obj_conn_wait) {
@@ -1199,6 +1719,7 @@ public class Node {
 	}
 	private void sendCER(Connection conn)  {
 		logger.log(Level.FINE,"Sending CER to "+conn.host_id);
+		FlightRecorderEvents.connection(conn,"CER sent");
 		Message cer = new Message();
 		cer.hdr.setRequest(true);
 		cer.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CAPABILITIES_EXCHANGE;
@@ -1265,11 +1786,15 @@ public class Node {
 	}
 	private boolean handleDWA(Message msg, Connection conn) {
 		logger.log(Level.FINE,"DWA received from "+conn.host_id);
-		conn.timers.markDWA();
+		if(conn.timers.dw_outstanding && conn.health!=null)
+			conn.health.recordRoundTrip(System.nanoTime()-conn.timers.dwr_out_time);
+		if(conn.timers.markDWA())
+			logger.log(Level.INFO,conn.host_id+" has answered "+settings.watchdogReopenCount()+" DWRs. Routing requests to it again");
 		return true;
 	}
 	private boolean handleDPR(Message msg, Connection conn) {
 		logger.log(Level.FINE,"DPR received from "+conn.host_id);
+		FlightRecorderEvents.connection(conn,"DPR received");
 		Message dpa = new Message();
 		dpa.prepareResponse(msg);
 		dpa.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_SUCCESS));
@@ -1311,6 +1836,7 @@ public class Node {
 	
 	private void sendDPR(Connection conn, int why) {
 		logger.log(Level.FINE,"Sending DPR to "+conn.host_id);
+		FlightRecorderEvents.connection(conn,"DPR sent");
 		Message dpr = new Message();
 		dpr.hdr.setRequest(true);
 		dpr.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_DISCONNECT_PEER;
@@ -1340,8 +1866,11 @@ public class Node {
 		}
 	}
 	void unregisterConnection(Connection conn) {
+		FlightRecorderEvents.connection(conn,"failed");
 		synchronized(map_key_conn) {
 			map_key_conn.remove(conn.key);
+			unregisterConnectionMBean(conn);
+			reconnectLost(conn);
 		}
 	}
 	Object getLockObject() {
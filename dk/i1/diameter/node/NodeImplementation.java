@@ -47,6 +47,21 @@ abstract class NodeImplementation {
 	boolean handleMessage(Message msg, Connection conn) {
 		return node.handleMessage(msg,conn);
 	}
+	void outputQueueChanged(Connection conn, long delta) {
+		node.outputQueueChanged(conn,delta);
+	}
+	OutputLaneStatistics.Counters outputLaneCounters() {
+		return node.outputLaneCounters();
+	}
+	BufferPool bufferPool() {
+		return node.bufferPool();
+	}
+	HostResolver hostResolver() {
+		return node.hostResolver();
+	}
+	boolean admitMessage(Connection conn, byte[] raw, int offset, int msg_size) {
+		return node.admitMessage(conn,raw,offset,msg_size);
+	}
 	void runTimers() {
 		node.runTimers(this);
 	}
@@ -1,6 +1,8 @@
 package dk.i1.diameter.node;
 import dk.i1.diameter.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -54,23 +56,82 @@ import java.util.logging.Level;
  * <li>forwardAnswer() is called.</li>
  * <li>The answer is passed down to the Node instance which then sends or queues the message</li>
  * </ol>
+ * <p>Transport failover:
+ * If a failover budget has been configured with {@link NodeSettings#setFailoverTimeout}
+ * then requests sent with {@link #sendRequest(Message,Peer[],Object,long)}
+ * survive the loss of the connection they were sent on. They are
+ * retransmitted with the T-bit set to the first capable peer in the
+ * original peer list, as described in RFC3539 section 5.5. Because the
+ * peer list is consulted again for each retransmission and for each new
+ * request, traffic automatically fails back to the preferred peer when its
+ * connection has been re-established. handleAnswer() is only called with a
+ * null answer when the budget has been used up.
+ * <p>Request hedging:
+ * For command codes enabled with {@link NodeSettings#addHedgedCommandCode}
+ * the NodeManager sends a copy of a request to a second capable peer when
+ * the first peer has not answered within its observed 95th percentile
+ * latency. The first answer wins, and the other is silently discarded.
+ * The number of hedged requests is limited by {@link NodeSettings#setHedgeBudget}.
+ * <p>Overload control:
+ * When enabled with {@link NodeSettings#setOverloadControl} the NodeManager
+ * implements RFC7683 (DOIC). Overload reports from peers cause requests
+ * sent with {@link #sendRequest(Message,Peer[],Object)} to be diverted
+ * away from overloaded hosts, or to be throttled with a
+ * {@link NotRoutableException} when the destination realm or host is
+ * overloaded. The overload of this node is reported to peers based on
+ * {@link #calculateOverloadReduction}.
  */
-public class NodeManager implements MessageDispatcher, ConnectionListener {
+public class NodeManager implements MessageDispatcher, ConnectionWritabilityListener {
 	private class RequestData {
 		public Object state;
 		public long timeout_time;
+		public ConnectionKey connkey;
+		public long send_time; //System.nanoTime()
+		public int application_id, command_code; //of the request. For the flight recorder events
+		public Connection conn; //that it was sent on. For the health and metrics
+		public boolean done; //answered or timed out
+		//only set when the request can fail over or be hedged to another peer:
+		public Message request;
+		public Peer peers[];
+		public long failover_deadline;
+		//only set for hedged requests:
+		public HedgeGroup hedge_group;
+		public long hedge_time;
 		RequestData(Object state, long timeout_time) {
 			this.state = state;
 			this.timeout_time = timeout_time;
 		}
 	};
+	//The copies of a hedged request. Protected by req_map
+	private static class HedgeGroup {
+		public boolean answered;
+		public int outstanding;
+	}
+	private enum RouteResult {
+		sent,
+		no_peers,
+		no_capable_peers,
+		all_stale,
+		rate_limited,
+		throttled
+	}
 	private Node node;
 	private NodeSettings settings;
 	private Map<ConnectionKey,Map<Integer,RequestData> > req_map;
+	private List<RequestData> failover_queue; //requests waiting for a capable peer. Protected by req_map
+	private long connections_up; //number of connections that have come up. Protected by req_map
+	private PriorityQueue<RequestData> hedge_queue; //requests waiting for their hedge time. Protected by req_map
+	private Map<String,LatencyEstimator> latency_estimators;
+	private Map<ConnectionKey,Connection> connections;
+	private AtomicLong hedge_credit; //in 1/100 hedges
 	private Logger logger;
 	private boolean stop_timeout_thread;
+	private boolean stopping;
+	private DuplicateDetector duplicate_detector;
 	private TimeoutThread timeout_thread;
+	private OverloadControl overload_control;
 	private boolean timeout_thread_actively_waiting;
+	private MetricsExporter metrics_exporter;
 	
 	/**
 	 * Constructor for NodeManager.
@@ -90,6 +151,15 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 		node = new Node(this,this,settings,node_validator);
 		this.settings = settings;
 		req_map = new HashMap<ConnectionKey,Map<Integer,RequestData> >();
+		failover_queue = new ArrayList<RequestData>();
+		hedge_queue = new PriorityQueue<RequestData>(16,new Comparator<RequestData>() {
+			public int compare(RequestData a, RequestData b) {
+				return a.hedge_time<b.hedge_time ? -1 : (a.hedge_time==b.hedge_time ? 0 : 1);
+			}
+		});
+		latency_estimators = new ConcurrentHashMap<String,LatencyEstimator>();
+		connections = new ConcurrentHashMap<ConnectionKey,Connection>();
+		hedge_credit = new AtomicLong();
 		this.logger = Logger.getLogger("dk.i1.diameter.node");
 	}
 	
@@ -99,7 +169,31 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	 * For details about {@link UnsupportedTransportProtocolException} see {@link Node#start}
 	 */
 	public void start() throws java.io.IOException, UnsupportedTransportProtocolException {
-		node.start();
+		if(settings.overloadControl())
+			overload_control = new OverloadControl(this,logger);
+		else
+			overload_control = null;
+		if(settings.duplicateDetectionLifetime()!=0)
+			duplicate_detector = new DuplicateDetector(node,settings.duplicateDetectionLifetime(),settings.duplicateDetectionMemoryLimit(),logger);
+		else
+			duplicate_detector = null;
+		//The exporter is started first so a port that cannot be bound
+		//fails start() before anything else runs
+		MetricsExporter exporter = null;
+		if(settings.metricsPort()!=0) {
+			exporter = new MetricsExporter(this,logger);
+			exporter.start(settings.metricsPort());
+		}
+		boolean node_started = false;
+		try {
+			node.start();
+			node_started = true;
+		} finally {
+			if(!node_started && exporter!=null)
+				exporter.stop();
+		}
+		metrics_exporter = exporter;
+		stopping = false;
 		stop_timeout_thread = false;
 		timeout_thread_actively_waiting = false;
 		timeout_thread = new TimeoutThread();
@@ -120,21 +214,36 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	 * @since grace_time parameter introduced in 0.9.3
 	 */
 	public void stop(long grace_time) {
+		stopping = true;
+		if(metrics_exporter!=null) {
+			metrics_exporter.stop();
+			metrics_exporter = null;
+		}
 		node.stop(grace_time);
 		stop_timeout_thread = true;
 		synchronized(req_map) {
 			for(Map.Entry<ConnectionKey,Map<Integer,RequestData>> e_c : req_map.entrySet()) {
 				ConnectionKey connkey = e_c.getKey();
 				for(Map.Entry<Integer,RequestData> e_s : e_c.getValue().entrySet()) {
-					handleAnswer(null,connkey,e_s.getValue().state);
+					RequestData rd = e_s.getValue();
+					if(settle(rd,false))
+						handleAnswer(null,connkey,rd.state);
 				}
 			}
+			for(RequestData rd : failover_queue) {
+				if(settle(rd,false))
+					handleAnswer(null,rd.connkey,rd.state);
+			}
+			failover_queue.clear();
+			hedge_queue.clear();
 			req_map.notify();
 		}
-		try {
-			timeout_thread.join();
-		} catch(java.lang.InterruptedException ex) {}
-		timeout_thread = null;
+		if(timeout_thread!=null) { //null if start() failed
+			try {
+				timeout_thread.join();
+			} catch(java.lang.InterruptedException ex) {}
+			timeout_thread = null;
+		}
 		//Fastest way to clear it...
 		req_map = new HashMap<ConnectionKey,Map<Integer,RequestData> >();
 	}
@@ -231,12 +340,14 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	 */
 	protected void handleAnswer(Message answer, ConnectionKey answer_connkey, Object state) {
 		//default implementation: silently discard
-		logger.log(Level.FINE,"Handling incoming answer, command_code="+answer.hdr.command_code+", end2end="+answer.hdr.end_to_end_identifier+", hopbyhop="+answer.hdr.hop_by_hop_identifier);
+		if(answer!=null)
+			logger.log(Level.FINE,"Handling incoming answer, command_code="+answer.hdr.command_code+", end2end="+answer.hdr.end_to_end_identifier+", hopbyhop="+answer.hdr.hop_by_hop_identifier);
 	}
 	
 	/**
 	 * Answer a request.
 	 * The answer is sent to the connection. If the connection has been lost in the meantime it is ignored.
+	 * If duplicate detection is enabled the answer is remembered so it can be sent again if the request is retransmitted.
 	 * @param answer The answer message.
 	 * @param connkey The connection to send the answer to.
 	 * @throws NotAnAnswerException If the answer has the R bit set in the header.
@@ -244,6 +355,10 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	protected final void answer(Message answer, ConnectionKey connkey) throws NotAnAnswerException {
 		if(answer.hdr.isRequest())
 			throw new NotAnAnswerException();
+		if(overload_control!=null)
+			overload_control.prepareAnswer(answer,connkey);
+		if(duplicate_detector!=null)
+			duplicate_detector.handleAnswer(answer,connkey);
 		try {
 			node.sendMessage(answer,connkey);
 		} catch(StaleConnectionException e) {}
@@ -344,20 +459,63 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	public final void sendRequest(Message request, ConnectionKey connkey, Object state, long timeout) throws StaleConnectionException, NotARequestException {
 		if(!request.hdr.isRequest())
 			throw new NotARequestException();
+		if(overload_control!=null)
+			overload_control.prepareRequest(request);
+		sendToConnection(request,connkey,new RequestData(state,calcTimeoutTime(timeout)),false);
+	}
+	/**
+	 * Register and send a request.
+	 * @param rate_limited If true then the request is only sent if the connection is within its outbound rate limit.
+	 * @return False if the request was not sent due to the rate limit.
+	 */
+	private boolean sendToConnection(Message request, ConnectionKey connkey, RequestData rd, boolean rate_limited) throws StaleConnectionException {
 		request.hdr.hop_by_hop_identifier = node.nextHopByHopIdentifier(connkey);
+		rd.connkey = connkey;
+		rd.send_time = System.nanoTime();
+		rd.application_id = request.hdr.application_id;
+		rd.command_code = request.hdr.command_code;
+		rd.conn = connections.get(connkey);
 		//remember state
 		synchronized(req_map) {
 			Map<Integer,RequestData> e_c = req_map.get(connkey);
 			if(e_c==null) throw new StaleConnectionException();
-			e_c.put(request.hdr.hop_by_hop_identifier,new RequestData(state,System.currentTimeMillis()+timeout));
-			if(timeout>=0 && !timeout_thread_actively_waiting)
+			e_c.put(request.hdr.hop_by_hop_identifier,rd);
+			if(rd.conn!=null)
+				rd.conn.metrics.outstanding_requests.increment();
+			if(rd.timeout_time>=0 && !timeout_thread_actively_waiting)
 				req_map.notify(); //wake up timeout thread
 		}
-		node.sendMessage(request,connkey);
+		boolean sent=false;
+		StaleConnectionException stale=null;
+		try {
+			if(rate_limited)
+				sent = node.sendRequestWithinRateLimit(request,connkey);
+			else {
+				node.sendMessage(request,connkey);
+				sent = true;
+			}
+		} catch(StaleConnectionException ex) {
+			stale = ex;
+		}
+		if(!sent) {
+			//Forget the request again so it is not reported (or failed
+			//over) a second time when the connection-lost event arrives.
+			synchronized(req_map) {
+				Map<Integer,RequestData> e_c = req_map.get(connkey);
+				if(e_c!=null && e_c.remove(request.hdr.hop_by_hop_identifier)!=null && rd.conn!=null)
+					rd.conn.metrics.outstanding_requests.decrement();
+			}
+			if(stale!=null)
+				throw stale;
+			return false;
+		}
 		logger.log(Level.FINER,"Request sent, command_code="+request.hdr.command_code+" hop_by_hop_identifier="+request.hdr.hop_by_hop_identifier);
-		//note: if Node.sendMessage() throws StaleConnectionException
-		//then we should theoretically remove the registered request,
-		//but that is done by the ConnectionListener.handle() method.
+		return true;
+	}
+	private static long calcTimeoutTime(long timeout) {
+		if(timeout<0)
+			return -1;
+		return System.currentTimeMillis()+timeout;
 	}
 	/**
 	 * Sends a request.
@@ -387,15 +545,48 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	 * @since 0.9.6.8 timeout parameter introduced
 	 */
 	public final void sendRequest(Message request, Peer peers[], Object state, long timeout) throws NotRoutableException, NotARequestException {
+		if(!request.hdr.isRequest())
+			throw new NotARequestException();
 		logger.log(Level.FINER,"Sending request (command_code="+request.hdr.command_code+") to "+peers.length+" peers");
+		if(overload_control!=null) {
+			overload_control.prepareRequest(request);
+			throttleDestination(request);
+		}
 		request.hdr.end_to_end_identifier = node.nextEndToEndIdentifier();
+		RequestData rd = new RequestData(state,calcTimeoutTime(timeout));
+		boolean hedged = peers.length>1 && settings.isHedgedCommandCode(request.hdr.command_code);
+		if(settings.failoverTimeout()!=0 || hedged) {
+			rd.request = request;
+			rd.peers = peers;
+		}
+		switch(sendToPeers(request,peers,rd,null)) {
+			case sent:
+				if(hedged)
+					scheduleHedge(rd);
+				return;
+			case all_stale:
+				throw new NotRoutableException("All capable peer connections went stale");
+			case no_capable_peers:
+				throw new NotRoutableException("No capable peers");
+			case rate_limited:
+				throw new NotRoutableException("All capable peers are busy (over their rate limit or output watermark)");
+			case throttled:
+				throw new NotRoutableException("All capable peers are overloaded");
+			default:
+				throw new NotRoutableException();
+		}
+	}
+	private RouteResult sendToPeers(Message request, Peer peers[], RequestData rd, ConnectionKey exclude) {
 		boolean any_peers = false;
 		boolean any_capable_peers=false;
+		boolean any_rate_limited=false;
+		boolean any_throttled=false;
 		for(Peer p : peers) {
 			any_peers = true;
 			logger.log(Level.FINER,"Considering sending request to "+p.host());
 			ConnectionKey connkey = node.findConnection(p);
 			if(connkey==null) continue;
+			if(connkey.equals(exclude)) continue;
 			Peer p2 = node.connectionKey2Peer(connkey);
 			if(p2==null) continue;
 			if(!node.isAllowedApplication(request,p2)) {
@@ -403,21 +594,396 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 				continue;
 			}
 			any_capable_peers=true;
+			WatchdogState watchdog_state = node.watchdogState(connkey);
+			if(watchdog_state==WatchdogState.suspect || watchdog_state==WatchdogState.reopen) {
+				logger.log(Level.FINER,"peer "+p2.host()+" is not answering watchdogs. Skipping it");
+				continue;
+			}
+			if(overload_control!=null && overload_control.throttleHost(p2.host())) {
+				logger.log(Level.FINER,"peer "+p2.host()+" is overloaded. Diverting request");
+				any_throttled = true;
+				continue;
+			}
 			try {
-				sendRequest(request,connkey,state,timeout);
-				return;
+				if(sendToConnection(request,connkey,rd,true))
+					return RouteResult.sent;
+				any_rate_limited = true;
+				continue;
 			} catch (StaleConnectionException e) {
 				//ok
 			}
 			logger.log(Level.FINE,"Setting retransmit bit");
 			request.hdr.setRetransmit(true);
 		}
-		if(any_capable_peers)
-			throw new NotRoutableException("All capable peer connections went stale");
+		if(any_rate_limited)
+			return RouteResult.rate_limited;
+		else if(any_throttled)
+			return RouteResult.throttled;
+		else if(any_capable_peers)
+			return RouteResult.all_stale;
 		else if(any_peers)
-			throw new NotRoutableException("No capable peers");
+			return RouteResult.no_capable_peers;
 		else
-			throw new NotRoutableException();
+			return RouteResult.no_peers;
+	}
+	
+	/**
+	 * Throttle a request if its destination host or realm is overloaded.
+	 * Realm reports only apply to realm-routed requests, ie. requests
+	 * without a Destination-Host (RFC7683).
+	 */
+	private void throttleDestination(Message request) throws NotRoutableException {
+		AVP avp = request.find(ProtocolConstants.DI_DESTINATION_HOST);
+		if(avp!=null) {
+			String host = new AVP_UTF8String(avp).queryValue();
+			if(overload_control.throttleHost(host))
+				throw new NotRoutableException("Request throttled because "+host+" is overloaded");
+			return;
+		}
+		avp = request.find(ProtocolConstants.DI_DESTINATION_REALM);
+		if(avp!=null) {
+			String realm = new AVP_UTF8String(avp).queryValue();
+			if(overload_control.throttleRealm(realm))
+				throw new NotRoutableException("Request throttled because realm "+realm+" is overloaded");
+		}
+	}
+	
+	/**
+	 * Calculate the overload of this node.
+	 * When overload control is enabled this method is called at most once
+	 * a second while answering peers that support overload control, and
+	 * the result is reported to them in an OC-OLR AVP.
+	 * The default implementation compares the system load average per
+	 * processor with {@link NodeSettings#overloadLoadThreshold}: at the
+	 * threshold the reduction is 0%, and at twice the threshold it is 100%.
+	 * Subclasses that queue requests for worker threads can override this
+	 * and base the reduction on the queue depth instead.
+	 * @return The requested traffic reduction in percent (0-100). 0 means not overloaded.
+	 * @since 0.9.7
+	 */
+	protected int calculateOverloadReduction() {
+		double threshold = settings.overloadLoadThreshold();
+		if(threshold==0)
+			return 0;
+		java.lang.management.OperatingSystemMXBean os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+		double load = os.getSystemLoadAverage();
+		if(load<0)
+			return 0; //not available
+		load /= os.getAvailableProcessors();
+		if(load<=threshold)
+			return 0;
+		return (int)Math.min(100,(load/threshold-1.0)*100);
+	}
+	
+	/**
+	 * Write the metrics for the metrics endpoint.
+	 * Called by the HTTP server thread for each scrape of the endpoint
+	 * (see {@link NodeSettings#setMetricsPort}). This implementation writes
+	 * the message counters of the node and its connections, and the
+	 * requests, answers and latencies per command. Subclasses can override
+	 * it to add their own metrics, and should call super.writeMetrics().
+	 * @param out The writer to write the metrics to.
+	 * @since 0.9.7
+	 */
+	protected void writeMetrics(MetricsWriter out) {
+		NodeMetrics nm = node.nodeMetrics();
+		out.family("diameter_connections","gauge","Connections that are ready");
+		out.sample("diameter_connections").value(nm.getConnections());
+		out.family("diameter_messages_received_total","counter","Messages received");
+		out.sample("diameter_messages_received_total").value(nm.getMessagesIn());
+		out.family("diameter_received_bytes_total","counter","Bytes of messages received");
+		out.sample("diameter_received_bytes_total").value(nm.getBytesIn());
+		out.family("diameter_messages_sent_total","counter","Messages sent");
+		out.sample("diameter_messages_sent_total").value(nm.getMessagesOut());
+		out.family("diameter_sent_bytes_total","counter","Bytes of messages sent");
+		out.sample("diameter_sent_bytes_total").value(nm.getBytesOut());
+		out.family("diameter_decode_errors_total","counter","Messages that could not be decoded");
+		out.sample("diameter_decode_errors_total").value(nm.getDecodeErrors());
+		out.family("diameter_output_queue_bytes","gauge","Bytes queued for output");
+		out.sample("diameter_output_queue_bytes").value(nm.getOutputQueueBytes());
+		out.family("diameter_outstanding_requests","gauge","Requests waiting for an answer");
+		out.sample("diameter_outstanding_requests").value(nm.getOutstandingRequests());
+		
+		out.family("diameter_connection_messages_received_total","counter","Messages received per connection");
+		for(Connection conn : connections.values())
+			connectionSample(out,"diameter_connection_messages_received_total",conn).value(conn.metrics.messages_in.sum());
+		out.family("diameter_connection_received_bytes_total","counter","Bytes of messages received per connection");
+		for(Connection conn : connections.values())
+			connectionSample(out,"diameter_connection_received_bytes_total",conn).value(conn.metrics.bytes_in.sum());
+		out.family("diameter_connection_messages_sent_total","counter","Messages sent per connection");
+		for(Connection conn : connections.values())
+			connectionSample(out,"diameter_connection_messages_sent_total",conn).value(conn.metrics.messages_out.sum());
+		out.family("diameter_connection_sent_bytes_total","counter","Bytes of messages sent per connection");
+		for(Connection conn : connections.values())
+			connectionSample(out,"diameter_connection_sent_bytes_total",conn).value(conn.metrics.bytes_out.sum());
+		out.family("diameter_connection_decode_errors_total","counter","Messages that could not be decoded per connection");
+		for(Connection conn : connections.values())
+			connectionSample(out,"diameter_connection_decode_errors_total",conn).value(conn.metrics.decode_errors.sum());
+		out.family("diameter_connection_output_queue_bytes","gauge","Bytes queued for output per connection");
+		for(Connection conn : connections.values())
+			connectionSample(out,"diameter_connection_output_queue_bytes",conn).value(conn.metrics.getOutputQueueBytes());
+		out.family("diameter_connection_outstanding_requests","gauge","Requests waiting for an answer per connection");
+		for(Connection conn : connections.values())
+			connectionSample(out,"diameter_connection_outstanding_requests",conn).value(conn.metrics.outstanding_requests.sum());
+		
+		CommandMetrics commands[] = nm.commands();
+		out.family("diameter_requests_received_total","counter","Requests received per command");
+		for(CommandMetrics cm : commands)
+			commandSample(out,"diameter_requests_received_total",cm).value(cm.requests_in.sum());
+		out.family("diameter_requests_sent_total","counter","Requests sent per command");
+		for(CommandMetrics cm : commands)
+			commandSample(out,"diameter_requests_sent_total",cm).value(cm.requests_out.sum());
+		out.family("diameter_answers_received_total","counter","Answers received per command and result-code");
+		for(CommandMetrics cm : commands) {
+			for(CommandMetrics.ResultCount rc : cm.answersIn())
+				resultCodeLabel(commandSample(out,"diameter_answers_received_total",cm),rc).value(rc.count.sum());
+		}
+		out.family("diameter_answers_sent_total","counter","Answers sent per command and result-code");
+		for(CommandMetrics cm : commands) {
+			for(CommandMetrics.ResultCount rc : cm.answersOut())
+				resultCodeLabel(commandSample(out,"diameter_answers_sent_total",cm),rc).value(rc.count.sum());
+		}
+		out.family("diameter_request_latency_seconds","summary","Time from sending a request until its answer arrived per command");
+		for(CommandMetrics cm : commands)
+			latencySummary(out,"diameter_request_latency_seconds",null,cm,cm.latency);
+		out.family("diameter_peer_request_latency_seconds","summary","Time from sending a request until its answer arrived per peer and command");
+		for(CommandMetrics cm : commands) {
+			for(Map.Entry<String,LatencyHistogram> e : cm.peer_latency.entrySet())
+				latencySummary(out,"diameter_peer_request_latency_seconds",e.getKey(),cm,e.getValue());
+		}
+	}
+	private static MetricsWriter connectionSample(MetricsWriter out, String name, Connection conn) {
+		return out.sample(name).label("peer",conn.host_id).label("connection",conn.key.hashCode());
+	}
+	private static MetricsWriter commandSample(MetricsWriter out, String name, CommandMetrics cm) {
+		return commandLabels(out.sample(name),cm);
+	}
+	private static MetricsWriter commandLabels(MetricsWriter out, CommandMetrics cm) {
+		if(cm.isOther())
+			return out.label("application","other").label("command","other");
+		return out.label("application",cm.application_id&0xffffffffL).label("command",cm.command_code);
+	}
+	private static MetricsWriter resultCodeLabel(MetricsWriter out, CommandMetrics.ResultCount rc) {
+		if(rc.result_code==CommandMetrics.other_result_code)
+			return out.label("result_code","other");
+		return out.label("result_code",rc.result_code&0xffffffffL);
+	}
+	private static final double summary_quantiles[] = {0.5,0.99,0.999};
+	private static final String summary_quantile_labels[] = {"0.5","0.99","0.999"};
+	private static void latencySummary(MetricsWriter out, String name, String peer, CommandMetrics cm, LatencyHistogram h) {
+		long count = h.count();
+		if(count==0)
+			return;
+		for(int i=0; i<summary_quantiles.length; i++) {
+			out.sample(name);
+			if(peer!=null)
+				out.label("peer",peer);
+			commandLabels(out,cm)
+			   .label("quantile",summary_quantile_labels[i]).valueMicroseconds(h.quantile(summary_quantiles[i],1));
+		}
+		out.sample(name,"_sum");
+		if(peer!=null)
+			out.label("peer",peer);
+		commandLabels(out,cm).valueMicroseconds(h.sum());
+		out.sample(name,"_count");
+		if(peer!=null)
+			out.label("peer",peer);
+		commandLabels(out,cm).value(count);
+	}
+	
+	/**
+	 * Returns the latency of the requests with a command.
+	 * The latency of a request is the time from it is sent until its
+	 * answer arrives. Requests that are not answered (timeouts, lost
+	 * connections) are not included. The latencies are kept for each
+	 * command and for each peer and command, and are counted in
+	 * log-linear histograms that can be recorded into by any number of
+	 * threads without locking.
+	 * @param application_id The application-id of the command
+	 * @param command_code The command code
+	 * @param peer The host-id of the peer, or null for all peers
+	 * @return A snapshot of all the latencies recorded, or null if no requests with the command have been answered by the peer.
+	 * @since 0.9.7
+	 */
+	public LatencySnapshot requestLatency(int application_id, int command_code, String peer) {
+		LatencyHistogram h = latencyHistogram(application_id,command_code,peer);
+		return h!=null ? h.snapshot() : null;
+	}
+	/**
+	 * Returns the latency of the requests with a command since the previous call.
+	 * As {@link #requestLatency} but the snapshot only has the latencies
+	 * recorded since the previous call of this method for the same
+	 * command and peer, so it can be called periodically to follow the
+	 * latency over time.
+	 * @param application_id The application-id of the command
+	 * @param command_code The command code
+	 * @param peer The host-id of the peer, or null for all peers
+	 * @return A snapshot of the latencies recorded since the previous call, or null if no requests with the command have been answered by the peer.
+	 * @since 0.9.7
+	 */
+	public LatencySnapshot requestLatencyInterval(int application_id, int command_code, String peer) {
+		LatencyHistogram h = latencyHistogram(application_id,command_code,peer);
+		return h!=null ? h.intervalSnapshot() : null;
+	}
+	private LatencyHistogram latencyHistogram(int application_id, int command_code, String peer) {
+		CommandMetrics cm = node.nodeMetrics().existingCommand(application_id,command_code);
+		if(cm==null)
+			return null;
+		if(peer==null)
+			return cm.latency.count()!=0 ? cm.latency : null;
+		return cm.peer_latency.get(peer);
+	}
+	
+	/**
+	 * Try to fail over a request whose connection has been lost.
+	 * The request is retransmitted with the T-bit set, or held in the
+	 * failover queue if no capable peer is currently available.
+	 * @return False if the request cannot (or can no longer) be failed over.
+	 */
+	private boolean failOver(RequestData rd, long now) {
+		if(rd.request==null || settings.failoverTimeout()==0 || stopping)
+			return false;
+		if(rd.failover_deadline==0)
+			rd.failover_deadline = now + settings.failoverTimeout();
+		if(now>=rd.failover_deadline)
+			return false;
+		if(rd.timeout_time>=0 && now>=rd.timeout_time)
+			return false;
+		if(rd.hedge_group!=null) {
+			synchronized(req_map) {
+				if(rd.hedge_group.answered)
+					return false; //another copy has been answered
+			}
+		}
+		rd.request.hdr.setRetransmit(true);
+		long generation;
+		synchronized(req_map) {
+			generation = connections_up;
+		}
+		for(;;) {
+			if(sendToPeers(rd.request,rd.peers,rd,null)==RouteResult.sent) {
+				logger.log(Level.FINE,"Request (end2end="+rd.request.hdr.end_to_end_identifier+") failed over");
+				return true;
+			}
+			synchronized(req_map) {
+				//If a connection came up after sendToPeers() looked,
+				//retryFailovers() may already have run and would never
+				//see the request, so try again instead of holding it
+				if(connections_up==generation) {
+					logger.log(Level.FINE,"No capable peer for failing over request (end2end="+rd.request.hdr.end_to_end_identifier+"). Holding it");
+					failover_queue.add(rd);
+					if(!timeout_thread_actively_waiting)
+						req_map.notify(); //wake up timeout thread so it can expire it
+					return true;
+				}
+				generation = connections_up;
+			}
+		}
+	}
+	
+	//Retry the requests waiting for a capable peer. Called when a new connection is ready.
+	private void retryFailovers() {
+		List<RequestData> waiting;
+		synchronized(req_map) {
+			if(failover_queue.isEmpty())
+				return;
+			waiting = failover_queue;
+			failover_queue = new ArrayList<RequestData>();
+		}
+		long now = System.currentTimeMillis();
+		for(RequestData rd : waiting) {
+			if(!failOver(rd,now) && settle(rd,false))
+				handleAnswer(null,rd.connkey,rd.state);
+		}
+	}
+	
+	private LatencyEstimator latencyEstimator(String host_id) {
+		LatencyEstimator le = latency_estimators.get(host_id);
+		if(le==null) {
+			le = new LatencyEstimator();
+			LatencyEstimator prev = ((ConcurrentHashMap<String,LatencyEstimator>)latency_estimators).putIfAbsent(host_id,le);
+			if(prev!=null)
+				le = prev;
+		}
+		return le;
+	}
+	
+	//Schedule sending a hedge for a request if we know the latency of the peer it was sent to
+	private void scheduleHedge(RequestData rd) {
+		//Every eligible request earns a fraction of a hedge, up to a burst of 10 hedges
+		long credit;
+		do {
+			credit = hedge_credit.get();
+		} while(credit<1000 && !hedge_credit.compareAndSet(credit,Math.min(credit+settings.hedgeBudget(),1000)));
+		Peer peer = node.connectionKey2Peer(rd.connkey);
+		if(peer==null)
+			return;
+		long p95 = latencyEstimator(peer.host()).quantile(0.95);
+		if(p95<0)
+			return; //not enough samples yet
+		synchronized(req_map) {
+			if(rd.done)
+				return; //answered already
+			rd.hedge_group = new HedgeGroup();
+			rd.hedge_group.outstanding = 1;
+			rd.hedge_time = System.currentTimeMillis() + Math.max(p95/1000,1);
+			hedge_queue.add(rd);
+			req_map.notify(); //wake up timeout thread so it can send the hedge
+		}
+	}
+	
+	//Called by the timeout thread when the hedge time of a request has been reached.
+	private void sendHedge(RequestData rd) {
+		synchronized(req_map) {
+			if(rd.hedge_group.answered || rd.hedge_group.outstanding==0)
+				return;
+		}
+		long credit;
+		do {
+			credit = hedge_credit.get();
+			if(credit<100) {
+				logger.log(Level.FINER,"Hedge budget exhausted");
+				return;
+			}
+		} while(!hedge_credit.compareAndSet(credit,credit-100));
+		Message copy = new Message(rd.request);
+		copy.hdr.setRetransmit(true);
+		RequestData hedge = new RequestData(rd.state,rd.timeout_time);
+		hedge.request = copy;
+		hedge.peers = rd.peers;
+		hedge.hedge_group = rd.hedge_group;
+		synchronized(req_map) {
+			hedge.hedge_group.outstanding++;
+		}
+		if(sendToPeers(copy,rd.peers,hedge,rd.connkey)==RouteResult.sent) {
+			logger.log(Level.FINE,"Hedged request (end2end="+copy.hdr.end_to_end_identifier+")");
+		} else {
+			synchronized(req_map) {
+				hedge.hedge_group.outstanding--;
+			}
+		}
+	}
+	
+	/**
+	 * Decide whether the answer (or non-answer) to a request should be passed to handleAnswer().
+	 * Only the first answer to a hedged request is passed on, and a
+	 * non-answer is only passed on when no copies are outstanding.
+	 */
+	private boolean settle(RequestData rd, boolean answered) {
+		synchronized(req_map) {
+			rd.done = true;
+			HedgeGroup hg = rd.hedge_group;
+			if(hg==null)
+				return true;
+			hg.outstanding--;
+			if(hg.answered)
+				return false;
+			if(answered) {
+				hg.answered = true;
+				return true;
+			}
+			return hg.outstanding<=0;
+		}
 	}
 	
 	
@@ -425,30 +991,43 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	/**
 	 * Handle an incoming message.
 	 * This implementation calls handleRequest(), or matches an answer to an outstanding request and calls handleAnswer().
+	 * Duplicate requests are answered from the duplicate detection cache (if enabled) without calling handleRequest().
 	 * Subclasses should not override this method.
 	 */
 	public final boolean handle(Message msg, ConnectionKey connkey, Peer peer) {
 		if(msg.hdr.isRequest()) {
 			logger.log(Level.FINER,"Handling request");
+			if(overload_control!=null)
+				overload_control.processRequest(msg,connkey);
+			if(duplicate_detector!=null && duplicate_detector.handleRequest(msg,connkey))
+				return true;
 			handleRequest(msg,connkey,peer);
 		} else {
 			logger.log(Level.FINER,"Handling answer, hop_by_hop_identifier="+msg.hdr.hop_by_hop_identifier);
+			if(overload_control!=null)
+				overload_control.processAnswer(msg);
 			//locate state
-			Object state=null;
-			boolean found=false;
+			RequestData rd=null;
 			synchronized(req_map) {
 				Map<Integer,RequestData> e_c = req_map.get(connkey);
 				if(e_c!=null) {
-					RequestData rd = e_c.get(msg.hdr.hop_by_hop_identifier);
-					if(rd!=null) {
-						state = rd.state;
-						e_c.remove(msg.hdr.hop_by_hop_identifier);
-						found = true;
-					}
+					rd = e_c.remove(msg.hdr.hop_by_hop_identifier);
 				}
 			}
-			if(found) {
-				handleAnswer(msg,connkey,state);
+			if(rd!=null) {
+				long latency = System.nanoTime()-rd.send_time;
+				if(rd.conn!=null) {
+					rd.conn.metrics.outstanding_requests.decrement();
+					if(rd.conn.health!=null)
+						rd.conn.health.recordAnswer(latency,CommandMetrics.resultCode(msg)>=3000);
+				}
+				node.nodeMetrics().command(msg.hdr.application_id,msg.hdr.command_code).recordLatency(peer.host(),latency);
+				if(rd.peers!=null && settings.isHedgedCommandCode(msg.hdr.command_code))
+					latencyEstimator(peer.host()).record(latency);
+				if(settle(rd,true))
+					handleAnswer(msg,connkey,rd.state);
+				else
+					logger.log(Level.FINE,"Discarding answer to hedged request (end2end="+msg.hdr.end_to_end_identifier+"). Another copy was answered first");
 			} else {
 				logger.log(Level.INFO,"Answer did not match any outstanding request");
 			}
@@ -458,30 +1037,57 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 	//connectionlistener
 	/**
 	 * Handle a a connection state change.
-	 * If the connection has been lost this implementation calls handleAnswer(null,...) for outstanding requests on the connection.
+	 * If the connection has been lost this implementation fails over the
+	 * outstanding requests on the connection (if enabled and possible) and
+	 * calls handleAnswer(null,...) for the rest.
 	 * Subclasses should not override this method.
 	 */
 	public final void handle(ConnectionKey connkey, Peer peer, boolean up) {
-		synchronized(req_map) {
-			if(up) {
+		if(up) {
+			Connection conn = node.connection(connkey);
+			if(conn!=null)
+				connections.put(connkey,conn);
+			synchronized(req_map) {
 				//register the new connection
 				req_map.put(connkey, new HashMap<Integer,RequestData>());
-			} else {
-				//find outstanding requests, and call handleAnswer with NULL
-				Map<Integer,RequestData> e_c = req_map.get(connkey);
-				if(e_c==null) return;
-				//forget the connection
-				req_map.remove(connkey);
-				//remove the entries
-				for(Map.Entry<Integer,RequestData> e_s : e_c.entrySet()) {
-					handleAnswer(null,connkey,e_s.getValue().state);
-				}
+				connections_up++;
 			}
+			retryFailovers();
+			return;
+		}
+		connections.remove(connkey);
+		if(overload_control!=null)
+			overload_control.connectionDown(connkey);
+		Map<Integer,RequestData> e_c;
+		synchronized(req_map) {
+			//find outstanding requests and forget the connection
+			e_c = req_map.remove(connkey);
+		}
+		if(e_c==null) return;
+		//Fail over the entries, or call handleAnswer with NULL
+		long now = System.currentTimeMillis();
+		for(Map.Entry<Integer,RequestData> e_s : e_c.entrySet()) {
+			RequestData rd = e_s.getValue();
+			if(!failOver(rd,now) && settle(rd,false))
+				handleAnswer(null,connkey,rd.state);
 		}
 	}
 	
+	/**
+	 * Handle a change in writability of a connection.
+	 * The default implementation does nothing. Requests sent with
+	 * {@link #sendRequest(Message,Peer[],Object)} are automatically routed
+	 * to other peers while a connection is unwritable. Subclasses that send
+	 * to specific connections can override this method to pause and resume
+	 * their producers.
+	 * @since 0.9.7
+	 */
+	public void handleWritability(ConnectionKey connkey, Peer peer, boolean writable) {
+	}
+	
 	/**
 	 * Thread for handling request timeouts. The thread is not accurate but does ensure that pending requests are timed out
+	 * The thread also sends hedged requests when their hedge time has been reached.
 	 */
 	private class TimeoutThread extends Thread {
 		public TimeoutThread() {
@@ -489,30 +1095,80 @@ public class NodeManager implements MessageDispatcher, ConnectionListener {
 		}
 		public void run() {
 			while(!stop_timeout_thread) {
+				List<RequestData> due_hedges = null;
 				synchronized(req_map) {
 					boolean any_timeouts_found = false;
 					long now = System.currentTimeMillis();
 					for(Map.Entry<ConnectionKey,Map<Integer,RequestData>> e_c : req_map.entrySet()) {
 						ConnectionKey connkey = e_c.getKey();
-						for(Map.Entry<Integer,RequestData> e_s : e_c.getValue().entrySet()) {
+						for(Iterator<Map.Entry<Integer,RequestData>> it = e_c.getValue().entrySet().iterator();
+						    it.hasNext();
+						   )
+						{
+							Map.Entry<Integer,RequestData> e_s = it.next();
 							RequestData rd = e_s.getValue();
 							if(rd.timeout_time>=0) any_timeouts_found=true;
 							if(rd.timeout_time>=0 && rd.timeout_time<=now) {
-								e_c.getValue().remove(e_s.getKey());
+								it.remove();
 								logger.log(Level.FINEST,"Timing out request");
-								handleAnswer(null,connkey,rd.state);
+								FlightRecorderEvents.RequestTimeoutEvent event = new FlightRecorderEvents.RequestTimeoutEvent();
+								if(event.isEnabled()) {
+									event.peer = rd.conn!=null ? rd.conn.host_id : null;
+									event.applicationId = rd.application_id;
+									event.commandCode = rd.command_code;
+									event.hopByHopIdentifier = e_s.getKey();
+									event.waited = System.nanoTime()-rd.send_time;
+									event.commit();
+								}
+								if(rd.conn!=null) {
+									rd.conn.metrics.outstanding_requests.decrement();
+									if(rd.conn.health!=null)
+										rd.conn.health.recordTimeout();
+								}
+								if(settle(rd,false))
+									handleAnswer(null,connkey,rd.state);
 							}
 						}
 					}
-					try {
-						if(any_timeouts_found) {
-							timeout_thread_actively_waiting = true;
-							req_map.wait(1000);
-						} else {
-							req_map.wait();
+					for(Iterator<RequestData> it = failover_queue.iterator(); it.hasNext(); ) {
+						RequestData rd = it.next();
+						any_timeouts_found = true;
+						if(now>=rd.failover_deadline ||
+						   (rd.timeout_time>=0 && rd.timeout_time<=now)) {
+							it.remove();
+							logger.log(Level.FINE,"Giving up failing over request");
+							if(settle(rd,false))
+								handleAnswer(null,rd.connkey,rd.state);
 						}
-						timeout_thread_actively_waiting = false;
-					} catch(java.lang.InterruptedException ex) {}
+					}
+					while(!hedge_queue.isEmpty() && hedge_queue.peek().hedge_time<=now) {
+						if(due_hedges==null)
+							due_hedges = new ArrayList<RequestData>();
+						due_hedges.add(hedge_queue.poll());
+					}
+					if(due_hedges==null) {
+						try {
+							long wait_time = any_timeouts_found ? 1000 : 0;
+							if(!hedge_queue.isEmpty()) {
+								long t = Math.max(hedge_queue.peek().hedge_time-now,1);
+								if(wait_time==0 || t<wait_time)
+									wait_time = t;
+							}
+							if(wait_time!=0) {
+								timeout_thread_actively_waiting = true;
+								req_map.wait(wait_time);
+							} else {
+								req_map.wait();
+							}
+							timeout_thread_actively_waiting = false;
+						} catch(java.lang.InterruptedException ex) {}
+					}
+				}
+				//Hedges are sent without holding the lock because sending
+				//involves the node's connection lock.
+				if(due_hedges!=null) {
+					for(RequestData rd : due_hedges)
+						sendHedge(rd);
 				}
 			}
 		}
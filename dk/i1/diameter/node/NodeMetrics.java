@@ -0,0 +1,132 @@
+package dk.i1.diameter.node;
+import dk.i1.diameter.Message;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics registry of a node.
+ * Messages are counted per node and per connection (in
+ * {@link ConnectionMetrics}), and requests and answers per command (in
+ * {@link CommandMetrics}). The counters are LongAdders, which are striped
+ * so the network threads and the threads sending messages do not contend
+ * on them, and the command metrics are found in a small copy-on-write
+ * array, so recording a message costs a few uncontended atomic additions
+ * and no locking or allocation.
+ */
+class NodeMetrics implements NodeMetricsMXBean {
+	private final Node node;
+	final LongAdder messages_in;
+	final LongAdder bytes_in;
+	final LongAdder messages_out;
+	final LongAdder bytes_out;
+	final LongAdder decode_errors;
+	private volatile CommandMetrics commands[]; //copy-on-write
+	private volatile CommandMetrics other; //the commands beyond max_commands
+	//The most commands that are kept apart. Peers can send any command
+	//code in answers, so without a limit they could grow the array (and
+	//the number of MXBeans) without bound
+	static final int max_commands = 64;
+	
+	NodeMetrics(Node node) {
+		this.node = node;
+		messages_in = new LongAdder();
+		bytes_in = new LongAdder();
+		messages_out = new LongAdder();
+		bytes_out = new LongAdder();
+		decode_errors = new LongAdder();
+		commands = new CommandMetrics[0];
+	}
+	
+	//A message has been received on a connection (before decoding)
+	void received(Connection conn, int bytes) {
+		messages_in.increment();
+		bytes_in.add(bytes);
+		conn.metrics.messages_in.increment();
+		conn.metrics.bytes_in.add(bytes);
+	}
+	//A message has been queued for output on a connection
+	void sent(Connection conn, Message msg, int bytes) {
+		messages_out.increment();
+		bytes_out.add(bytes);
+		conn.metrics.messages_out.increment();
+		conn.metrics.bytes_out.add(bytes);
+		command(msg.hdr.application_id,msg.hdr.command_code).sent(msg);
+	}
+	void decodeError(Connection conn) {
+		decode_errors.increment();
+		conn.metrics.decode_errors.increment();
+	}
+	
+	/**
+	 * Returns the metrics of a command, which are created (and registered
+	 * as an MXBean) the first time the command is seen. When
+	 * max_commands commands have been seen the rest share the metrics of
+	 * "other" commands.
+	 */
+	CommandMetrics command(int application_id, int command_code) {
+		CommandMetrics cm = existingCommand(application_id,command_code);
+		if(cm!=null)
+			return cm;
+		cm = other;
+		return cm!=null ? cm : addCommand(application_id,command_code);
+	}
+	private CommandMetrics addCommand(int application_id, int command_code) {
+		CommandMetrics cm;
+		synchronized(this) {
+			for(CommandMetrics c : commands) {
+				if(c.command_code==command_code && c.application_id==application_id)
+					return c;
+			}
+			if(other!=null)
+				return other;
+			if(commands.length<max_commands)
+				cm = new CommandMetrics(application_id,command_code);
+			else
+				cm = new CommandMetrics(CommandMetrics.other_id,CommandMetrics.other_id);
+			CommandMetrics bigger[] = java.util.Arrays.copyOf(commands,commands.length+1);
+			bigger[commands.length] = cm;
+			commands = bigger;
+			if(cm.isOther())
+				other = cm;
+		}
+		node.commandMetricsCreated(cm);
+		return cm;
+	}
+	
+	/**Returns the metrics of a command, or null if it has not been seen*/
+	CommandMetrics existingCommand(int application_id, int command_code) {
+		for(CommandMetrics cm : commands) {
+			if(cm.command_code==command_code && cm.application_id==application_id)
+				return cm;
+		}
+		return null;
+	}
+	/**Returns the metrics of the commands seen so far*/
+	CommandMetrics[] commands() {
+		return commands;
+	}
+	
+	public int getConnections() {
+		return node.readyConnectionCount();
+	}
+	public long getMessagesIn() {
+		return messages_in.sum();
+	}
+	public long getBytesIn() {
+		return bytes_in.sum();
+	}
+	public long getMessagesOut() {
+		return messages_out.sum();
+	}
+	public long getBytesOut() {
+		return bytes_out.sum();
+	}
+	public long getDecodeErrors() {
+		return decode_errors.sum();
+	}
+	public long getOutputQueueBytes() {
+		return node.outputQueueBytes();
+	}
+	public long getOutstandingRequests() {
+		return node.outstandingRequests();
+	}
+}
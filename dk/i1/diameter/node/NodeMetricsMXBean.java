@@ -0,0 +1,32 @@
+package dk.i1.diameter.node;
+
+/**
+ * Message and queue metrics of a node.
+ * The counters count from when the node was created, across restarts.
+ * If JMX is enabled (see {@link NodeSettings#setUseJMX}) the metrics are
+ * registered as an MXBean named
+ * <tt>dk.i1.diameter:type=Node,node=</tt><em>our host-id</em>
+ * while the node is running.
+ * @see Node#metrics
+ * @see ConnectionMetricsMXBean
+ * @see CommandMetricsMXBean
+ * @since 0.9.7
+ */
+public interface NodeMetricsMXBean {
+	/**Returns the number of connections where the capabilities exchange has finished*/
+	int getConnections();
+	/**Returns the number of messages received*/
+	long getMessagesIn();
+	/**Returns the number of bytes received in messages*/
+	long getBytesIn();
+	/**Returns the number of messages sent*/
+	long getMessagesOut();
+	/**Returns the number of bytes sent in messages*/
+	long getBytesOut();
+	/**Returns the number of messages that could not be decoded*/
+	long getDecodeErrors();
+	/**Returns the number of bytes queued for output on all connections*/
+	long getOutputQueueBytes();
+	/**Returns the number of requests sent by the {@link NodeManager} that have not been answered yet*/
+	long getOutstandingRequests();
+}
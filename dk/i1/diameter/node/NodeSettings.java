@@ -1,5 +1,9 @@
 package dk.i1.diameter.node;
 import java.util.Random;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
 
 /**
  * Configuration for a node.
@@ -58,10 +62,49 @@ public class NodeSettings {
 	private String product_name;
 	private int firmware_revision;
 	private long watchdog_interval;
+	private int watchdog_reopen_count;
 	private long idle_close_timeout;
 	private Boolean use_tcp;
 	private Boolean use_sctp;
+	private Boolean use_unix;
+	private String unix_socket_path;
+	private Boolean use_loopback;
 	private PortRange port_range;
+	private long failover_timeout;
+	private long duplicate_detection_lifetime;
+	private long duplicate_detection_memory_limit;
+	private Set<Integer> hedged_command_codes;
+	private int hedge_budget;
+	private RateLimit inbound_rate_limit;
+	private RateLimit outbound_rate_limit;
+	private Map<Integer,RateLimit> inbound_application_rate_limits;
+	private Map<Integer,RateLimit> outbound_application_rate_limits;
+	private boolean overload_control;
+	private double overload_load_threshold;
+	private FlushPolicy flush_policy;
+	private int flush_threshold_bytes;
+	private long flush_threshold_delay;
+	private boolean pooled_connection_buffers;
+	private long connection_output_low_watermark;
+	private long connection_output_high_watermark;
+	private long node_output_low_watermark;
+	private long node_output_high_watermark;
+	private int tcp_reactor_count;
+	private int sctp_connect_concurrency;
+	private NameResolver name_resolver;
+	private long resolver_cache_ttl;
+	private long resolver_negative_cache_ttl;
+	private javax.net.ssl.SSLContext tls_context;
+	private int tls_port;
+	private int tls_handshake_threads;
+	private int tls_session_cache_size;
+	private int tls_session_timeout;
+	private boolean tls_need_client_auth;
+	private long reconnect_min_backoff;
+	private long reconnect_max_backoff;
+	private int reconnect_concurrency;
+	private boolean use_jmx;
+	private int metrics_port;
 	
 	/**
 	 * A port range
@@ -78,6 +121,43 @@ public class NodeSettings {
 		}
 	};
 	
+	/**
+	 * A rate limit.
+	 * The limit is enforced with a token bucket that is refilled with
+	 * <tt>rate</tt> tokens per second and can hold <tt>burst</tt> tokens.
+	 * @since 0.9.7
+	 */
+	public static class RateLimit {
+		public double rate;
+		public int burst;
+		public RateLimit(double rate, int burst) throws InvalidSettingException
+		{
+			if(!(rate>0))
+				throw new InvalidSettingException("Invalid rate limit, rate must be positive");
+			if(burst<1)
+				throw new InvalidSettingException("Invalid rate limit, burst must be at least 1");
+			this.rate = rate;
+			this.burst = burst;
+		}
+	};
+	
+	/**
+	 * When queued output is written to a TCP connection.
+	 * @since 0.9.7
+	 */
+	public enum FlushPolicy {
+		/**Write a message as soon as it is sent. This is the default.*/
+		immediate,
+		/**Queue messages and write them (with a single gathering write)
+		 * when the network thread has finished handling the current
+		 * batch of network events.*/
+		end_of_iteration,
+		/**Queue messages until the queued bytes reach the flush
+		 * threshold or the oldest message has waited for the flush
+		 * delay.*/
+		threshold
+	}
+	
 	/**
 	 * Constructor for NodeSettings.
 	 * @param host_id The Diameter host identity.
@@ -126,7 +206,32 @@ public class NodeSettings {
 		this.product_name = product_name;
 		this.firmware_revision = firmware_revision;
 		this.watchdog_interval = 30*1000;
+		this.watchdog_reopen_count = 3;
 		this.idle_close_timeout = 7*24*3600*1000;
+		this.duplicate_detection_memory_limit = 16*1024*1024;
+		this.hedged_command_codes = new HashSet<Integer>();
+		this.hedge_budget = 5;
+		this.inbound_application_rate_limits = new HashMap<Integer,RateLimit>();
+		this.outbound_application_rate_limits = new HashMap<Integer,RateLimit>();
+		this.flush_policy = FlushPolicy.immediate;
+		this.flush_threshold_bytes = 16384;
+		this.flush_threshold_delay = 1;
+		this.pooled_connection_buffers = true;
+		this.connection_output_low_watermark = 1024*1024;
+		this.connection_output_high_watermark = 4*1024*1024;
+		this.node_output_low_watermark = 32*1024*1024;
+		this.node_output_high_watermark = 64*1024*1024;
+		this.tcp_reactor_count = 1;
+		this.sctp_connect_concurrency = 16;
+		this.resolver_cache_ttl = 300*1000;
+		this.resolver_negative_cache_ttl = 30*1000;
+		this.tls_handshake_threads = 2;
+		this.tls_session_cache_size = 20480;
+		this.tls_session_timeout = 86400;
+		this.tls_need_client_auth = true;
+		this.reconnect_min_backoff = 1000;
+		this.reconnect_max_backoff = 30*1000;
+		this.reconnect_concurrency = 16;
 	}
 	
 	/**Returns the configured host ID*/
@@ -184,6 +289,26 @@ public class NodeSettings {
 		this.watchdog_interval = interval;
 	}
 	
+	/**Sets the number of watchdogs in a row that a peer must answer on a
+	 * new connection before requests are routed to it, if its previous
+	 * connection was closed because watchdogs were not answered (the REOPEN
+	 * state of RFC3539 section 3.4). The default is 3 as in RFC3539.
+	 * @param count Number of answered watchdogs. 0 means no REOPEN state.
+	 * @throws InvalidSettingException If count is negative.
+	 * @since 0.9.7
+	 */
+	public void setWatchdogReopenCount(int count) throws InvalidSettingException {
+		if(count<0)
+			throw new InvalidSettingException("watchdog reopen count must be non-negative");
+		this.watchdog_reopen_count = count;
+	}
+	/**Returns the number of watchdogs a reopened peer must answer.
+	 * @since 0.9.7
+	 */
+	public int watchdogReopenCount() {
+		return watchdog_reopen_count;
+	}
+	
 	/**Returns the idle timeout (in milliseconds)
 	 * @since 0.9.3
 	 */
@@ -248,6 +373,75 @@ public class NodeSettings {
 		this.use_sctp = use_sctp;
 	}
 	
+	/**Returns the setting for using Unix domain sockets.
+	 * @return A boolean object, or null if not set.
+	 * @since 0.9.7
+	 */
+	public Boolean useUnix() {
+		return use_unix;
+	}
+	/** Change the setting for using Unix domain sockets.
+	 * Unix domain sockets can be used for peers on the same host (see
+	 * {@link Peer.TransportProtocol#unix}). They avoid the TCP stack and
+	 * require JDK 16 or later.
+	 * When the setting is:
+	 <dl>
+	 <dt>true</dt><dd>then the stack will create a Unix domain socket sub-node.</dd>
+	 <dt>false</dt><dd>then the stack will not create a Unix domain socket sub-node.</dd>
+	 <dt>null</dt><dd>then the stack will use the a property instead (see {@link Node} for details}.</dd>
+	 </dl>
+	 * @param use_unix New Unix domain socket use setting. Can be null.
+	 * @since 0.9.7
+	 */
+	public void setUseUnix(Boolean use_unix) {
+		this.use_unix = use_unix;
+	}
+	
+	/**Returns the setting for using the in-JVM loopback transport.
+	 * @return A boolean object, or null if not set.
+	 * @since 0.9.7
+	 */
+	public Boolean useLoopback() {
+		return use_loopback;
+	}
+	/** Change the setting for using the in-JVM loopback transport.
+	 * The loopback transport connects nodes in the same JVM without
+	 * sockets (see {@link Peer.TransportProtocol#loopback}). A node with a
+	 * non-zero port listens on that port in a JVM-wide namespace of its
+	 * own. It is meant for tests and benchmarks of the stack.
+	 * When the setting is:
+	 <dl>
+	 <dt>true</dt><dd>then the stack will create a loopback sub-node.</dd>
+	 <dt>false</dt><dd>then the stack will not create a loopback sub-node.</dd>
+	 <dt>null</dt><dd>then the stack will use the a property instead (see {@link Node} for details}.</dd>
+	 </dl>
+	 * @param use_loopback New loopback use setting. Can be null.
+	 * @since 0.9.7
+	 */
+	public void setUseLoopback(Boolean use_loopback) {
+		this.use_loopback = use_loopback;
+	}
+	
+	/**
+	 * Set the path of the Unix domain socket to listen on.
+	 * If a file exists at the path when the node starts it is removed.
+	 * The socket file is removed when the node stops. The default is null
+	 * (don't listen).
+	 * @param path The socket path, eg. "/var/run/diameter/proxy.sock". Can be null.
+	 * @see #setUseUnix
+	 * @since 0.9.7
+	 */
+	public void setUnixSocketPath(String path) {
+		this.unix_socket_path = path;
+	}
+	/**
+	 * Returns the path of the Unix domain socket to listen on, or null.
+	 * @since 0.9.7
+	 */
+	public String unixSocketPath() {
+		return unix_socket_path;
+	}
+	
 	/**
 	 * Set the source port range for outgoing TCP connections
 	 * If the source port range is no tset (default) then the stack will
@@ -276,4 +470,728 @@ public class NodeSettings {
 	public PortRange TCPPortRange() {
 		return port_range;
 	}
+	
+	/**
+	 * Returns the failover budget (in milliseconds).
+	 * @return The failover budget. 0 if failover is disabled.
+	 * @since 0.9.7
+	 */
+	public long failoverTimeout() {
+		return failover_timeout;
+	}
+	/**
+	 * Sets the failover budget.
+	 * When a transport connection is lost the {@link NodeManager} normally
+	 * reports all requests outstanding on that connection as failed. If a
+	 * failover budget is set then requests sent with
+	 * {@link NodeManager#sendRequest(dk.i1.diameter.Message,Peer[],Object)}
+	 * are instead retransmitted with the T-bit set to another capable peer
+	 * (RFC3539 section 5.5). If no capable peer is available the request is
+	 * held until one becomes available or the budget has been used up.
+	 * The default is 0 (disabled).
+	 * @param timeout Maximum time in milliseconds from the first connection loss until a request must have been retransmitted. 0 disables failover.
+	 * @throws InvalidSettingException If timeout is negative.
+	 * @since 0.9.7
+	 */
+	public void setFailoverTimeout(long timeout) throws InvalidSettingException {
+		if(timeout<0)
+			throw new InvalidSettingException("failover timeout cannot be negative");
+		this.failover_timeout = timeout;
+	}
+	
+	/**
+	 * Returns the duplicate detection lifetime (in milliseconds).
+	 * @return The lifetime. 0 if duplicate detection is disabled.
+	 * @since 0.9.7
+	 */
+	public long duplicateDetectionLifetime() {
+		return duplicate_detection_lifetime;
+	}
+	/**
+	 * Sets the duplicate detection lifetime.
+	 * If non-zero then the {@link NodeManager} remembers incoming requests
+	 * and their answers for the specified time. A retransmitted request
+	 * (T-bit set) with the same Origin-Host and End-to-End-Identifier as a
+	 * remembered request is not passed to handleRequest(). Instead the
+	 * remembered answer is sent again. This prevents eg. double charging
+	 * when clients fail over. The default is 0 (disabled).
+	 * @param lifetime Time in milliseconds to remember requests. 0 disables duplicate detection.
+	 * @throws InvalidSettingException If lifetime is negative.
+	 * @since 0.9.7
+	 */
+	public void setDuplicateDetectionLifetime(long lifetime) throws InvalidSettingException {
+		if(lifetime<0)
+			throw new InvalidSettingException("duplicate detection lifetime cannot be negative");
+		this.duplicate_detection_lifetime = lifetime;
+	}
+	/**
+	 * Returns the memory limit for duplicate detection (in bytes).
+	 * @since 0.9.7
+	 */
+	public long duplicateDetectionMemoryLimit() {
+		return duplicate_detection_memory_limit;
+	}
+	/**
+	 * Sets the memory limit for duplicate detection.
+	 * When the remembered requests and answers use more than approximately
+	 * this amount of memory the oldest ones are forgotten before their
+	 * lifetime has expired. The default is 16MB.
+	 * @param bytes The memory limit in bytes.
+	 * @throws InvalidSettingException If the limit is not positive.
+	 * @since 0.9.7
+	 */
+	public void setDuplicateDetectionMemoryLimit(long bytes) throws InvalidSettingException {
+		if(bytes<=0)
+			throw new InvalidSettingException("duplicate detection memory limit must be positive");
+		this.duplicate_detection_memory_limit = bytes;
+	}
+	
+	/**
+	 * Enable request hedging for a command code.
+	 * Requests with the command code sent with
+	 * {@link NodeManager#sendRequest(dk.i1.diameter.Message,Peer[],Object)}
+	 * are sent again (with the T-bit set) to a second capable peer if the
+	 * first peer has not answered within its observed 95th percentile
+	 * latency. The first answer is passed to handleAnswer() and the other
+	 * is discarded. Only enable hedging for requests that are safe to
+	 * process twice, such as read-only lookups.
+	 * @param command_code The command code
+	 * @since 0.9.7
+	 */
+	public void addHedgedCommandCode(int command_code) {
+		hedged_command_codes.add(command_code);
+	}
+	/**
+	 * Returns if request hedging is enabled for a command code.
+	 * @since 0.9.7
+	 */
+	public boolean isHedgedCommandCode(int command_code) {
+		return !hedged_command_codes.isEmpty() && hedged_command_codes.contains(command_code);
+	}
+	/**
+	 * Returns the hedge budget (in percent).
+	 * @since 0.9.7
+	 */
+	public int hedgeBudget() {
+		return hedge_budget;
+	}
+	/**
+	 * Sets the hedge budget.
+	 * The number of hedged requests is limited to the specified percentage
+	 * of the requests that are eligible for hedging, so hedging cannot
+	 * amplify the load on the peers by more than that. The default is 5%.
+	 * @param percent The budget in percent (0-100)
+	 * @throws InvalidSettingException If the budget is not in the range 0-100.
+	 * @since 0.9.7
+	 */
+	public void setHedgeBudget(int percent) throws InvalidSettingException {
+		if(percent<0 || percent>100)
+			throw new InvalidSettingException("hedge budget must be 0..100 percent");
+		this.hedge_budget = percent;
+	}
+	
+	/**
+	 * Set the rate limit for incoming requests from each peer.
+	 * Each connection gets its own token bucket. Requests exceeding the
+	 * limit are rejected with DIAMETER_TOO_BUSY before they are decoded
+	 * (only the header is examined), and they are not passed to the
+	 * {@link MessageDispatcher}. Base protocol messages (CER, DWR, DPR)
+	 * are never limited. The default is no limit.
+	 * @param limit The rate limit, or null for no limit.
+	 * @since 0.9.7
+	 */
+	public void setInboundRateLimit(RateLimit limit) {
+		this.inbound_rate_limit = limit;
+	}
+	/**
+	 * Returns the rate limit for incoming requests from each peer.
+	 * @return The rate limit, or null
+	 * @since 0.9.7
+	 */
+	public RateLimit inboundRateLimit() {
+		return inbound_rate_limit;
+	}
+	/**
+	 * Set the rate limit for incoming requests from each peer for an application.
+	 * This limit applies in addition to the one set with
+	 * {@link #setInboundRateLimit(RateLimit)}. The application is
+	 * determined from the application-id in the message header.
+	 * @param application_id The application-id
+	 * @param limit The rate limit, or null for no limit.
+	 * @since 0.9.7
+	 */
+	public void setInboundRateLimit(int application_id, RateLimit limit) {
+		if(limit!=null)
+			inbound_application_rate_limits.put(application_id,limit);
+		else
+			inbound_application_rate_limits.remove(application_id);
+	}
+	/**
+	 * Returns the rate limit for incoming requests from each peer for an application.
+	 * @return The rate limit, or null
+	 * @since 0.9.7
+	 */
+	public RateLimit inboundRateLimit(int application_id) {
+		return inbound_application_rate_limits.get(application_id);
+	}
+	Map<Integer,RateLimit> inboundApplicationRateLimits() {
+		return inbound_application_rate_limits;
+	}
+	/**
+	 * Set the rate limit for outgoing requests to each peer.
+	 * Each connection gets its own token bucket. When a connection is over
+	 * its limit {@link NodeManager#sendRequest(dk.i1.diameter.Message,Peer[],Object)}
+	 * tries the next capable peer, and fails with a
+	 * {@link NotRoutableException} if all of them are over their limit.
+	 * The default is no limit.
+	 * @param limit The rate limit, or null for no limit.
+	 * @since 0.9.7
+	 */
+	public void setOutboundRateLimit(RateLimit limit) {
+		this.outbound_rate_limit = limit;
+	}
+	/**
+	 * Returns the rate limit for outgoing requests to each peer.
+	 * @return The rate limit, or null
+	 * @since 0.9.7
+	 */
+	public RateLimit outboundRateLimit() {
+		return outbound_rate_limit;
+	}
+	/**
+	 * Set the rate limit for outgoing requests to each peer for an application.
+	 * This limit applies in addition to the one set with
+	 * {@link #setOutboundRateLimit(RateLimit)}. The application is
+	 * determined from the application-id in the message header.
+	 * @param application_id The application-id
+	 * @param limit The rate limit, or null for no limit.
+	 * @since 0.9.7
+	 */
+	public void setOutboundRateLimit(int application_id, RateLimit limit) {
+		if(limit!=null)
+			outbound_application_rate_limits.put(application_id,limit);
+		else
+			outbound_application_rate_limits.remove(application_id);
+	}
+	/**
+	 * Returns the rate limit for outgoing requests to each peer for an application.
+	 * @return The rate limit, or null
+	 * @since 0.9.7
+	 */
+	public RateLimit outboundRateLimit(int application_id) {
+		return outbound_application_rate_limits.get(application_id);
+	}
+	Map<Integer,RateLimit> outboundApplicationRateLimits() {
+		return outbound_application_rate_limits;
+	}
+	
+	/**
+	 * Enable or disable overload control.
+	 * When enabled the {@link NodeManager} implements Diameter Overload
+	 * Indication Conveyance (RFC7683) with the loss algorithm: requests
+	 * advertise support with an OC-Supported-Features AVP, overload
+	 * reports (OC-OLR) in answers cause a percentage of the requests to
+	 * the overloaded host to be diverted to other peers (or to the
+	 * overloaded realm to be throttled), and answers to peers that support
+	 * it include a report of our own overload as calculated by
+	 * {@link NodeManager#calculateOverloadReduction}.
+	 * The default is disabled.
+	 * @since 0.9.7
+	 */
+	public void setOverloadControl(boolean enabled) {
+		this.overload_control = enabled;
+	}
+	/**
+	 * Returns if overload control is enabled.
+	 * @since 0.9.7
+	 */
+	public boolean overloadControl() {
+		return overload_control;
+	}
+	/**
+	 * Set the load threshold for reporting overload.
+	 * The default implementation of
+	 * {@link NodeManager#calculateOverloadReduction} compares the system
+	 * load average per processor with this threshold. 0 means that the
+	 * system load is not used. The default is 0.
+	 * @param threshold The load per processor, eg. 0.9
+	 * @throws InvalidSettingException If the threshold is negative
+	 * @since 0.9.7
+	 */
+	public void setOverloadLoadThreshold(double threshold) throws InvalidSettingException {
+		if(!(threshold>=0))
+			throw new InvalidSettingException("overload load threshold must be non-negative");
+		this.overload_load_threshold = threshold;
+	}
+	/**
+	 * Returns the load threshold for reporting overload.
+	 * @since 0.9.7
+	 */
+	public double overloadLoadThreshold() {
+		return overload_load_threshold;
+	}
+	
+	/**
+	 * Set the flush policy for TCP connections.
+	 * Outgoing messages are queued per connection and written with
+	 * gathering writes. The flush policy determines how long messages may
+	 * wait in the queue. Delaying the write allows many small messages
+	 * (eg. answers) to be written with one system call at the cost of a
+	 * bit of latency. The default is {@link FlushPolicy#immediate}.
+	 * The policy does not apply to SCTP where each message is sent separately.
+	 * @since 0.9.7
+	 */
+	public void setFlushPolicy(FlushPolicy flush_policy) {
+		this.flush_policy = flush_policy;
+	}
+	/**
+	 * Returns the flush policy for TCP connections.
+	 * @since 0.9.7
+	 */
+	public FlushPolicy flushPolicy() {
+		return flush_policy;
+	}
+	/**
+	 * Set the thresholds for {@link FlushPolicy#threshold}.
+	 * @param bytes Queued output is written when it reaches this many bytes. Default 16384.
+	 * @param delay Queued output is written when it has waited this long (milliseconds). Default 1.
+	 * @throws InvalidSettingException If bytes is less than 1 or delay is negative.
+	 * @since 0.9.7
+	 */
+	public void setFlushThresholds(int bytes, long delay) throws InvalidSettingException {
+		if(bytes<1)
+			throw new InvalidSettingException("flush threshold must be at least 1 byte");
+		if(delay<0)
+			throw new InvalidSettingException("flush delay must be non-negative");
+		this.flush_threshold_bytes = bytes;
+		this.flush_threshold_delay = delay;
+	}
+	/**
+	 * Returns the flush threshold in bytes.
+	 * @since 0.9.7
+	 */
+	public int flushThresholdBytes() {
+		return flush_threshold_bytes;
+	}
+	/**
+	 * Returns the flush delay in milliseconds.
+	 * @since 0.9.7
+	 */
+	public long flushThresholdDelay() {
+		return flush_threshold_delay;
+	}
+	
+	/**
+	 * Use pooled direct buffers for reading from TCP connections.
+	 * When enabled (the default) the input buffers come from a node-wide
+	 * pool of direct buffers in power-of-2 size classes, and a connection
+	 * only holds a buffer while it has unprocessed input. When disabled
+	 * each connection has its own heap buffer that grows as needed and is
+	 * never shrunk.
+	 * @see Node#bufferPoolUsage
+	 * @since 0.9.7
+	 */
+	public void setPooledConnectionBuffers(boolean pooled) {
+		this.pooled_connection_buffers = pooled;
+	}
+	/**
+	 * Returns if pooled direct buffers are used for TCP connections.
+	 * @since 0.9.7
+	 */
+	public boolean pooledConnectionBuffers() {
+		return pooled_connection_buffers;
+	}
+	
+	/**
+	 * Set the output watermarks for each connection.
+	 * When the output queued for a connection (because the peer does not
+	 * read it fast enough) exceeds the high watermark the connection
+	 * becomes unwritable: {@link Node#trySendMessage} refuses to queue more
+	 * and {@link NodeManager} routes requests to other peers. It becomes
+	 * writable again when the queued output has dropped to the low
+	 * watermark. The defaults are 1MB and 4MB.
+	 * @param low Low watermark in bytes
+	 * @param high High watermark in bytes
+	 * @throws InvalidSettingException If low is negative or larger than high
+	 * @see ConnectionWritabilityListener
+	 * @since 0.9.7
+	 */
+	public void setConnectionOutputWatermarks(long low, long high) throws InvalidSettingException {
+		checkWatermarks(low,high);
+		this.connection_output_low_watermark = low;
+		this.connection_output_high_watermark = high;
+	}
+	/**
+	 * Returns the low output watermark for each connection.
+	 * @since 0.9.7
+	 */
+	public long connectionOutputLowWatermark() {
+		return connection_output_low_watermark;
+	}
+	/**
+	 * Returns the high output watermark for each connection.
+	 * @since 0.9.7
+	 */
+	public long connectionOutputHighWatermark() {
+		return connection_output_high_watermark;
+	}
+	/**
+	 * Set the output watermarks for the node as a whole.
+	 * Like {@link #setConnectionOutputWatermarks} but for the sum of the
+	 * output queued for all connections. When the high watermark is
+	 * exceeded all connections become unwritable. The defaults are 32MB
+	 * and 64MB.
+	 * @param low Low watermark in bytes
+	 * @param high High watermark in bytes
+	 * @throws InvalidSettingException If low is negative or larger than high
+	 * @since 0.9.7
+	 */
+	public void setNodeOutputWatermarks(long low, long high) throws InvalidSettingException {
+		checkWatermarks(low,high);
+		this.node_output_low_watermark = low;
+		this.node_output_high_watermark = high;
+	}
+	/**
+	 * Returns the low output watermark for the node.
+	 * @since 0.9.7
+	 */
+	public long nodeOutputLowWatermark() {
+		return node_output_low_watermark;
+	}
+	/**
+	 * Returns the high output watermark for the node.
+	 * @since 0.9.7
+	 */
+	public long nodeOutputHighWatermark() {
+		return node_output_high_watermark;
+	}
+	
+	/**
+	 * Set the number of TCP reactors.
+	 * Each reactor is a thread with its own selector that accepts, reads
+	 * and writes a share of the TCP connections, so a storm of inbound
+	 * connections (eg. after a network outage) is not serialized through
+	 * a single thread. When there is more than one reactor each opens its
+	 * own listening socket on the same port with SO_REUSEPORT and the
+	 * operating system distributes inbound connections between them.
+	 * Where SO_REUSEPORT is not supported one reactor listens and hands
+	 * the accepted connections to the others in turn. Outbound connections
+	 * are distributed in turn too. The default is 1.
+	 * <p>
+	 * Note that SO_REUSEPORT allows other processes of the same user to
+	 * listen on the port as well.
+	 * @param count The number of reactors
+	 * @throws InvalidSettingException If count is less than 1
+	 * @since 0.9.7
+	 */
+	public void setTCPReactorCount(int count) throws InvalidSettingException {
+		if(count<1)
+			throw new InvalidSettingException("there must be at least one TCP reactor");
+		this.tcp_reactor_count = count;
+	}
+	/**
+	 * Returns the number of TCP reactors.
+	 * @since 0.9.7
+	 */
+	public int TCPReactorCount() {
+		return tcp_reactor_count;
+	}
+	
+	/**
+	 * Set the number of outbound SCTP associations that may be set up at
+	 * the same time.
+	 * Host names of peers are resolved in the background, and up to this
+	 * many associations are then set up in parallel, so bringing up many
+	 * SCTP peers at startup does not take one handshake after the other.
+	 * Only one association to an address and port is set up at a time.
+	 * The default is 16.
+	 * @param count The maximum number of outstanding SCTP connection attempts
+	 * @throws InvalidSettingException If count is less than 1
+	 * @since 0.9.7
+	 */
+	public void setSCTPConnectConcurrency(int count) throws InvalidSettingException {
+		if(count<1)
+			throw new InvalidSettingException("SCTP connect concurrency must be at least 1");
+		this.sctp_connect_concurrency = count;
+	}
+	/**
+	 * Returns the maximum number of outstanding SCTP connection attempts.
+	 * @since 0.9.7
+	 */
+	public int SCTPConnectConcurrency() {
+		return sctp_connect_concurrency;
+	}
+	
+	/**
+	 * Set the resolver for the host names of peers.
+	 * Host names are resolved in the background, so a slow resolver only
+	 * delays the connections to the peers being resolved. The default (null)
+	 * is to use {@link java.net.InetAddress#getAllByName}.
+	 * @param resolver The name resolver, or null.
+	 * @since 0.9.7
+	 */
+	public void setNameResolver(NameResolver resolver) {
+		this.name_resolver = resolver;
+	}
+	/**
+	 * Returns the name resolver, or null if the default is used.
+	 * @since 0.9.7
+	 */
+	public NameResolver nameResolver() {
+		return name_resolver;
+	}
+	/**
+	 * Set how long host name resolutions are cached.
+	 * Failed resolutions are cached too so that a peer with a bad host name
+	 * does not cause a lookup on every connection attempt. Note that the
+	 * default resolver (InetAddress) has a cache of its own, see the
+	 * networkaddress.cache.ttl security property.
+	 * The defaults are 300 seconds and 30 seconds.
+	 * @param ttl How long (in milliseconds) a resolved address is cached. 0 means no caching.
+	 * @param negative_ttl How long (in milliseconds) a failed resolution is cached. 0 means no caching.
+	 * @throws InvalidSettingException If a time is negative
+	 * @since 0.9.7
+	 */
+	public void setResolverCacheTTL(long ttl, long negative_ttl) throws InvalidSettingException {
+		if(ttl<0 || negative_ttl<0)
+			throw new InvalidSettingException("resolver cache TTLs must be non-negative");
+		this.resolver_cache_ttl = ttl;
+		this.resolver_negative_cache_ttl = negative_ttl;
+	}
+	/**
+	 * Returns how long (in milliseconds) resolved addresses are cached.
+	 * @since 0.9.7
+	 */
+	public long resolverCacheTTL() {
+		return resolver_cache_ttl;
+	}
+	/**
+	 * Returns how long (in milliseconds) failed resolutions are cached.
+	 * @since 0.9.7
+	 */
+	public long resolverNegativeCacheTTL() {
+		return resolver_negative_cache_ttl;
+	}
+	
+	/**
+	 * Set the TLS context.
+	 * When a TLS context is set the TCP transport can run TLS: outbound
+	 * connections to peers with the secure setting on (aaas URIs) start
+	 * with a TLS handshake, and if a TLS port has been set (see
+	 * {@link #setTLSPort}) the node listens for TLS connections on it.
+	 * TLS is started when the connection is set up (as in RFC 6733), not
+	 * negotiated in the capabilities exchange. The key and trust managers
+	 * of the context decide which certificate the node presents and which
+	 * certificates of peers are accepted. The default is no TLS context.
+	 * @param context The TLS context, or null.
+	 * @since 0.9.7
+	 */
+	public void setTLSContext(javax.net.ssl.SSLContext context) {
+		this.tls_context = context;
+	}
+	/**
+	 * Returns the TLS context, or null if none has been set.
+	 * @since 0.9.7
+	 */
+	public javax.net.ssl.SSLContext TLSContext() {
+		return tls_context;
+	}
+	/**
+	 * Set the port to listen for TLS connections on.
+	 * The IANA-assigned port for Diameter over TLS is 5868. The default
+	 * is 0 which means that the node does not listen for TLS connections.
+	 * @param port The TLS port
+	 * @throws InvalidSettingException If the port is not in the range 0..65535
+	 * @since 0.9.7
+	 */
+	public void setTLSPort(int port) throws InvalidSettingException {
+		if(port<0 || port>65535)
+			throw new InvalidSettingException("TLS port must be 0..65535");
+		this.tls_port = port;
+	}
+	/**
+	 * Returns the TLS listen port.
+	 * @since 0.9.7
+	 */
+	public int TLSPort() {
+		return tls_port;
+	}
+	/**
+	 * Set the number of threads for TLS handshakes.
+	 * The expensive parts of a handshake (key exchange and certificate
+	 * validation) are run by a pool of threads so they do not hold up the
+	 * I/O of the other connections. The default is 2.
+	 * @param threads The number of threads
+	 * @throws InvalidSettingException If threads is less than 1
+	 * @since 0.9.7
+	 */
+	public void setTLSHandshakeThreads(int threads) throws InvalidSettingException {
+		if(threads<1)
+			throw new InvalidSettingException("there must be at least one TLS handshake thread");
+		this.tls_handshake_threads = threads;
+	}
+	/**
+	 * Returns the number of TLS handshake threads.
+	 * @since 0.9.7
+	 */
+	public int TLSHandshakeThreads() {
+		return tls_handshake_threads;
+	}
+	/**
+	 * Set the size and timeout of the TLS session caches.
+	 * Cached sessions (and session tickets) let a peer that reconnects
+	 * resume its session with an abbreviated handshake. The settings are
+	 * applied to the client and server session contexts of the TLS context
+	 * when the node is started. The defaults are 20480 sessions and 86400
+	 * seconds.
+	 * @param size The maximum number of cached sessions. 0 means no limit.
+	 * @param timeout The session timeout in seconds. 0 means no limit.
+	 * @throws InvalidSettingException If size or timeout is negative
+	 * @since 0.9.7
+	 */
+	public void setTLSSessionCache(int size, int timeout) throws InvalidSettingException {
+		if(size<0 || timeout<0)
+			throw new InvalidSettingException("TLS session cache size and timeout must be non-negative");
+		this.tls_session_cache_size = size;
+		this.tls_session_timeout = timeout;
+	}
+	/**
+	 * Returns the TLS session cache size.
+	 * @since 0.9.7
+	 */
+	public int TLSSessionCacheSize() {
+		return tls_session_cache_size;
+	}
+	/**
+	 * Returns the TLS session timeout in seconds.
+	 * @since 0.9.7
+	 */
+	public int TLSSessionTimeout() {
+		return tls_session_timeout;
+	}
+	/**
+	 * Set whether inbound TLS connections must present a certificate.
+	 * RFC 6733 requires mutual authentication, so the default is true.
+	 * @param need True if client certificates are required
+	 * @since 0.9.7
+	 */
+	public void setTLSNeedClientAuth(boolean need) {
+		this.tls_need_client_auth = need;
+	}
+	/**
+	 * Returns whether inbound TLS connections must present a certificate.
+	 * @since 0.9.7
+	 */
+	public boolean TLSNeedClientAuth() {
+		return tls_need_client_auth;
+	}
+	
+	/**
+	 * Set the backoff between reconnection attempts to persistent peers.
+	 * When the connection to a persistent peer is lost it is reconnected
+	 * at once. If that fails the node waits before the next attempt, at
+	 * first <tt>min</tt> milliseconds, then twice as long after each failed
+	 * attempt, up to <tt>max</tt>. The waits are jittered so that peers
+	 * that were lost at the same time are not retried in lockstep. A
+	 * connection that is lost within <tt>max</tt> milliseconds of becoming
+	 * ready counts as a failed attempt, so a flapping peer is backed off too.
+	 * The defaults are 1 second and 30 seconds.
+	 * @param min The first wait (milliseconds)
+	 * @param max The longest wait (milliseconds)
+	 * @throws InvalidSettingException If min is not positive or max is less than min
+	 * @since 0.9.7
+	 */
+	public void setReconnectBackoff(long min, long max) throws InvalidSettingException {
+		if(min<=0)
+			throw new InvalidSettingException("minimum reconnect backoff must be positive");
+		if(max<min)
+			throw new InvalidSettingException("maximum reconnect backoff must be at least the minimum");
+		this.reconnect_min_backoff = min;
+		this.reconnect_max_backoff = max;
+	}
+	/**
+	 * Returns the first wait (milliseconds) between reconnection attempts.
+	 * @since 0.9.7
+	 */
+	public long reconnectMinBackoff() {
+		return reconnect_min_backoff;
+	}
+	/**
+	 * Returns the longest wait (milliseconds) between reconnection attempts.
+	 * @since 0.9.7
+	 */
+	public long reconnectMaxBackoff() {
+		return reconnect_max_backoff;
+	}
+	/**
+	 * Set the number of reconnection attempts to persistent peers that may
+	 * be in progress at the same time.
+	 * An attempt is in progress until the connection is ready or has
+	 * failed. Peers that are due while the limit is reached are attempted
+	 * as soon as other attempts finish. The default is 16.
+	 * @param count The maximum number of reconnection attempts in progress
+	 * @throws InvalidSettingException If count is less than 1
+	 * @since 0.9.7
+	 */
+	public void setReconnectConcurrency(int count) throws InvalidSettingException {
+		if(count<1)
+			throw new InvalidSettingException("reconnect concurrency must be at least 1");
+		this.reconnect_concurrency = count;
+	}
+	/**
+	 * Returns the maximum number of reconnection attempts in progress.
+	 * @since 0.9.7
+	 */
+	public int reconnectConcurrency() {
+		return reconnect_concurrency;
+	}
+	
+	/**
+	 * Set whether the node registers MXBeans with the platform MBean server.
+	 * The MXBeans are in the <tt>dk.i1.diameter</tt> domain and have our
+	 * host-id in their <tt>node</tt> key. They are registered while the node
+	 * is running. The default is false.
+	 * @param use True if the node should register MXBeans
+	 * @see PeerHealthMXBean
+	 * @since 0.9.7
+	 */
+	public void setUseJMX(boolean use) {
+		this.use_jmx = use;
+	}
+	/**
+	 * Returns whether the node registers MXBeans.
+	 * @since 0.9.7
+	 */
+	public boolean useJMX() {
+		return use_jmx;
+	}
+	/**
+	 * Set the port of the metrics endpoint.
+	 * When set, the {@link NodeManager} serves the metrics of the node, its
+	 * connections, commands and sessions in the Prometheus text format on
+	 * <tt>http://</tt><i>host</i><tt>:</tt><i>port</i><tt>/metrics</tt>,
+	 * using the HTTP server of the JDK. The endpoint listens on all
+	 * addresses. The default is 0 which means that there is no endpoint.
+	 * @param port The HTTP port
+	 * @throws InvalidSettingException If the port is not in the range 0..65535
+	 * @since 0.9.7
+	 */
+	public void setMetricsPort(int port) throws InvalidSettingException {
+		if(port<0 || port>65535)
+			throw new InvalidSettingException("metrics port must be 0..65535");
+		this.metrics_port = port;
+	}
+	/**
+	 * Returns the port of the metrics endpoint.
+	 * @since 0.9.7
+	 */
+	public int metricsPort() {
+		return metrics_port;
+	}
+	private static void checkWatermarks(long low, long high) throws InvalidSettingException {
+		if(low<0)
+			throw new InvalidSettingException("low watermark must be non-negative");
+		if(high<low)
+			throw new InvalidSettingException("high watermark must be at least the low watermark");
+	}
 }
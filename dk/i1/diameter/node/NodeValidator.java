@@ -26,7 +26,7 @@ public interface NodeValidator {
 	 * telling the node if we know the peer, and if not what the
 	 * result-code and error-message should be. (Node provides reasonable defaults).
 	 * @param host_id The orogin-host-id of the peer.
-	 * @param obj An object describing the transport connection. For TCP transport connections this is a socket channel. For SCTP transport connections it is a {@link RelevantSCTPAuthInfo} instance.
+	 * @param obj An object describing the transport connection. For TCP (and Unix domain socket) transport connections this is a socket channel. For TLS connections it is the javax.net.ssl.SSLSession, which has the peer's certificates. For SCTP transport connections it is a {@link RelevantSCTPAuthInfo} instance. For loopback connections it is null.
 	 */
 	public AuthenticationResult authenticateNode(String host_id, Object obj);
 	/**
@@ -0,0 +1,28 @@
+package dk.i1.diameter.node;
+
+/**
+ * Priority lanes for output to a connection.
+ * Output queued for a TCP connection is written lane by lane in this
+ * order, so watchdog and other base protocol messages do not wait behind
+ * application traffic, and answers do not wait behind new requests.
+ * Lanes are only switched at message boundaries.
+ * @since 0.9.7
+ */
+public enum OutputLane {
+	/**CER/CEA, DWR/DWA and DPR/DPA*/
+	base_protocol,
+	/**Other answers*/
+	answer,
+	/**Other requests*/
+	request;
+	
+	static OutputLane of(dk.i1.diameter.Message msg) {
+		switch(msg.hdr.command_code) {
+			case dk.i1.diameter.ProtocolConstants.DIAMETER_COMMAND_CAPABILITIES_EXCHANGE:
+			case dk.i1.diameter.ProtocolConstants.DIAMETER_COMMAND_DEVICE_WATCHDOG:
+			case dk.i1.diameter.ProtocolConstants.DIAMETER_COMMAND_DISCONNECT_PEER:
+				return base_protocol;
+		}
+		return msg.hdr.isRequest() ? request : answer;
+	}
+}
@@ -0,0 +1,64 @@
+package dk.i1.diameter.node;
+
+/**
+ * Queue wait statistics for the output lanes.
+ * The wait of a message is the time from it was queued until it had been
+ * completely written to the socket. The arrays are indexed by
+ * {@link OutputLane#ordinal}.
+ * @see Node#outputLaneStatistics()
+ * @see Node#outputLaneStatistics(ConnectionKey)
+ * @since 0.9.7
+ */
+public class OutputLaneStatistics {
+	/**The number of messages written*/
+	public final long messages[];
+	/**The sum of the waits, in nanoseconds*/
+	public final long total_wait[];
+	/**The longest wait, in nanoseconds*/
+	public final long max_wait[];
+	
+	OutputLaneStatistics(long messages[], long total_wait[], long max_wait[]) {
+		this.messages = messages;
+		this.total_wait = total_wait;
+		this.max_wait = max_wait;
+	}
+	
+	/**
+	 * Returns the average wait in a lane in microseconds, or 0 if no messages have been written.
+	 */
+	public long averageWait(OutputLane lane) {
+		int i = lane.ordinal();
+		return messages[i]!=0 ? total_wait[i]/messages[i]/1000 : 0;
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(OutputLane lane : OutputLane.values()) {
+			int i = lane.ordinal();
+			if(sb.length()!=0) sb.append(" ");
+			sb.append(lane).append(":").append(messages[i])
+			  .append(" avg=").append(averageWait(lane)).append("us")
+			  .append(" max=").append(max_wait[i]/1000).append("us");
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * The counters behind the statistics. Protected by the node lock.
+	 */
+	static class Counters {
+		private final long messages[] = new long[OutputLane.values().length];
+		private final long total_wait[] = new long[messages.length];
+		private final long max_wait[] = new long[messages.length];
+		void record(OutputLane lane, long wait) {
+			int i = lane.ordinal();
+			messages[i]++;
+			total_wait[i] += wait;
+			if(wait>max_wait[i])
+				max_wait[i] = wait;
+		}
+		OutputLaneStatistics snapshot() {
+			return new OutputLaneStatistics(messages.clone(),total_wait.clone(),max_wait.clone());
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package dk.i1.diameter.node;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Queue of outgoing messages for a stream connection.
+ * Each message is kept in its own buffer, and as many as possible are
+ * written with one gathering write, so partially written data is never
+ * moved around.
+ * There is a FIFO per {@link OutputLane}. The lanes are written in
+ * priority order, but a message that has been partially written is always
+ * finished first so messages are never interleaved.
+ * The queue is not thread-safe. Callers must hold the node lock.
+ */
+class OutputQueue {
+	private static final int max_gather = 64;
+	private static class Entry {
+		final ByteBuffer bb;
+		final OutputLane lane;
+		final long queue_time; //System.nanoTime()
+		Entry(ByteBuffer bb, OutputLane lane, long queue_time) {
+			this.bb = bb;
+			this.lane = lane;
+			this.queue_time = queue_time;
+		}
+	}
+	private final ArrayDeque<Entry> lanes[];
+	private Entry partial; //partially written message
+	private int entries;
+	private final ByteBuffer gather[];
+	private final Entry gathered[];
+	private long bytes;
+	private final OutputLaneStatistics.Counters counters;
+
+	OutputQueue() {
+		@SuppressWarnings({"unchecked","rawtypes"}) //generic arrays cannot be created
+		ArrayDeque<Entry> l[] = new ArrayDeque[OutputLane.values().length];
+		lanes = l;
+		for(int i=0; i<lanes.length; i++)
+			lanes[i] = new ArrayDeque<Entry>();
+		gather = new ByteBuffer[max_gather];
+		gathered = new Entry[max_gather];
+		counters = new OutputLaneStatistics.Counters();
+	}
+
+	void add(ByteBuffer bb, OutputLane lane) {
+		lanes[lane.ordinal()].add(new Entry(bb,lane,System.nanoTime()));
+		entries++;
+		bytes += bb.remaining();
+	}
+	boolean isEmpty() {
+		return entries==0;
+	}
+	/**
+	 * Returns the number of queued bytes not yet written.
+	 */
+	long bytes() {
+		return bytes;
+	}
+	OutputLaneStatistics statistics() {
+		return counters.snapshot();
+	}
+
+	/**
+	 * Write as much of the queue as the channel will accept.
+	 * @param node_counters Node-wide counters that the queue waits are also recorded in.
+	 * @return The number of bytes written
+	 */
+	long writeTo(GatheringByteChannel channel, OutputLaneStatistics.Counters node_counters) throws java.io.IOException {
+		long total=0;
+		while(entries!=0) {
+			int n=0;
+			long to_write=0;
+			if(partial!=null) {
+				gathered[n++] = partial;
+				to_write += partial.bb.remaining();
+				partial = null;
+			}
+			for(int i=0; i<lanes.length && n<max_gather; i++) {
+				while(n<max_gather && !lanes[i].isEmpty()) {
+					Entry e = lanes[i].poll();
+					gathered[n++] = e;
+					to_write += e.bb.remaining();
+				}
+			}
+			for(int i=0; i<n; i++)
+				gather[i] = gathered[i].bb;
+			long count=0;
+			try {
+				count = channel.write(gather,0,n);
+			} finally {
+				//Written entries are done. The rest go back in front of
+				//their lanes (the first of them possibly partially written)
+				long now = System.nanoTime();
+				int i=0;
+				for(; i<n && !gathered[i].bb.hasRemaining(); i++) {
+					Entry e = gathered[i];
+					long wait = now-e.queue_time;
+					counters.record(e.lane,wait);
+					node_counters.record(e.lane,wait);
+					entries--;
+				}
+				for(int j=n-1; j>i; j--)
+					lanes[gathered[j].lane.ordinal()].addFirst(gathered[j]);
+				if(i<n) {
+					if(gathered[i].bb.position()!=0)
+						partial = gathered[i];
+					else
+						lanes[gathered[i].lane.ordinal()].addFirst(gathered[i]);
+				}
+				java.util.Arrays.fill(gather,0,n,null);
+				java.util.Arrays.fill(gathered,0,n,null);
+			}
+			total += count;
+			bytes -= count;
+			if(count<to_write)
+				break; //socket buffer is full
+		}
+		return total;
+	}
+}
@@ -0,0 +1,212 @@
+package dk.i1.diameter.node;
+import dk.i1.diameter.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Diameter Overload Indication Conveyance (RFC7683) using the loss algorithm.
+ * <p>
+ * As a reacting node we advertise support in OC-Supported-Features in our
+ * requests, and remember the overload reports (OC-OLR) received in answers
+ * per host and per realm. The decision whether to throttle a request is a
+ * map lookup and a random number, and takes no locks.
+ * <p>
+ * As a reporting node we include our own overload report in answers to
+ * peers that have advertised support. The traffic reduction is obtained
+ * from {@link NodeManager#calculateOverloadReduction} at most once a second.
+ */
+class OverloadControl {
+	private static final long validity_duration = 30; //seconds. Default from RFC7683 section 7.4
+	private static final long max_validity_duration = 86400;
+	private static final long evaluation_interval = 1000;
+
+	private static class Report {
+		final long sequence_number;
+		final long expire_time;
+		final int reduction_percentage;
+		Report(long sequence_number, long expire_time, int reduction_percentage) {
+			this.sequence_number = sequence_number;
+			this.expire_time = expire_time;
+			this.reduction_percentage = reduction_percentage;
+		}
+	}
+	private final ConcurrentHashMap<String,Report> host_reports;
+	private final ConcurrentHashMap<String,Report> realm_reports;
+
+	private final ConcurrentHashMap<ConnectionKey,Boolean> supporting_peers;
+	//Our own report. When the overload has ended the report (with 0%) is
+	//sent until expire_time so peers can end their abatement early.
+	private volatile Report own_report;
+	private final AtomicLong next_evaluation;
+	private final NodeManager node_manager;
+	private final Logger logger;
+
+	OverloadControl(NodeManager node_manager, Logger logger) {
+		host_reports = new ConcurrentHashMap<String,Report>();
+		realm_reports = new ConcurrentHashMap<String,Report>();
+		supporting_peers = new ConcurrentHashMap<ConnectionKey,Boolean>();
+		next_evaluation = new AtomicLong();
+		this.node_manager = node_manager;
+		this.logger = logger;
+	}
+
+	private static AVP supportedFeatures() {
+		return new AVP_Grouped(ProtocolConstants.DI_OC_SUPPORTED_FEATURES,
+		                       new AVP_Unsigned64(ProtocolConstants.DI_OC_FEATURE_VECTOR,ProtocolConstants.DI_OC_FEATURE_VECTOR_OLR_DEFAULT_ALGO));
+	}
+
+	/**
+	 * Advertise support in an outgoing request.
+	 */
+	void prepareRequest(Message request) {
+		if(request.find(ProtocolConstants.DI_OC_SUPPORTED_FEATURES)==null)
+			request.add(supportedFeatures());
+	}
+
+	/**
+	 * Decide whether a request to a host must be throttled.
+	 */
+	boolean throttleHost(String host) {
+		return throttle(host_reports,host);
+	}
+	/**
+	 * Decide whether a request to a realm must be throttled.
+	 */
+	boolean throttleRealm(String realm) {
+		return throttle(realm_reports,realm);
+	}
+	private static boolean throttle(ConcurrentHashMap<String,Report> reports, String key) {
+		if(reports.isEmpty())
+			return false;
+		Report r = reports.get(key);
+		if(r==null || r.reduction_percentage==0)
+			return false;
+		if(System.currentTimeMillis()>=r.expire_time)
+			return false;
+		return ThreadLocalRandom.current().nextInt(100) < r.reduction_percentage;
+	}
+
+	/**
+	 * Process an overload report in an incoming answer.
+	 */
+	void processAnswer(Message answer) {
+		AVP avp = answer.find(ProtocolConstants.DI_OC_OLR);
+		if(avp==null)
+			return;
+		long sequence_number=-1;
+		int report_type=-1;
+		int reduction_percentage=-1;
+		long validity=validity_duration;
+		try {
+			for(AVP a : new AVP_Grouped(avp).queryAVPs()) {
+				switch(a.code) {
+					case ProtocolConstants.DI_OC_SEQUENCE_NUMBER:
+						sequence_number = new AVP_Unsigned64(a).queryValue();
+						break;
+					case ProtocolConstants.DI_OC_REPORT_TYPE:
+						report_type = new AVP_Unsigned32(a).queryValue();
+						break;
+					case ProtocolConstants.DI_OC_REDUCTION_PERCENTAGE:
+						reduction_percentage = new AVP_Unsigned32(a).queryValue();
+						break;
+					case ProtocolConstants.DI_OC_VALIDITY_DURATION:
+						validity = new AVP_Unsigned32(a).queryValue()&0xFFFFFFFFL;
+						break;
+				}
+			}
+		} catch(InvalidAVPLengthException ex) {
+			logger.log(Level.INFO,"Malformed OC-OLR AVP in answer",ex);
+			return;
+		}
+		if(sequence_number<0 || reduction_percentage<0 || reduction_percentage>100) {
+			logger.log(Level.FINE,"Ignoring incomplete OC-OLR AVP");
+			return;
+		}
+		ConcurrentHashMap<String,Report> reports;
+		int code;
+		if(report_type==ProtocolConstants.DI_OC_REPORT_TYPE_HOST_REPORT) {
+			reports = host_reports;
+			code = ProtocolConstants.DI_ORIGIN_HOST;
+		} else if(report_type==ProtocolConstants.DI_OC_REPORT_TYPE_REALM_REPORT) {
+			reports = realm_reports;
+			code = ProtocolConstants.DI_ORIGIN_REALM;
+		} else {
+			logger.log(Level.FINE,"Ignoring OC-OLR AVP with unknown report type "+report_type);
+			return;
+		}
+		AVP origin = answer.find(code);
+		if(origin==null)
+			return;
+		String key = new AVP_UTF8String(origin).queryValue();
+		Report r = new Report(sequence_number,
+		                      System.currentTimeMillis()+Math.min(validity,max_validity_duration)*1000,
+		                      reduction_percentage);
+		for(;;) {
+			Report old = reports.get(key);
+			if(old==null) {
+				if(reports.putIfAbsent(key,r)==null)
+					break;
+			} else {
+				if(old.sequence_number>=sequence_number)
+					return; //old or repeated report
+				if(reports.replace(key,old,r))
+					break;
+			}
+		}
+		logger.log(Level.FINE,"Overload report for "+key+": reduce traffic by "+reduction_percentage+"% for "+validity+" seconds");
+	}
+
+	/**
+	 * Notice whether the peer supports overload control.
+	 */
+	void processRequest(Message request, ConnectionKey connkey) {
+		if(!supporting_peers.containsKey(connkey) &&
+		   request.find(ProtocolConstants.DI_OC_SUPPORTED_FEATURES)!=null)
+			supporting_peers.put(connkey,Boolean.TRUE);
+	}
+	void connectionDown(ConnectionKey connkey) {
+		supporting_peers.remove(connkey);
+	}
+
+	/**
+	 * Add our own overload report to an outgoing answer if the peer supports overload control.
+	 */
+	void prepareAnswer(Message answer, ConnectionKey connkey) {
+		if(!supporting_peers.containsKey(connkey))
+			return;
+		if(answer.find(ProtocolConstants.DI_OC_SUPPORTED_FEATURES)==null)
+			answer.add(supportedFeatures());
+		long now = System.currentTimeMillis();
+		long t = next_evaluation.get();
+		if(now>=t && next_evaluation.compareAndSet(t,now+evaluation_interval))
+			evaluate(now);
+		Report r = own_report;
+		if(r==null || now>=r.expire_time)
+			return;
+		if(answer.find(ProtocolConstants.DI_OC_OLR)!=null)
+			return; //forwarded answer with a report from another node
+		answer.add(new AVP_Grouped(ProtocolConstants.DI_OC_OLR,
+		                           new AVP_Unsigned64(ProtocolConstants.DI_OC_SEQUENCE_NUMBER,r.sequence_number),
+		                           new AVP_Unsigned32(ProtocolConstants.DI_OC_REPORT_TYPE,ProtocolConstants.DI_OC_REPORT_TYPE_HOST_REPORT),
+		                           new AVP_Unsigned32(ProtocolConstants.DI_OC_REDUCTION_PERCENTAGE,r.reduction_percentage),
+		                           new AVP_Unsigned32(ProtocolConstants.DI_OC_VALIDITY_DURATION,(int)validity_duration)));
+	}
+
+	private void evaluate(long now) {
+		int reduction_percentage = Math.max(0,Math.min(100,node_manager.calculateOverloadReduction()));
+		Report r = own_report;
+		if(r==null ? reduction_percentage==0 : r.reduction_percentage==reduction_percentage) {
+			//unchanged. Keep an ongoing overload report alive
+			if(r!=null && reduction_percentage!=0)
+				own_report = new Report(r.sequence_number,now+validity_duration*1000,reduction_percentage);
+			return;
+		}
+		//The sequence number must increase, also across restarts
+		long sequence_number = r==null ? now : Math.max(r.sequence_number+1,now);
+		own_report = new Report(sequence_number,now+validity_duration*1000,reduction_percentage);
+		logger.log(Level.INFO,"Own overload changed: peers are asked to reduce traffic by "+reduction_percentage+"%");
+	}
+}
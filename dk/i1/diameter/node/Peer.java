@@ -16,9 +16,23 @@ public class Peer {
 	private boolean secure;
 	public enum TransportProtocol {
 		tcp,
-		sctp
+		sctp,
+		/**
+		 * Unix domain socket, for peers on the same host.
+		 * The peer must have a socket path.
+		 * @since 0.9.7
+		 */
+		unix,
+		/**
+		 * In-JVM connection to another node in the same JVM. The port
+		 * identifies the node.
+		 * @see NodeSettings#setUseLoopback
+		 * @since 0.9.7
+		 */
+		loopback
 	};
 	TransportProtocol transport_protocol;
+	private String unix_socket_path;
 	
 	/**
 	 * Constructs a peer from an IP address.
@@ -108,6 +122,18 @@ public class Peer {
 		this.secure = false;
 		this.transport_protocol = transport_protocol;
 	}
+	/**
+	 * Constructs a peer reached over a Unix domain socket.
+	 * The port is set to 3868 (it is only used for identifying the peer),
+	 * the transport-protocol is set to unix, and the secure setting is off.
+	 * @param host The host-name of the peer (preferably fully-qualified)
+	 * @param unix_socket_path The path of the peer's listening socket, eg. "/var/run/diameter/proxy.sock"
+	 * @since 0.9.7
+	 */
+	public Peer(String host, String unix_socket_path) throws EmptyHostNameException {
+		this(host,3868,TransportProtocol.unix);
+		this.unix_socket_path = unix_socket_path;
+	}
 	/**
 	 * Constructs a peer from a socket address.
 	 * The address and port is set to the specifed socket address.
@@ -150,7 +176,7 @@ public class Peer {
 		if(p.capabilities!=null)
 			this.capabilities = new Capability(p.capabilities);
 		transport_protocol = p.transport_protocol;
-
+		unix_socket_path = p.unix_socket_path;
 	}
 	/**Capabilities of this peer*/
 	public Capability capabilities;
@@ -168,6 +194,9 @@ public class Peer {
 	
 	/**
 	 * Creates a peer from a Diameter URI string.
+	 * The transport parameter can be tcp, sctp, unix or loopback. For unix the
+	 * socket path is given with a (non-standard) path parameter, eg.
+	 * "aaa://proxy.example.net;transport=unix;path=/var/run/diameter/proxy.sock"
 	 * @param s The Diameter URI string, eg. "aaa://somehost.example.net"
 	 */
 	public static Peer fromURIString(String s) throws UnsupportedURIException {
@@ -194,19 +223,27 @@ public class Peer {
 				if(!st2.hasMoreTokens())
 					continue;
 				String element_name = st2.nextToken();
-				if(!element_name.equals("transport"))
+				if(!element_name.equals("transport") && !element_name.equals("path"))
 					continue;
 				if(!st2.hasMoreTokens())
 					continue;
 				String element_value = st2.nextToken();
-				if(element_value.equals("sctp"))
+				if(element_name.equals("path"))
+					p.unix_socket_path = element_value;
+				else if(element_value.equals("sctp"))
 					p.transport_protocol = TransportProtocol.sctp;
 				else if(element_value.equals("tcp"))
 					p.transport_protocol = TransportProtocol.tcp;
+				else if(element_value.equals("unix"))
+					p.transport_protocol = TransportProtocol.unix;
+				else if(element_value.equals("loopback"))
+					p.transport_protocol = TransportProtocol.loopback;
 				else
 					throw new UnsupportedURIException("Unknown transport-protocol: "+ element_value);
 			}
 		}
+		if(p.transport_protocol==TransportProtocol.unix && p.unix_socket_path==null)
+			throw new UnsupportedURIException("transport=unix requires a path");
 		return p;
 	}
 	
@@ -240,6 +277,19 @@ public class Peer {
 	public void transportProtocol(TransportProtocol transport_protocol) {
 		this.transport_protocol = transport_protocol;
 	}
+	/**
+	 * Returns the path of the peer's Unix domain socket, or null.
+	 * @since 0.9.7
+	 */
+	public String unixSocketPath() {
+		return unix_socket_path;
+	}
+	/**
+	 * @since 0.9.7
+	 */
+	public void unixSocketPath(String unix_socket_path) {
+		this.unix_socket_path = unix_socket_path;
+	}
 	
 	public String toString() {
 		return (secure?"aaas":"aaa")
@@ -247,7 +297,8 @@ public class Peer {
 		     + host
 		     + ":"
 		     + (Integer.valueOf(port)).toString()
-		     + (transport_protocol==TransportProtocol.tcp?"":";transport=sctp")
+		     + (transport_protocol==TransportProtocol.tcp?"":";transport="+transport_protocol)
+		     + (unix_socket_path==null?"":";path="+unix_socket_path)
 		     ;
 	}
 	
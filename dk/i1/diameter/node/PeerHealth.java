@@ -0,0 +1,86 @@
+package dk.i1.diameter.node;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health measurements of a peer.
+ * The round-trip time and its mean deviation are averaged as in TCP
+ * (RFC6298: gains 1/8 and 1/4). The error and timeout rates are averaged
+ * with gain 1/32. Each value is updated with compare-and-set, so recording
+ * and reading is lock-free. Concurrent updates of the round-trip time and
+ * the jitter are not atomic together, which does not matter for averages.
+ */
+class PeerHealth implements PeerHealthMXBean {
+	private static final double rate_gain = 1.0/32;
+	private final AtomicLong rtt;          //nanoseconds. -1 until measured
+	private final AtomicLong jitter;       //nanoseconds
+	private final AtomicLong error_rate;   //bits of a double
+	private final AtomicLong timeout_rate; //bits of a double
+	
+	PeerHealth() {
+		rtt = new AtomicLong(-1);
+		jitter = new AtomicLong();
+		error_rate = new AtomicLong(Double.doubleToRawLongBits(0.0));
+		timeout_rate = new AtomicLong(Double.doubleToRawLongBits(0.0));
+	}
+	
+	/**Record the round-trip time of an answered watchdog*/
+	void recordRoundTrip(long nanoseconds) {
+		long prev, next;
+		do {
+			prev = rtt.get();
+			next = prev<0 ? nanoseconds : prev + (nanoseconds-prev)/8;
+		} while(!rtt.compareAndSet(prev,next));
+		long deviation = prev<0 ? nanoseconds/2 : Math.abs(nanoseconds-prev);
+		long j;
+		do {
+			j = jitter.get();
+		} while(!jitter.compareAndSet(j, prev<0 ? deviation : j + (deviation-j)/4));
+		average(timeout_rate,0);
+	}
+	
+	/**Record an answered request*/
+	void recordAnswer(long nanoseconds, boolean error) {
+		recordRoundTrip(nanoseconds);
+		average(error_rate,error?1:0);
+	}
+	
+	/**Record a request or watchdog that was not answered in time*/
+	void recordTimeout() {
+		average(timeout_rate,1);
+	}
+	
+	private static void average(AtomicLong value, double sample) {
+		long prev, next;
+		do {
+			prev = value.get();
+			double v = Double.longBitsToDouble(prev);
+			next = Double.doubleToRawLongBits(v + (sample-v)*rate_gain);
+		} while(!value.compareAndSet(prev,next));
+	}
+	
+	public long getRoundTripTime() {
+		long r = rtt.get();
+		return r<0 ? -1 : r/1000;
+	}
+	public long getJitter() {
+		return jitter.get()/1000;
+	}
+	public double getErrorRate() {
+		return Double.longBitsToDouble(error_rate.get());
+	}
+	public double getTimeoutRate() {
+		return Double.longBitsToDouble(timeout_rate.get());
+	}
+	public double getScore() {
+		double success = (1-getErrorRate())*(1-getTimeoutRate());
+		long r = rtt.get();
+		if(r<0)
+			return success;
+		return success/(1+(r+4*jitter.get())/1e9);
+	}
+	
+	public String toString() {
+		return String.format("rtt=%dus jitter=%dus errors=%.3f timeouts=%.3f score=%.3f",
+		                     getRoundTripTime(), getJitter(), getErrorRate(), getTimeoutRate(), getScore());
+	}
+}
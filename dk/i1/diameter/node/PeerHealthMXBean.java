@@ -0,0 +1,34 @@
+package dk.i1.diameter.node;
+
+/**
+ * The health of a peer.
+ * The node measures the round-trip time of watchdogs and requests on the
+ * connections to a peer, and how many requests are answered with an error
+ * or not answered in time. The values are exponentially weighted moving
+ * averages, so recent exchanges count the most.
+ * The values are read without locking, so they can be used when selecting
+ * a peer for every request.
+ * If JMX is enabled (see {@link NodeSettings#setUseJMX}) the health of each
+ * peer is also registered as an MXBean named
+ * <tt>dk.i1.diameter:type=PeerHealth,node=</tt><em>our host-id</em><tt>,peer=</tt><em>peer host-id</em>
+ * @see Node#peerHealth
+ * @since 0.9.7
+ */
+public interface PeerHealthMXBean {
+	/**Returns the average round-trip time in microseconds, or -1 if nothing has been measured yet*/
+	long getRoundTripTime();
+	/**Returns the average deviation of the round-trip time in microseconds*/
+	long getJitter();
+	/**Returns the fraction (0-1) of answers that were errors (a Result-Code or Experimental-Result-Code of 3000 or more)*/
+	double getErrorRate();
+	/**Returns the fraction (0-1) of requests and watchdogs that were not answered in time*/
+	double getTimeoutRate();
+	/**
+	 * Returns the health score, from 0 (useless) to 1 (perfect).
+	 * The score is the fraction of requests that succeed, divided by
+	 * 1 plus the round-trip time with 4 times the jitter in seconds. So
+	 * between peers that answer equally well the one that answers faster
+	 * has the higher score.
+	 */
+	double getScore();
+}
@@ -0,0 +1,59 @@
+package dk.i1.diameter.node;
+import java.nio.ByteBuffer;
+
+/**
+ * Connection buffers backed by a {@link BufferPool}.
+ * The input buffer is only held while there is unprocessed input. When
+ * everything received has been processed the buffer is returned to the
+ * pool, so an idle connection holds no buffer, and a connection that once
+ * received a large message does not keep a large buffer.
+ */
+class PooledConnectionBuffers extends ConnectionBuffers {
+	private final BufferPool pool;
+	private ByteBuffer in_buffer;
+	
+	PooledConnectionBuffers(BufferPool pool) {
+		this.pool = pool;
+	}
+	
+	ByteBuffer netInBuffer() {
+		return in_buffer;
+	}
+	ByteBuffer appInBuffer() {
+		return in_buffer;
+	}
+	
+	void processNetInBuffer() {
+	}
+	
+	void makeSpaceInNetInBuffer() {
+		if(in_buffer==null) {
+			in_buffer = pool.acquire(BufferPool.min_size);
+			return;
+		}
+		if(in_buffer.remaining()>=4096)
+			return;
+		ByteBuffer bigger = pool.acquire(in_buffer.capacity()*2);
+		in_buffer.flip();
+		bigger.put(in_buffer);
+		pool.release(in_buffer);
+		in_buffer = bigger;
+	}
+	
+	void consumeAppInBuffer(int bytes) {
+		if(in_buffer==null)
+			return; //released because the connection was closed
+		super.consumeAppInBuffer(bytes);
+		if(in_buffer.position()==0) {
+			pool.release(in_buffer);
+			in_buffer = null;
+		}
+	}
+	
+	void release() {
+		if(in_buffer!=null) {
+			pool.release(in_buffer);
+			in_buffer = null;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package dk.i1.diameter.node;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Keeps track of when to reconnect to the persistent peers.
+ * A persistent peer either has a connection (ready or still being set up)
+ * or is waiting for its next connection attempt. When the connection is
+ * lost the peer is attempted again at once if the connection had been up
+ * for a while, otherwise after a backoff that doubles with each failed
+ * attempt (see {@link NodeSettings#setReconnectBackoff}).
+ * The node threads make the attempts that are due when they run their
+ * timers, and at most {@link NodeSettings#reconnectConcurrency} attempts
+ * are in progress at a time.
+ * Protected by the node lock.
+ */
+class ReconnectScheduler {
+	private static class PeerState {
+		final Peer peer;
+		final NodeImplementation node_impl;
+		ConnectionKey connkey; //the connection to the peer, or null if waiting
+		long ready_since;      //when the connection became ready. 0 if it is not ready
+		int failures;          //failed attempts in a row
+		long next_attempt;     //when waiting
+		PeerState(Peer peer, NodeImplementation node_impl) {
+			this.peer = peer;
+			this.node_impl = node_impl;
+		}
+	}
+	private final NodeSettings settings;
+	private final Random random;
+	private final LinkedHashMap<Peer,PeerState> peers;
+	private final HashMap<ConnectionKey,PeerState> by_connection;
+	private int in_progress; //connections to persistent peers that are not ready yet
+
+	ReconnectScheduler(NodeSettings settings) {
+		this.settings = settings;
+		this.random = new Random();
+		this.peers = new LinkedHashMap<Peer,PeerState>();
+		this.by_connection = new HashMap<ConnectionKey,PeerState>();
+	}
+
+	/**
+	 * Add a persistent peer. Nothing happens if the peer is already known.
+	 * @param conn The connection to the peer, or null if it could not be initiated.
+	 */
+	void add(Peer peer, NodeImplementation node_impl, Connection conn, long now) {
+		if(peers.containsKey(peer))
+			return;
+		PeerState ps = new PeerState(peer,node_impl);
+		peers.put(peer,ps);
+		attempted(ps,conn,now);
+	}
+
+	/**
+	 * Record a connection attempt made for a due peer.
+	 * @param conn The connection to the peer, or null if it could not be initiated.
+	 */
+	void attempted(Peer peer, Connection conn, long now) {
+		attempted(peers.get(peer),conn,now);
+	}
+	private void attempted(PeerState ps, Connection conn, long now) {
+		if(conn!=null)
+			attach(ps,conn,now);
+		else {
+			ps.failures++;
+			ps.next_attempt = now + backoff(ps.failures);
+		}
+	}
+
+	private void attach(PeerState ps, Connection conn, long now) {
+		ps.connkey = conn.key;
+		by_connection.put(conn.key,ps);
+		if(conn.state==Connection.State.ready)
+			ps.ready_since = now;
+		else
+			in_progress++;
+	}
+
+	/**
+	 * A connection has become ready. An inbound connection from a waiting
+	 * peer is taken as the connection to it.
+	 * @return True if an attempt slot was freed while all were taken, so
+	 *         the node threads should look for due peers.
+	 */
+	boolean ready(Connection conn, long now) {
+		PeerState ps = by_connection.get(conn.key);
+		if(ps==null) {
+			ps = peers.get(conn.peer);
+			if(ps!=null && ps.connkey==null)
+				attach(ps,conn,now);
+			return false;
+		}
+		if(ps.ready_since!=0)
+			return false;
+		ps.ready_since = now;
+		return in_progress-- == settings.reconnectConcurrency();
+	}
+
+	/**
+	 * A connection has been closed or could not be established.
+	 * A connection that was lost soon after becoming ready counts as a
+	 * failed attempt, so a peer that accepts connections and then drops
+	 * them is backed off too.
+	 * @return True if the connection was to a persistent peer, so the node
+	 *         threads should recalculate their timeouts.
+	 */
+	boolean lost(Connection conn, long now) {
+		PeerState ps = by_connection.remove(conn.key);
+		if(ps==null)
+			return false;
+		ps.connkey = null;
+		if(ps.ready_since==0) {
+			in_progress--;
+			ps.failures++;
+		} else if(now-ps.ready_since>=settings.reconnectMaxBackoff())
+			ps.failures = 0;
+		else
+			ps.failures++;
+		ps.ready_since = 0;
+		ps.next_attempt = ps.failures==0 ? now : now + backoff(ps.failures);
+		return true;
+	}
+
+	/**
+	 * Returns the time of the next attempt for the node implementation, or
+	 * -1 if there is none or no more attempts may be started right now.
+	 */
+	long nextAttempt(NodeImplementation node_impl) {
+		if(in_progress>=settings.reconnectConcurrency())
+			return -1;
+		long next = -1;
+		for(PeerState ps : peers.values()) {
+			if(ps.node_impl==node_impl && ps.connkey==null &&
+			   (next==-1 || ps.next_attempt<next))
+				next = ps.next_attempt;
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the peers of the node implementation that should be
+	 * attempted now, as many as the concurrency limit allows.
+	 * The caller reports each attempt with {@link #attempted}.
+	 */
+	List<Peer> due(NodeImplementation node_impl, long now) {
+		List<Peer> due = new ArrayList<Peer>();
+		int slots = settings.reconnectConcurrency() - in_progress;
+		for(PeerState ps : peers.values()) {
+			if(due.size()>=slots)
+				break;
+			if(ps.node_impl==node_impl && ps.connkey==null && ps.next_attempt<=now)
+				due.add(ps.peer);
+		}
+		return due;
+	}
+
+	//The wait before attempt number 'failures'+1: exponential with jitter.
+	//The jitter is half the wait, so peers that were lost at the same
+	//time spread out but the backoff still grows.
+	private long backoff(int failures) {
+		long max = settings.reconnectMaxBackoff();
+		long delay = settings.reconnectMinBackoff();
+		for(int i=1; i<failures && delay<max; i++)
+			delay *= 2;
+		delay = Math.min(delay,max);
+		return delay - (long)(random.nextDouble()*(delay/2));
+	}
+}
@@ -4,20 +4,36 @@ import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.ArrayList;
 import dk.i1.sctp.*;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import dk.i1.diameter.ProtocolConstants;
 
 class SCTPConnection extends Connection {
-	//Queue of pending messages
-	private LinkedList<byte[]> queued_messages;
+	//Messages that could not be sent yet, per outbound stream. A stream
+	//with queued messages is "blocked": new messages for it are queued too
+	//so the order within the stream is kept, while the other streams can
+	//still send directly. Protected by the connection's own lock.
+	private static class StreamQueue {
+		final short stream;
+		final ArrayDeque<byte[]> messages;
+		StreamQueue(short stream) {
+			this.stream = stream;
+			this.messages = new ArrayDeque<byte[]>();
+		}
+	}
+	private HashMap<Short,StreamQueue> stream_queues; //non-empty queues
+	private ArrayDeque<StreamQueue> queued_streams; //non-empty queues in round-robin order
 	private SCTPNode node_impl;
 	AssociationId assoc_id;
 	boolean closed;
+	boolean send_blocked; //in the node's list of connections with queued messages. Protected by the node lock
 	short sac_inbound_streams;
 	short sac_outbound_streams;
 	short out_stream_index;
 	SCTPConnection(SCTPNode node_impl, long watchdog_interval, long idle_timeout) {
 		super(node_impl,watchdog_interval,idle_timeout);
-		queued_messages = new LinkedList<byte[]>();
+		stream_queues = new HashMap<Short,StreamQueue>();
+		queued_streams = new ArrayDeque<StreamQueue>();
 		this.node_impl = node_impl;
 		this.closed = false;
 		this.sac_inbound_streams = 0;
@@ -25,11 +41,58 @@ class SCTPConnection extends Connection {
 		this.out_stream_index = 0;
 	}
 	
-	//Return the next stream number to use for sending
-	short nextOutStream() {
-		short i = out_stream_index;
-		out_stream_index = (short)((out_stream_index+1)%sac_outbound_streams);
-		return i;
+	/**
+	 * Choose the outbound stream for a message.
+	 * Base protocol messages (CER, DWR, DPR and their answers) use stream
+	 * 0. Other messages with a Session-Id use a stream chosen by hashing
+	 * the Session-Id, so the messages of a session are delivered in order
+	 * but a lost chunk of one session does not hold up the other sessions.
+	 * Messages without a Session-Id are spread over the streams in turn.
+	 */
+	short outStream(byte[] raw, OutputLane lane) {
+		int streams = sac_outbound_streams&0xffff;
+		if(lane==OutputLane.base_protocol || streams<=1)
+			return 0;
+		int hash = sessionIdHash(raw);
+		if(hash==0)
+			return nextOutStream();
+		return (short)(1 + (hash&0x7fffffff)%(streams-1));
+	}
+	
+	//Return the next application stream number (1..n-1) to use for sending
+	private short nextOutStream() {
+		int streams = sac_outbound_streams&0xffff;
+		int i = (out_stream_index&0xffff)%(streams-1) + 1;
+		out_stream_index = (short)i;
+		return (short)i;
+	}
+	
+	/**
+	 * Hash the Session-Id of an encoded message. The Session-Id AVP is
+	 * looked for right after the header, where RFC3588 section 8.8 places
+	 * it. Returns 0 if it is not there.
+	 */
+	static int sessionIdHash(byte[] raw) {
+		final int avp_start = 20;
+		if(raw.length<avp_start+8)
+			return 0;
+		int code = ((raw[avp_start  ]&0xff)<<24) |
+		           ((raw[avp_start+1]&0xff)<<16) |
+		           ((raw[avp_start+2]&0xff)<< 8) |
+		           ((raw[avp_start+3]&0xff)    );
+		int flags = raw[avp_start+4]&0xff;
+		if(code!=ProtocolConstants.DI_SESSION_ID || (flags&0x80)!=0)
+			return 0; //not a Session-Id, or vendor-specific
+		int length = ((raw[avp_start+5]&0xff)<<16) |
+		             ((raw[avp_start+6]&0xff)<< 8) |
+		             ((raw[avp_start+7]&0xff)    );
+		int end = avp_start+length;
+		if(length<8 || end>raw.length)
+			return 0;
+		int hash = 17;
+		for(int i=avp_start+8; i<end; i++)
+			hash = hash*31 + raw[i];
+		return hash!=0 ? hash : 1;
 	}
 	
 	InetAddress toInetAddress() {
@@ -39,8 +102,8 @@ class SCTPConnection extends Connection {
 		return null;
 	}
 	
-	void sendMessage(byte[] raw) {
-		node_impl.sendMessage(this,raw);
+	void sendMessage(byte[] raw, OutputLane lane) {
+		node_impl.sendMessage(this,raw,lane);
 	}
 	
 	Object getRelevantNodeAuthInfo() {
@@ -63,13 +126,35 @@ class SCTPConnection extends Connection {
 		}
 	}
 	
-	void queueMessage(byte[] raw) {
-		queued_messages.addLast(raw);
+	boolean isStreamBlocked(short stream) {
+		return stream_queues.containsKey(stream);
+	}
+	void queueMessage(short stream, byte[] raw) {
+		StreamQueue sq = stream_queues.get(stream);
+		if(sq==null) {
+			sq = new StreamQueue(stream);
+			stream_queues.put(stream,sq);
+			queued_streams.addLast(sq);
+		}
+		sq.messages.addLast(raw);
+	}
+	//Returns the stream whose turn it is to send a queued message, or -1
+	int nextQueuedStream() {
+		StreamQueue sq = queued_streams.peek();
+		return sq!=null ? sq.stream : -1;
 	}
-	byte[] peekFirstQueuedMessage() {
-		return queued_messages.peek();
+	byte[] peekQueuedMessage() {
+		StreamQueue sq = queued_streams.peek();
+		return sq!=null ? sq.messages.peek() : null;
 	}
-	void removeFirstQueuedMessage() {
-		queued_messages.poll();
+	//Remove the message returned by peekQueuedMessage() and give the next
+	//stream a turn
+	void removeQueuedMessage() {
+		StreamQueue sq = queued_streams.poll();
+		sq.messages.poll();
+		if(sq.messages.isEmpty())
+			stream_queues.remove(sq.stream);
+		else
+			queued_streams.addLast(sq);
 	}
 }
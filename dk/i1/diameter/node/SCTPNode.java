@@ -7,6 +7,9 @@ import dk.i1.sctp.*;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.Collection;
 import java.net.InetSocketAddress;
 import java.net.InetAddress;
@@ -23,27 +26,62 @@ class SCTPNode extends NodeImplementation {
 	private boolean please_stop;
 	private long shutdown_deadline;
 	private Map<AssociationId,SCTPConnection> map;//map from association-ids to connections
-	//Current draft API cannot tell which connection attempt failed on
-	//non-blocking sockets, so we allow only 1 outstanding outgoing
-	//connection attempt and postpone the rest.
+	//Outbound connections go through these stages:
+	//1: the host name is resolved by the host resolver
+	//2: waiting (pending_connections) for a free connect slot
+	//3: connect() has been called (outstanding_connections) and we wait
+	//   for the association to come up
+	//Up to settings.SCTPConnectConcurrency() connection attempts are
+	//outstanding at a time. An association that comes up is matched with
+	//its attempt by the peer address and port, so there is only one
+	//outstanding attempt per address and port. The current draft API
+	//cannot always tell which connection attempt failed on non-blocking
+	//sockets, so attempts that are not matched in time are given up.
+	//The connect() of an attempt that is given up (or whose connection is
+	//closed) cannot be cancelled, so the attempt is kept for another
+	//connect_timeout. If its association comes up in that time it is
+	//disconnected instead of being taken for an inbound connection.
+	private static final long connect_timeout = 60000;
 	private static class OutstandingConnection {
 		SCTPConnection conn;
 		Peer peer;
 		InetAddress address;
+		long deadline;
+		boolean given_up;
 		OutstandingConnection(SCTPConnection conn, Peer peer) {
 			this.conn = conn;
 			this.peer = peer;
 		}
+		boolean matches(InetAddress address, int port) {
+			return address.equals(this.address) && port==peer.port();
+		}
 	}
-	private LinkedList<OutstandingConnection> outstanding_connections;
+	private ConcurrentLinkedQueue<OutstandingConnection> resolved_connections; //stage 1 done (address is null if it failed)
+	private LinkedList<OutstandingConnection> pending_connections; //node thread only
+	private LinkedList<OutstandingConnection> outstanding_connections; //node thread only
 	
-	private boolean any_queued_messages;
+	//Connections with queued messages. Protected by the node lock, which
+	//is taken after (never while holding) a connection's lock.
+	//The SCTP API has no event for when send buffer space becomes free,
+	//so the node thread retries them when a chunk has been received
+	//(which often acknowledges sent data), and otherwise after a delay
+	//that starts at 1ms and backs off while no progress is made. The delay
+	//is capped well below typical latency budgets, so a stalled association
+	//costs at most one wakeup per 16ms.
+	private ArrayDeque<SCTPConnection> blocked_connections;
+	private static final long min_retry_delay = 1;
+	private static final long max_retry_delay = 16;
+	private long retry_delay; //node thread only
+	private long next_retry;  //node thread only
 	
 	public SCTPNode(Node node, NodeSettings settings, Logger logger) {
 		super(node,settings,logger);
 		map = new HashMap<AssociationId,SCTPConnection>();
+		resolved_connections = new ConcurrentLinkedQueue<OutstandingConnection>();
+		pending_connections = new LinkedList<OutstandingConnection>();
 		outstanding_connections = new LinkedList<OutstandingConnection>();
-		any_queued_messages = false;
+		blocked_connections = new ArrayDeque<SCTPConnection>();
+		retry_delay = min_retry_delay;
 	}
 	
 	void openIO() throws java.io.IOException {
@@ -122,14 +160,18 @@ class SCTPNode extends NodeImplementation {
 		sctp_socket.configureBlocking(false);
 		
 		for(;;) {
-			boolean tmp_any_queued_messages;
+			boolean any_blocked;
 			synchronized(getLockObject()) {
-				if(any_queued_messages) {
-					tmp_any_queued_messages = trySendQueuedMessages();
-				} else
-					tmp_any_queued_messages = false;
+				any_blocked = !blocked_connections.isEmpty();
+			}
+			if(any_blocked) {
+				long now = System.currentTimeMillis();
+				if(now>=next_retry)
+					any_blocked = trySendQueuedMessages(now);
 			}
 			
+			startConnections();
+			
 			if(please_stop) {
 				if(System.currentTimeMillis()>=shutdown_deadline)
 					break;
@@ -137,13 +179,13 @@ class SCTPNode extends NodeImplementation {
 					break;
 			}
 			long timeout = calcNextTimeout();
+			long connect_deadline = nextConnectDeadline();
+			if(connect_deadline!=-1 && (timeout==-1 || connect_deadline<timeout))
+				timeout = connect_deadline;
 			
-			if(tmp_any_queued_messages) {
-				//If there are any queued messages then we only wait for 200ms
-				if(timeout==-1)
-					timeout = 200;
-				else
-					timeout = Math.min(timeout,200);
+			if(any_blocked) {
+				if(timeout==-1 || next_retry<timeout)
+					timeout = next_retry;
 			}
 			
 			SCTPChunk chunk;
@@ -158,8 +200,12 @@ class SCTPNode extends NodeImplementation {
 				chunk = sctp_socket.receive();
 			//System.out.println("Woke up from select()");
 			
-			if(chunk!=null)
+			if(chunk!=null) {
 				processChunk(chunk);
+				//Retry blocked connections right away; the chunk may have
+				//been sent along with acknowledgements that freed buffer space
+				next_retry = 0;
+			}
 		
 /*
 				if(key.isAcceptable()) {
@@ -251,6 +297,7 @@ class SCTPNode extends NodeImplementation {
 	}
 	
 	private void processDataChunk(SCTPConnection conn, SCTPData data) {
+		conn.input_time = FlightRecorderEvents.dispatchEnabled() ? System.nanoTime() : 0;
 		int raw_bytes = data.getLength();
 		byte[] raw = data.getData();
 		
@@ -265,6 +312,8 @@ class SCTPNode extends NodeImplementation {
 			closeConnection(conn,true);
 			return;
 		}
+		if(!admitMessage(conn,raw,0,msg_size))
+			return;
 		Message msg = new Message();
 		Message.decode_status status = msg.decode(raw,0,msg_size);
 		switch(status) {
@@ -328,19 +377,19 @@ class SCTPNode extends NodeImplementation {
 						logger.log(Level.INFO,"Got an association connection from <unknown> port "+port);
 
 					SCTPConnection conn = null;
-					if(!outstanding_connections.isEmpty()) {
-						//Maybe it was one we initiated
-						OutstandingConnection oc=outstanding_connections.peek();
-						for(InetAddress a:coll_address) {
-							if(a.equals(oc.address) &&
-							   port==oc.peer.port())
-							{
-								//Yes, it was our outstanding connection
-								outstanding_connections.removeFirst();
-								scheduleNextConnection();
-								conn = oc.conn;
-								logger.log(Level.FINE,"Outstading connection to "+conn.host_id+" completed");
-							}
+					//Maybe it was one we initiated
+					OutstandingConnection oc = findOutstandingConnection(coll_address,port);
+					if(oc!=null) {
+						//Yes, it was our outstanding connection
+						outstanding_connections.remove(oc);
+						conn = oc.conn;
+						logger.log(Level.FINE,"Outstading connection to "+conn.host_id+" completed");
+						if(oc.given_up || conn.state==Connection.State.closed) {
+							//Given up on while it was being set up
+							try {
+								sctp_socket.disconnect(assoc_id);
+							} catch(java.net.SocketException ex) {}
+							return;
 						}
 					}
 					
@@ -443,14 +492,25 @@ class SCTPNode extends NodeImplementation {
 							break;
 						case SCTP_CANT_STR_ASSOC: {
 							logger.log(Level.INFO,"Received cant-strt-assoc notification on association "+assoc_id);
-							//And outstanding connect operatio failed.
-							OutstandingConnection oc = outstanding_connections.peek();
+							//An outstanding connect operation failed. Find out which
+							OutstandingConnection oc = null;
+							try {
+								oc = findOutstandingConnection(sctp_socket.getPeerInetAddresses(assoc_id),
+								                               sctp_socket.getPeerInetPort(assoc_id));
+							} catch(java.net.SocketException ex) { }
+							if(oc==null && outstanding_connections.size()==1)
+								oc = outstanding_connections.peek();
 							if(oc!=null) {
-								logger.log(Level.INFO,"SCTP connection to "+oc.conn.host_id+" failed.");
-								outstanding_connections.removeFirst();
-								conn = oc.conn;
-							} else {
+								outstanding_connections.remove(oc);
+								if(!oc.given_up) {
+									logger.log(Level.INFO,"SCTP connection to "+oc.conn.host_id+" failed.");
+									conn = oc.conn;
+								}
+							} else if(outstanding_connections.isEmpty()) {
 								logger.log(Level.WARNING,"Got a cant-start-association association-change-event but no outstanding connect operation was found");
+							} else {
+								//It is given up on when its connect timeout expires
+								logger.log(Level.FINE,"Could not tell which of the outstanding connect operations failed");
 							}
 							break;
 						}
@@ -491,88 +551,203 @@ class SCTPNode extends NodeImplementation {
 		}
 	}
 	
-	void sendMessage(SCTPConnection conn, byte[] raw) {
+	void sendMessage(SCTPConnection conn, byte[] raw, OutputLane lane) {
 		logger.log(Level.FINEST,"sendMessage():");
-		try {
-			SCTPData data = new SCTPData(raw);
-			data.sndrcvinfo.sinfo_assoc_id = conn.assoc_id;
-			data.sndrcvinfo.sinfo_stream = conn.nextOutStream();
-			sctp_socket.send(data);
-		} catch(java.net.SocketException ex) {
-			//TODO: re-throw
-			//We don't close the association here. We 
-			//will get the proper notification later on.
-		} catch(WouldBlockException ex) {
-			conn.queueMessage(raw);
-			any_queued_messages = true;
-			try {
-				sctp_socket.wakeup();
-			} catch(java.net.SocketException ex2) {}
-		}
-	}
-	
-	//Try sending the queued messages of all connections.
-	//Return whether there are any queued messages left
-	private boolean trySendQueuedMessages() {
-		boolean any_left=false;
-		for(Map.Entry<AssociationId,SCTPConnection> e : map.entrySet()) {
-			SCTPConnection conn = e.getValue();
-			byte[] raw;
-			while((raw=conn.peekFirstQueuedMessage())!=null) {
+		synchronized(conn) {
+			//The connection lock keeps the messages of a stream in order
+			short stream = conn.outStream(raw,lane);
+			if(!conn.isStreamBlocked(stream)) {
 				try {
 					SCTPData data = new SCTPData(raw);
 					data.sndrcvinfo.sinfo_assoc_id = conn.assoc_id;
-					data.sndrcvinfo.sinfo_stream = conn.nextOutStream();
+					data.sndrcvinfo.sinfo_stream = stream;
 					sctp_socket.send(data);
-					conn.removeFirstQueuedMessage();
+					return;
 				} catch(java.net.SocketException ex) {
-					any_left = true;
-					break;
+					//TODO: re-throw
+					//We don't close the association here. We 
+					//will get the proper notification later on.
+					return;
 				} catch(WouldBlockException ex) {
-					any_left = true;
-					break;
 				}
 			}
+			conn.queueMessage(stream,raw);
+		}
+		synchronized(getLockObject()) {
+			if(conn.state==Connection.State.closed)
+				return; //close() has already dropped the queued messages
+			outputQueueChanged(conn,raw.length);
+			if(conn.send_blocked)
+				return; //the node thread already knows
+			conn.send_blocked = true;
+			blocked_connections.addLast(conn);
+			if(blocked_connections.size()!=1)
+				return; //the node thread already retries
+		}
+		try {
+			sctp_socket.wakeup();
+		} catch(java.net.SocketException ex2) {}
+	}
+	
+	//Try sending the queued messages of the blocked connections. The
+	//streams of a connection take turns so one busy stream does not hold
+	//up the others. Schedules the next retry and returns true if any
+	//connection is still blocked. The connections being retried stay
+	//send_blocked but are out of blocked_connections until they are done,
+	//so the node lock is not held while sending.
+	private boolean trySendQueuedMessages(long now) {
+		SCTPConnection[] conns;
+		synchronized(getLockObject()) {
+			conns = blocked_connections.toArray(new SCTPConnection[blocked_connections.size()]);
+			blocked_connections.clear();
+		}
+		boolean progress=false;
+		for(SCTPConnection conn : conns) {
+			long sent=0;
+			synchronized(conn) {
+				byte[] raw;
+				while((raw=conn.peekQueuedMessage())!=null) {
+					try {
+						SCTPData data = new SCTPData(raw);
+						data.sndrcvinfo.sinfo_assoc_id = conn.assoc_id;
+						data.sndrcvinfo.sinfo_stream = (short)conn.nextQueuedStream();
+						sctp_socket.send(data);
+						conn.removeQueuedMessage();
+						sent += raw.length;
+					} catch(java.net.SocketException ex) {
+						break;
+					} catch(WouldBlockException ex) {
+						break;
+					}
+				}
+			}
+			if(sent!=0)
+				progress = true;
+			synchronized(getLockObject()) {
+				if(conn.state==Connection.State.closed)
+					continue; //close() has already dropped the queued messages
+				if(sent!=0)
+					outputQueueChanged(conn,-sent);
+				boolean blocked;
+				synchronized(conn) {
+					//also catches messages queued after the loop above
+					blocked = conn.peekQueuedMessage()!=null;
+				}
+				if(blocked)
+					blocked_connections.addLast(conn);
+				else
+					conn.send_blocked = false;
+			}
+		}
+		boolean any_blocked;
+		synchronized(getLockObject()) {
+			any_blocked = !blocked_connections.isEmpty();
 		}
-		return any_left;
+		if(!any_blocked || progress)
+			retry_delay = min_retry_delay;
+		else
+			retry_delay = Math.min(retry_delay*2,max_retry_delay);
+		next_retry = now+retry_delay;
+		return any_blocked;
 	}
 	
 	boolean initiateConnection(Connection conn_, Peer peer) {
 		SCTPConnection conn = (SCTPConnection)conn_;
-		OutstandingConnection oc = new OutstandingConnection(conn,peer);
-		boolean was_empty = outstanding_connections.isEmpty();
-		outstanding_connections.addLast(oc);
-		if(was_empty) {
-			return scheduleNextConnection();
-		}
+		final OutstandingConnection oc = new OutstandingConnection(conn,peer);
+		conn.state = Connection.State.connecting;
+		hostResolver().resolve(peer.host(), new HostResolver.Callback() {
+			public void resolved(String host, InetAddress address) {
+				oc.address = address;
+				resolved_connections.add(oc);
+				if(sctp_socket!=null) //(null if the node has been stopped)
+					wakeup();
+			}
+		});
 		return true;
 	}
 	
-	//Schedules the first element in the outstanding_connections list
-	//Continues until a connect() does fail or list is empty
-	private boolean scheduleNextConnection() {
-		while(!outstanding_connections.isEmpty()) {
-			OutstandingConnection oc = outstanding_connections.peek();
-			Peer peer=oc.peer;
-			SCTPConnection conn = oc.conn;
+	/**
+	 * Start connecting the resolved connections while there are free
+	 * connect slots, and give up on connection attempts that have timed out.
+	 * Called by the node thread.
+	 */
+	private void startConnections() {
+		OutstandingConnection oc;
+		while((oc=resolved_connections.poll())!=null) {
+			if(oc.address==null) {
+				logger.log(Level.WARNING,"Cannot connect to '"+oc.peer.host()+"' because the host name could not be resolved");
+				unregisterConnection(oc.conn);
+			} else
+				pending_connections.addLast(oc);
+		}
+		long now = System.currentTimeMillis();
+		for(Iterator<OutstandingConnection> it=outstanding_connections.iterator(); it.hasNext(); ) {
+			oc = it.next();
+			if(oc.given_up) {
+				if(oc.deadline<=now)
+					it.remove(); //its association will not come up now
+				continue;
+			}
+			if(oc.deadline<=now || oc.conn.state==Connection.State.closed) {
+				oc.given_up = true;
+				oc.deadline = now + connect_timeout;
+				if(oc.conn.state!=Connection.State.closed) {
+					logger.log(Level.INFO,"SCTP connection to "+oc.conn.host_id+" timed out.");
+					oc.conn.closed = true; //there is no association to close
+					closeConnection(oc.conn);
+				}
+			}
+		}
+		for(Iterator<OutstandingConnection> it=pending_connections.iterator();
+		    it.hasNext() && outstanding_connections.size()<settings.SCTPConnectConcurrency(); )
+		{
+			oc = it.next();
+			if(oc.conn.state==Connection.State.closed) {
+				it.remove();
+				continue;
+			}
+			if(findOutstandingConnection(java.util.Collections.singleton(oc.address),oc.peer.port())!=null)
+				continue; //wait for the other attempt to the same address and port
+			it.remove();
 			try {
-				oc.address = InetAddress.getByName(peer.host());
-				InetSocketAddress sock_addr = new InetSocketAddress(oc.address,peer.port());
+				InetSocketAddress sock_addr = new InetSocketAddress(oc.address,oc.peer.port());
 				logger.log(Level.FINEST,"Initiating SCTP connection to " + sock_addr.toString());
 				sctp_socket.connect(sock_addr);
-				conn.state = Connection.State.connecting;
-				return true;
+				oc.deadline = now + connect_timeout;
+				outstanding_connections.addLast(oc);
 			} catch(java.io.IOException ex) {
-				logger.log(Level.WARNING,"java.io.IOException caught while initiating connection to '" + peer.host() +"'.", ex);
-				outstanding_connections.removeFirst();
+				logger.log(Level.WARNING,"java.io.IOException caught while initiating connection to '" + oc.peer.host() +"'.", ex);
+				unregisterConnection(oc.conn);
+			}
+		}
+	}
+	
+	//Returns the earliest deadline of the outstanding connection attempts, or -1
+	private long nextConnectDeadline() {
+		long deadline = -1;
+		for(OutstandingConnection oc : outstanding_connections) {
+			if(deadline==-1 || oc.deadline<deadline)
+				deadline = oc.deadline;
+		}
+		return deadline;
+	}
+	
+	private OutstandingConnection findOutstandingConnection(Collection<InetAddress> addresses, int port) {
+		for(OutstandingConnection oc : outstanding_connections) {
+			for(InetAddress a : addresses) {
+				if(oc.matches(a,port))
+					return oc;
 			}
 		}
-		return false;
+		return null;
 	}
 	
 	void close(Connection conn_, boolean reset) {
 		SCTPConnection conn = (SCTPConnection)conn_;
-		if(!conn.closed) {
+		if(conn.assoc_id==null) {
+			//Not set up yet. The node thread drops the connection attempt
+			wakeup();
+		} else if(!conn.closed) {
 			logger.log(Level.FINEST,"Closing connection (SCTP) to "+conn.host_id);
 			try {
 				sctp_socket.disconnect(conn.assoc_id,reset);
@@ -581,6 +756,15 @@ class SCTPNode extends NodeImplementation {
 			}
 		}
 		map.remove(conn.assoc_id);
+		synchronized(getLockObject()) {
+			//queued messages are dropped
+			if(conn.send_blocked) {
+				blocked_connections.remove(conn);
+				conn.send_blocked = false;
+			}
+			if(conn.output_bytes!=0)
+				outputQueueChanged(conn,-conn.output_bytes);
+		}
 	}
 	
 	Connection newConnection(long watchdog_interval, long idle_timeout) {
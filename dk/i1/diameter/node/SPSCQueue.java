@@ -0,0 +1,44 @@
+package dk.i1.diameter.node;
+
+/**
+ * Unbounded lock-free single-producer single-consumer queue.
+ * One thread at a time may call offer() and one thread at a time may call
+ * poll() and isEmpty(). Producers that are serialized by a lock count as
+ * a single producer.
+ */
+class SPSCQueue<E> {
+	private static class Entry<E> {
+		E value;
+		volatile Entry<E> next;
+	}
+	private Entry<E> head; //sentinel. Only used by the consumer
+	private Entry<E> tail; //only used by the producer
+	
+	SPSCQueue() {
+		head = tail = new Entry<E>();
+	}
+	
+	void offer(E value) {
+		Entry<E> e = new Entry<E>();
+		e.value = value;
+		tail.next = e; //publishes the value to the consumer
+		tail = e;
+	}
+	
+	/**
+	 * Returns the oldest element, or null if the queue is empty.
+	 */
+	E poll() {
+		Entry<E> e = head.next;
+		if(e==null)
+			return null;
+		E value = e.value;
+		e.value = null;
+		head = e;
+		return value;
+	}
+	
+	boolean isEmpty() {
+		return head.next==null;
+	}
+}
@@ -0,0 +1,87 @@
+package dk.i1.diameter.node;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A name resolver with a fixed set of host names.
+ * It is useful for tests, and for setups where the addresses of the peers
+ * are configured rather than looked up. The host names can be added one
+ * by one or read from a file in the format of /etc/hosts:
+ * <pre>
+ * # address  host name  aliases...
+ * 192.0.2.10 aaa1.example.net aaa1
+ * </pre>
+ * Host names are case-insensitive.
+ * @since 0.9.7
+ */
+public class StaticNameResolver implements NameResolver {
+	private Map<String,ArrayList<InetAddress>> hosts;
+	
+	/**
+	 * Constructs an empty resolver.
+	 */
+	public StaticNameResolver() {
+		hosts = new HashMap<String,ArrayList<InetAddress>>();
+	}
+	
+	/**
+	 * Add an address of a host.
+	 * A host can have several addresses. They are returned in the order
+	 * they were added.
+	 */
+	public synchronized void add(String host, InetAddress address) {
+		String key = host.toLowerCase();
+		ArrayList<InetAddress> addresses = hosts.get(key);
+		if(addresses==null) {
+			addresses = new ArrayList<InetAddress>();
+			hosts.put(key,addresses);
+		}
+		addresses.add(address);
+	}
+	
+	/**
+	 * Read host names from a file in the format of /etc/hosts.
+	 * Each line has an IP address followed by one or more host names.
+	 * Everything after a '#' is a comment.
+	 * @param filename The file to read
+	 * @return A resolver with the host names of the file
+	 * @throws java.io.IOException If the file could not be read, or has a line with an invalid IP address
+	 */
+	public static StaticNameResolver fromFile(String filename) throws java.io.IOException {
+		StaticNameResolver resolver = new StaticNameResolver();
+		BufferedReader r = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			int line_number=0;
+			while((line=r.readLine())!=null) {
+				line_number++;
+				int i = line.indexOf('#');
+				if(i!=-1)
+					line = line.substring(0,i);
+				String fields[] = line.trim().split("\\s+");
+				if(fields.length<2)
+					continue;
+				if(!HostResolver.isLiteral(fields[0]))
+					throw new java.io.IOException(filename+":"+line_number+": not an IP address: "+fields[0]);
+				InetAddress address = InetAddress.getByName(fields[0]); //no lookup for a literal address
+				for(i=1; i<fields.length; i++)
+					resolver.add(fields[i],address);
+			}
+		} finally {
+			r.close();
+		}
+		return resolver;
+	}
+	
+	public synchronized InetAddress[] resolve(String host) throws UnknownHostException {
+		ArrayList<InetAddress> addresses = hosts.get(host.toLowerCase());
+		if(addresses==null)
+			throw new UnknownHostException(host);
+		return addresses.toArray(new InetAddress[addresses.size()]);
+	}
+}
@@ -8,47 +8,56 @@ import java.util.ArrayList;
 
 class TCPConnection extends Connection {
 	TCPNode node_impl;
+	TCPNode.Reactor reactor;
 	SocketChannel channel;
 	ConnectionBuffers connection_buffers;
+	OutputQueue output_queue;
+	boolean flush_scheduled; //in the node's list of connections to flush
+	long flush_deadline;     //for FlushPolicy.threshold
+	boolean input_leftover;  //complete messages are waiting in the input buffer
+	long turn;               //the selector iteration the connection last had a turn in
 	
 	public TCPConnection(TCPNode node_impl, long watchdog_interval, long idle_timeout) {
 		super(node_impl,watchdog_interval,idle_timeout);
 		this.node_impl = node_impl;
-		connection_buffers = new NormalConnectionBuffers();
+		if(node_impl.settings.pooledConnectionBuffers())
+			connection_buffers = new PooledConnectionBuffers(node_impl.bufferPool());
+		else
+			connection_buffers = new NormalConnectionBuffers();
+		output_queue = new OutputQueue();
 	}
 	
 	void makeSpaceInNetInBuffer() {
 		connection_buffers.makeSpaceInNetInBuffer();
 	}
-	void makeSpaceInAppOutBuffer(int how_much) {
-		connection_buffers.makeSpaceInAppOutBuffer(how_much);
-	}
 	void consumeAppInBuffer(int bytes) {
 		connection_buffers.consumeAppInBuffer(bytes);
 	}
-	void consumeNetOutBuffer(int bytes) {
-		connection_buffers.consumeNetOutBuffer(bytes);
-	}
+	//True if there is output that can be written now
 	boolean hasNetOutput() {
-		return connection_buffers.netOutBuffer().position()!=0;
+		return connection_buffers.hasNetOutput() ||
+		       (!output_queue.isEmpty() && connection_buffers.canWriteAppOutput());
 	}
 	
-	void processNetInBuffer() {
+	void processNetInBuffer() throws java.io.IOException {
 		connection_buffers.processNetInBuffer();
 	}
-	void processAppOutBuffer() {
-		connection_buffers.processAppOutBuffer();
-	}
 	
 	InetAddress toInetAddress() {
 		return ((InetSocketAddress)(channel.socket().getRemoteSocketAddress())).getAddress();
 	}
 	
-	void sendMessage(byte[] raw) {
-		node_impl.sendMessage(this,raw);
+	void sendMessage(byte[] raw, OutputLane lane) {
+		node_impl.sendMessage(this,raw,lane);
+	}
+	
+	OutputLaneStatistics outputLaneStatistics() {
+		return output_queue.statistics();
 	}
 	
 	Object getRelevantNodeAuthInfo() {
+		if(connection_buffers instanceof TLSConnectionBuffers)
+			return ((TLSConnectionBuffers)connection_buffers).engine().getSession();
 		return channel;
 	}
 	
@@ -59,6 +68,8 @@ class TCPConnection extends Connection {
 	}
 	
 	Peer toPeer() {
-		return new Peer(toInetAddress(),channel.socket().getPort());
+		Peer peer = new Peer(toInetAddress(),channel.socket().getPort());
+		peer.secure(connection_buffers instanceof TLSConnectionBuffers);
+		return peer;
 	}
 }
@@ -5,43 +5,140 @@ import java.net.*;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
 import dk.i1.diameter.Message;
 
 class TCPNode extends NodeImplementation {
-	private Thread node_thread;
-	private Selector selector;
-	private ServerSocketChannel serverChannel;
+	private static final int accept_batch = 64; //max connections accepted per listener per iteration
+	Reactor reactors[];
+	private int next_reactor; //for distributing connections. Protected by reactors
+	boolean single_listener; //one reactor accepts connections for all of them
 	private boolean please_stop;
 	private long shutdown_deadline;
+	private ExecutorService tls_executor; //runs the delegated tasks of TLS handshakes
 	public TCPNode(Node node, NodeSettings settings, Logger logger) {
 		super(node,settings,logger);
 	}
 	
 	void openIO() throws java.io.IOException {
-		// create a new Selector for use below
-		selector = Selector.open();
+		int count = reactorCount();
+		reactors = new Reactor[count];
+		for(int i=0; i<count; i++)
+			reactors[i] = new Reactor(i,count);
+		SSLContext tls_context = settings.TLSContext();
+		if(tls_context!=null) {
+			tls_context.getClientSessionContext().setSessionCacheSize(settings.TLSSessionCacheSize());
+			tls_context.getClientSessionContext().setSessionTimeout(settings.TLSSessionTimeout());
+			tls_context.getServerSessionContext().setSessionCacheSize(settings.TLSSessionCacheSize());
+			tls_context.getServerSessionContext().setSessionTimeout(settings.TLSSessionTimeout());
+			tls_executor = Executors.newFixedThreadPool(settings.TLSHandshakeThreads(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r,"DiameterNode TLS handshake thread");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		openListeners();
+	}
+	
+	/* The following methods are overridden by subclasses for other stream
+	 * transports (see UnixNode) */
+	
+	String transportName() {
+		return "TCP";
+	}
+	
+	int reactorCount() {
+		return settings.TCPReactorCount();
+	}
+	
+	void openListeners() throws java.io.IOException {
+		int count = reactors.length;
 		if(settings.port()!=0) {
-			// allocate an unbound server socket channel
-			serverChannel = ServerSocketChannel.open();
-			// Get the associated ServerSocket to bind it with
-			ServerSocket serverSocket = serverChannel.socket();
-			// set the port the server channel will listen to
-			serverSocket.bind(new InetSocketAddress (settings.port()));
+			boolean reuse_port = count>1 && reusePortSupported();
+			single_listener = count>1 && !reuse_port;
+			if(single_listener)
+				logger.log(Level.INFO,"SO_REUSEPORT is not supported. Accepting TCP connections on one reactor");
+			for(Reactor r : reactors) {
+				// allocate an unbound server socket channel
+				r.server_channel = ServerSocketChannel.open();
+				if(reuse_port)
+					r.server_channel.setOption(StandardSocketOptions.SO_REUSEPORT,true);
+				// Get the associated ServerSocket to bind it with
+				ServerSocket serverSocket = r.server_channel.socket();
+				// set the port the server channel will listen to
+				serverSocket.bind(new InetSocketAddress (settings.port()));
+				if(!reuse_port)
+					break;
+			}
+		}
+		if(settings.TLSPort()!=0) {
+			if(settings.TLSContext()==null)
+				logger.log(Level.WARNING,"A TLS port has been set but there is no TLS context. Not listening for TLS connections");
+			else {
+				//TLS connections are accepted by the first reactor and
+				//distributed to the others in turn
+				reactors[0].tls_server_channel = ServerSocketChannel.open();
+				reactors[0].tls_server_channel.socket().bind(new InetSocketAddress(settings.TLSPort()));
+			}
+		}
+	}
+	
+	//Identify the peer of an inbound connection until it has sent a CER
+	String remoteHostId(SocketChannel channel) throws java.io.IOException {
+		InetSocketAddress address = (InetSocketAddress)channel.getRemoteAddress();
+		return address.getAddress().getHostAddress();
+	}
+	
+	SocketChannel openChannel() throws java.io.IOException {
+		SocketChannel channel = SocketChannel.open();
+		NodeSettings.PortRange port_range = settings.TCPPortRange();
+		if(port_range!=null)
+			bindChannelInRange(channel,port_range.min,port_range.max);
+		return channel;
+	}
+	
+	//The address to connect to, or null if the host name of the peer has
+	//to be resolved first
+	SocketAddress remoteAddress(Peer peer) {
+		return null;
+	}
+	
+	private static boolean reusePortSupported() {
+		try {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			} finally {
+				channel.close();
+			}
+		} catch(java.io.IOException ex) {
+			return false;
 		}
 	}
 	
 	void start() {
 		logger.log(Level.FINEST,"Starting TCP node");
 		please_stop = false;
-		node_thread = new SelectThread();
-		node_thread.setDaemon(true);
-		node_thread.start();
+		for(Reactor r : reactors) {
+			r.setDaemon(true);
+			r.start();
+		}
 		logger.log(Level.FINEST,"Started TCP node");
 	}
 	
 	void wakeup() {
-		logger.log(Level.FINEST,"Waking up selector thread");
-		selector.wakeup();
+		logger.log(Level.FINEST,"Waking up selector threads");
+		for(Reactor r : reactors)
+			r.selector.wakeup();
 	}
 	
 	void initiateStop(long shutdown_deadline) {
@@ -52,47 +149,106 @@ class TCPNode extends NodeImplementation {
 	}
 	
 	void join() {
-		logger.log(Level.FINEST,"Joining selector thread");
-		try {
-			node_thread.join();
-		} catch(java.lang.InterruptedException ex) {}
-		node_thread = null;
-		logger.log(Level.FINEST,"Selector thread joined");
+		logger.log(Level.FINEST,"Joining selector threads");
+		for(Reactor r : reactors) {
+			try {
+				r.join();
+			} catch(java.lang.InterruptedException ex) {}
+		}
+		logger.log(Level.FINEST,"Selector threads joined");
 	}
 	
 	void closeIO() {
-		logger.log(Level.FINEST,"Closing server channel, etc.");
-		if(serverChannel!=null) {
+		logger.log(Level.FINEST,"Closing server channels, etc.");
+		for(Reactor r : reactors) {
+			if(r.server_channel!=null) {
+				try {
+					r.server_channel.close();
+				} catch(java.io.IOException ex) {}
+			}
+			r.server_channel=null;
+			if(r.tls_server_channel!=null) {
+				try {
+					r.tls_server_channel.close();
+				} catch(java.io.IOException ex) {}
+			}
+			r.tls_server_channel=null;
 			try {
-				serverChannel.close();
+				r.selector.close();
 			} catch(java.io.IOException ex) {}
 		}
-		serverChannel=null;
-		try {
-			selector.close();
-		} catch(java.io.IOException ex) {}
-		selector = null;
-		logger.log(Level.FINEST,"Closed selector, etc.");
+		if(tls_executor!=null)
+			tls_executor.shutdown();
+		tls_executor = null;
+		logger.log(Level.FINEST,"Closed selectors, etc.");
+	}
+	
+	//Pick the reactor for a new connection
+	private Reactor nextReactor() {
+		synchronized(reactors) {
+			Reactor r = reactors[next_reactor];
+			next_reactor = (next_reactor+1)%reactors.length;
+			return r;
+		}
 	}
 	
-	private class SelectThread extends Thread {
-	    public SelectThread() {
-			super("DiameterNode thread (TCP)");
+	/**
+	 * A selector thread.
+	 * Each reactor has its own selector and optionally a listening socket,
+	 * and handles the I/O of the connections assigned to it. Connection
+	 * timers are run by the first reactor.
+	 */
+	class Reactor extends Thread {
+		final Selector selector;
+		ServerSocketChannel server_channel;
+		ServerSocketChannel tls_server_channel;
+		private final boolean runs_timers;
+		private ArrayList<TCPConnection> flush_list; //connections with output waiting for a flush. Protected by the node lock
+		private ArrayList<TCPConnection> closed_list; //closed connections whose buffers must be released. Protected by the node lock
+		private ArrayList<TCPConnection> handoff_list; //accepted connections handed over by another reactor. Protected by itself
+		private ArrayList<TCPConnection> resume_list; //TLS connections whose handshake can continue. Protected by itself
+		//Input processing budget. Only used by the reactor thread
+		private static final int min_decode_budget = 8;
+		private static final int max_decode_budget = 1024;
+		private int decode_budget; //messages per connection per turn
+		private ArrayDeque<TCPConnection> leftover_list; //connections that used up their budget, in round-robin order
+		private long iteration;
+		private byte size_buf[];
+		
+		Reactor(int index, int count) throws java.io.IOException {
+			super(count==1 ? "DiameterNode thread ("+transportName()+")" : "DiameterNode thread ("+transportName()+" reactor "+index+")");
+			// create a new Selector for use below
+			selector = Selector.open();
+			runs_timers = index==0;
+			flush_list = new ArrayList<TCPConnection>();
+			closed_list = new ArrayList<TCPConnection>();
+			handoff_list = new ArrayList<TCPConnection>();
+			resume_list = new ArrayList<TCPConnection>();
+			decode_budget = 128;
+			leftover_list = new ArrayDeque<TCPConnection>();
+			size_buf = new byte[4];
 		}
+		
 	    public void run() {
 			try {
 				run_();
-				if(serverChannel!=null)
-					serverChannel.close();
+				if(server_channel!=null)
+					server_channel.close();
+				if(tls_server_channel!=null)
+					tls_server_channel.close();
 			} catch(java.io.IOException ex) {}
 		}
 	    private void run_() throws java.io.IOException {
-		if(serverChannel!=null) {
+		if(server_channel!=null) {
 			// set non-blocking mode for the listening socket
-			serverChannel.configureBlocking(false);
+			server_channel.configureBlocking(false);
 			
 			// register the ServerSocketChannel with the Selector
-			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			server_channel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		if(tls_server_channel!=null) {
+			tls_server_channel.configureBlocking(false);
+			tls_server_channel.register(selector, SelectionKey.OP_ACCEPT);
 		}
 		
 		for(;;) {
@@ -102,10 +258,20 @@ class TCPNode extends NodeImplementation {
 				if(!anyOpenConnections())
 					break;
 			}
-			long timeout = calcNextTimeout();
+			long timeout;
+			if(runs_timers)
+				timeout = calcNextTimeout();
+			else
+				timeout = please_stop ? shutdown_deadline : -1;
+			long flush_timeout = nextFlushDeadline();
+			if(flush_timeout!=-1 && (timeout==-1 || flush_timeout<timeout))
+				timeout = flush_timeout;
 			int n;
 			//System.out.println("selecting...");
-			if(timeout!=-1) {
+			if(!leftover_list.isEmpty()) {
+				//there is work to do already. Just pick up new events
+				n = selector.selectNow();
+			} else if(timeout!=-1) {
 				long now=System.currentTimeMillis();
 				if(timeout>now)
 					n = selector.select(timeout-now);
@@ -114,31 +280,51 @@ class TCPNode extends NodeImplementation {
 			} else
 				n = selector.select();
 			//System.out.println("Woke up from select()");
+			iteration++;
+			long iteration_start = System.nanoTime();
+			
+			registerHandedOff();
+			processResumed();
 			
 			// get an iterator over the set of selected keys
 			Iterator it = selector.selectedKeys().iterator();
 			// look at each key in the selected set
 			while(it.hasNext()) {
 				SelectionKey key = (SelectionKey)it.next();
+				if(!key.isValid()) {
+					//closed earlier in this iteration
+					it.remove();
+					continue;
+				}
 				
 				if(key.isAcceptable()) {
 					logger.log(Level.FINE,"Got an inbound connection (key is acceptable)");
 					ServerSocketChannel server = (ServerSocketChannel)key.channel();
-					SocketChannel channel = server.accept();
-					InetSocketAddress address = (InetSocketAddress)channel.socket().getRemoteSocketAddress();
-					logger.log(Level.INFO,"Got an inbound connection from " + address.toString());
-					if(!please_stop) {
-						TCPConnection conn = new TCPConnection(TCPNode.this,settings.watchdogInterval(),settings.idleTimeout());
-						conn.host_id = address.getAddress().getHostAddress();
-						conn.state = Connection.State.connected_in;
-						conn.channel = channel;
-						channel.configureBlocking(false);
-						channel.register(selector, SelectionKey.OP_READ, conn);
-						
-						registerInboundConnection(conn);
-					} else {
-						//We don't want to add the connection if were are shutting down.
-						channel.close();
+					boolean tls = server==tls_server_channel;
+					//Accept a batch so a connection storm is not handled one connection per select()
+					for(int i=0; i<accept_batch; i++) {
+						SocketChannel channel = server.accept();
+						if(channel==null)
+							break;
+						if(please_stop) {
+							//We don't want to add the connection if were are shutting down.
+							channel.close();
+							continue;
+						}
+						Reactor r = single_listener||tls ? nextReactor() : this;
+						TCPConnection conn;
+						try {
+							conn = accepted(channel,r,tls);
+						} catch(java.io.IOException ex) {
+							logger.log(Level.FINE,"Could not set up inbound connection",ex);
+							channel.close();
+							continue;
+						}
+						FlightRecorderEvents.connection(conn,"accept");
+						if(r==this)
+							registerAccepted(conn);
+						else
+							r.handOff(conn);
 					}
 				} else if(key.isConnectable()) {
 					logger.log(Level.FINE,"An outbound connection is ready (key is connectable)");
@@ -150,6 +336,8 @@ class TCPNode extends NodeImplementation {
 							conn.state = Connection.State.connected_out;
 							channel.register(selector, SelectionKey.OP_READ, conn);
 							initiateCER(conn);
+							if(conn.state!=Connection.State.closed && conn.hasNetOutput())
+								channel.register(selector, SelectionKey.OP_READ|SelectionKey.OP_WRITE, conn); //eg. a TLS handshake
 						}
 					} catch(java.io.IOException ex) {
 						logger.log(Level.WARNING,"Connection to '"+conn.host_id+"' failed", ex);
@@ -164,9 +352,10 @@ class TCPNode extends NodeImplementation {
 					//System.out.println("key is readable");
 					SocketChannel channel = (SocketChannel)key.channel();
 					TCPConnection conn = (TCPConnection)key.attachment();
+					conn.turn = iteration;
 					handleReadable(conn);
 					if(conn.state!=Connection.State.closed &&
-					   conn.hasNetOutput())
+					   conn.hasNetOutput() && !conn.flush_scheduled)
 						channel.register(selector, SelectionKey.OP_READ|SelectionKey.OP_WRITE, conn);
 				} else if(key.isWritable()) {
 					logger.log(Level.FINEST,"Key is writable");
@@ -184,121 +373,392 @@ class TCPNode extends NodeImplementation {
 				it.remove();
 			}
 			
-			runTimers();
+			processLeftovers();
+			adaptDecodeBudget(System.nanoTime()-iteration_start);
+			
+			flushScheduled();
+			releaseClosed();
+			if(runs_timers) {
+				bufferPool().trim(System.currentTimeMillis());
+				runTimers();
+			}
 		}
+		releaseClosed();
 		
 		//Remaining connections are close by Node instance
 		
 		//selector is closed in stop()
 	    }
-	}
-	
-	private void handleReadable(TCPConnection conn) {
-		logger.log(Level.FINEST,"handlereadable()...");
-		conn.makeSpaceInNetInBuffer();
-		ConnectionBuffers connection_buffers = conn.connection_buffers;
-		logger.log(Level.FINEST,"pre: conn.in_buffer.position=" + connection_buffers.netInBuffer().position());
- 		int count;
-		try {
-			int loop_count=0;
-	 		while((count=conn.channel.read(connection_buffers.netInBuffer()))>0 && loop_count++<3) {
-				logger.log(Level.FINEST,"readloop: connection_buffers.netInBuffer().position=" + connection_buffers.netInBuffer().position());
-				conn.makeSpaceInNetInBuffer();
+		
+		private void registerAccepted(TCPConnection conn) throws java.io.IOException {
+			conn.channel.configureBlocking(false);
+			conn.channel.register(selector, SelectionKey.OP_READ, conn);
+			
+			registerInboundConnection(conn);
+		}
+		
+		//Called by the accepting reactor
+		private void handOff(TCPConnection conn) {
+			synchronized(handoff_list) {
+				handoff_list.add(conn);
 			}
-		} catch(java.io.IOException ex) {
-			logger.log(Level.FINE,"got IOException",ex);
-			closeConnection(conn);
-			return;
+			selector.wakeup();
 		}
-		conn.processNetInBuffer();
-		processInBuffer(conn);
- 		if(count<0 && conn.state!=Connection.State.closed) {
-			logger.log(Level.FINE,"count<0");
-			closeConnection(conn);
-			return;
- 		}
-	}
-	
-	private void processInBuffer(TCPConnection conn) {
-		ByteBuffer app_in_buffer = conn.connection_buffers.appInBuffer();
-		logger.log(Level.FINEST,"pre: app_in_buffer.position=" + app_in_buffer.position());
-		int raw_bytes=app_in_buffer.position();
-		byte[] raw = new byte[raw_bytes];
-		app_in_buffer.position(0);
-		app_in_buffer.get(raw);
-		app_in_buffer.position(raw_bytes);
-		int offset=0;
-		//System.out.println("processInBuffer():looping");
-		while(offset<raw.length) {
-			//System.out.println("processInBuffer(): inside loop offset=" + offset);
-			int bytes_left = raw.length-offset;
-			if(bytes_left<4) break;
-			int msg_size = Message.decodeSize(raw,offset);
-			if(bytes_left<msg_size) break;
-			Message msg = new Message();
-			Message.decode_status status = msg.decode(raw,offset,msg_size);
-			//System.out.println("processInBuffer():decoded, status=" + status);
-			switch(status) {
-				case decoded: {
-					logRawDecodedPacket(raw,offset,msg_size);
-					offset += msg_size;
-					boolean b = handleMessage(msg,conn);
-					if(!b) {
-						logger.log(Level.FINER,"handle error");
-						closeConnection(conn);
-						return;
-					}
-					break;
+		
+		private void registerHandedOff() {
+			ArrayList<TCPConnection> conns;
+			synchronized(handoff_list) {
+				if(handoff_list.isEmpty())
+					return;
+				conns = new ArrayList<TCPConnection>(handoff_list);
+				handoff_list.clear();
+			}
+			for(TCPConnection conn : conns) {
+				try {
+					if(please_stop)
+						conn.channel.close();
+					else
+						registerAccepted(conn);
+				} catch(java.io.IOException ex) {
+					logger.log(Level.FINE,"Could not register inbound connection",ex);
+					try {
+						conn.channel.close();
+					} catch(java.io.IOException ex2) {}
+				}
+			}
+		}
+		
+		//Called by a TLS handshake thread when a delegated task is done,
+		//or when input has to be processed again after a handshake write
+		void resumeTLS(TCPConnection conn) {
+			synchronized(resume_list) {
+				resume_list.add(conn);
+			}
+			selector.wakeup();
+		}
+		
+		private void processResumed() {
+			ArrayList<TCPConnection> conns;
+			synchronized(resume_list) {
+				if(resume_list.isEmpty())
+					return;
+				conns = new ArrayList<TCPConnection>(resume_list);
+				resume_list.clear();
+			}
+			for(TCPConnection conn : conns) {
+				if(conn.state==Connection.State.closed)
+					continue;
+				try {
+					conn.processNetInBuffer();
+				} catch(java.io.IOException ex) {
+					logger.log(Level.FINE,"TLS error",ex);
+					closeConnection(conn);
+					continue;
+				}
+				if(!conn.input_leftover) {
+					conn.turn = iteration;
+					processInBuffer(conn,decode_budget);
+				}
+				if(conn.state==Connection.State.closed)
+					continue;
+				if(conn.connection_buffers.inputClosed()) {
+					closeConnection(conn);
+					continue;
+				}
+				synchronized(getLockObject()) {
+					if(conn.state!=Connection.State.closed && conn.hasNetOutput())
+						outputBecameAvailable(conn);
+				}
+			}
+		}
+		
+		private void handleReadable(TCPConnection conn) {
+			logger.log(Level.FINEST,"handlereadable()...");
+			if(conn.input_leftover) {
+				//Don't read more until the backlog has been processed
+				processInBuffer(conn,decode_budget);
+				return;
+			}
+			conn.makeSpaceInNetInBuffer();
+			ConnectionBuffers connection_buffers = conn.connection_buffers;
+			logger.log(Level.FINEST,"pre: conn.in_buffer.position=" + connection_buffers.netInBuffer().position());
+	 		int count;
+			try {
+				int loop_count=0;
+		 		while((count=conn.channel.read(connection_buffers.netInBuffer()))>0 && loop_count++<3) {
+					logger.log(Level.FINEST,"readloop: connection_buffers.netInBuffer().position=" + connection_buffers.netInBuffer().position());
+					conn.makeSpaceInNetInBuffer();
 				}
-				case not_enough:
+			} catch(java.io.IOException ex) {
+				logger.log(Level.FINE,"got IOException",ex);
+				closeConnection(conn);
+				return;
+			}
+			try {
+				conn.processNetInBuffer();
+			} catch(java.io.IOException ex) {
+				logger.log(Level.FINE,"TLS error",ex);
+				closeConnection(conn);
+				return;
+			}
+			conn.input_time = FlightRecorderEvents.dispatchEnabled() ? System.nanoTime() : 0;
+			//Everything must be processed before an EOF is acted on
+			processInBuffer(conn,count<0 ? Integer.MAX_VALUE : decode_budget);
+	 		if((count<0 || conn.connection_buffers.inputClosed()) && conn.state!=Connection.State.closed) {
+				logger.log(Level.FINE,"count<0");
+				closeConnection(conn);
+				return;
+	 		}
+		}
+		
+		/**
+		 * Decode and handle the complete messages in the input buffer.
+		 * At most <tt>budget</tt> messages are handled. If there are more the
+		 * connection is put in the leftover list so it gets another turn after
+		 * the other connections.
+		 */
+		private void processInBuffer(TCPConnection conn, int budget) {
+			ByteBuffer app_in_buffer = conn.connection_buffers.appInBuffer();
+			logger.log(Level.FINEST,"pre: app_in_buffer.position=" + app_in_buffer.position());
+			int raw_bytes=app_in_buffer.position();
+			int offset=0;
+			int messages=0;
+			conn.input_leftover = false;
+			//System.out.println("processInBuffer():looping");
+			while(offset<raw_bytes && conn.state!=Connection.State.closed) {
+				//System.out.println("processInBuffer(): inside loop offset=" + offset);
+				int bytes_left = raw_bytes-offset;
+				if(bytes_left<4) break;
+				for(int i=0; i<4; i++)
+					size_buf[i] = app_in_buffer.get(offset+i);
+				int msg_size = Message.decodeSize(size_buf,0);
+				if(bytes_left<msg_size) break;
+				if(messages==budget) {
+					conn.input_leftover = true;
 					break;
-				case garbage:
-					logGarbagePacket(conn,raw,offset,msg_size);
-					closeConnection(conn,true);
+				}
+				//Only copy out the message itself so a large backlog is not copied over and over
+				byte[] raw = new byte[msg_size];
+				app_in_buffer.position(offset);
+				app_in_buffer.get(raw);
+				offset += msg_size;
+				messages++;
+				if(!admitMessage(conn,raw,0,msg_size))
+					continue;
+				Message msg = new Message();
+				FlightRecorderEvents.DecodeEvent event = new FlightRecorderEvents.DecodeEvent();
+				event.begin();
+				Message.decode_status status = msg.decode(raw,0,msg_size);
+				if(event.shouldCommit()) {
+					event.peer = conn.host_id;
+					event.size = msg_size;
+					event.avps = msg.size();
+					event.commandCode = msg.hdr.command_code;
+					event.request = msg.hdr.isRequest();
+					event.decoded = status==Message.decode_status.decoded;
+					event.commit();
+				}
+				//System.out.println("processInBuffer():decoded, status=" + status);
+				switch(status) {
+					case decoded: {
+						logRawDecodedPacket(raw,0,msg_size);
+						boolean b = handleMessage(msg,conn);
+						if(!b) {
+							logger.log(Level.FINER,"handle error");
+							closeConnection(conn);
+							return;
+						}
+						break;
+					}
+					case not_enough: //cannot happen. We have the whole message
+					case garbage:
+						logGarbagePacket(conn,raw,0,msg_size);
+						closeConnection(conn,true);
+						return;
+				}
+			}
+			app_in_buffer.position(raw_bytes);
+			conn.consumeAppInBuffer(offset);
+			if(conn.input_leftover && conn.state!=Connection.State.closed)
+				leftover_list.add(conn);
+			//System.out.println("processInBuffer(): the end");
+		}
+		
+		/**
+		 * Give the connections that used up their budget another turn, in
+		 * round-robin order. Connections that already had a turn in this
+		 * iteration (because they were readable) wait for the next iteration.
+		 */
+		private void processLeftovers() {
+			for(int n=leftover_list.size(); n>0; n--) {
+				TCPConnection conn = leftover_list.poll();
+				if(conn.state==Connection.State.closed || !conn.input_leftover)
+					continue;
+				if(conn.turn==iteration) {
+					leftover_list.add(conn);
+					continue;
+				}
+				conn.turn = iteration;
+				processInBuffer(conn,decode_budget);
+			}
+		}
+		
+		/**
+		 * Adapt the decode budget so that an iteration over all connections
+		 * takes 0.5-2ms when there is a backlog: a smaller budget gives the
+		 * other connections a turn sooner, a larger one has less overhead.
+		 */
+		private void adaptDecodeBudget(long iteration_time) {
+			if(leftover_list.isEmpty())
+				return;
+			if(iteration_time>2000000) {
+				if(decode_budget>min_decode_budget)
+					decode_budget /= 2;
+			} else if(iteration_time<500000) {
+				if(decode_budget<max_decode_budget)
+					decode_budget *= 2;
+			}
+		}
+		
+		/**
+		 * Write the output of connections whose flush is due.
+		 * Called by the selector thread at the end of each iteration.
+		 */
+		private void flushScheduled() {
+			synchronized(getLockObject()) {
+				if(flush_list.isEmpty())
 					return;
+				boolean threshold = settings.flushPolicy()==NodeSettings.FlushPolicy.threshold;
+				long now = System.currentTimeMillis();
+				for(Iterator<TCPConnection> it = flush_list.iterator(); it.hasNext(); ) {
+					TCPConnection conn = it.next();
+					if(conn.flush_scheduled && threshold &&
+					   conn.flush_deadline>now &&
+					   conn.output_queue.bytes()<settings.flushThresholdBytes())
+						continue;
+					it.remove();
+					if(!conn.flush_scheduled)
+						continue; //already flushed
+					conn.flush_scheduled = false;
+					if(conn.state!=Connection.State.closed && conn.hasNetOutput())
+						outputBecameAvailable(conn);
+				}
+			}
+		}
+		
+		/**
+		 * Release the buffers of closed connections.
+		 * This is done by the selector thread between reads because a
+		 * connection can be closed by another thread while its input buffer is
+		 * being processed.
+		 */
+		private void releaseClosed() {
+			synchronized(getLockObject()) {
+				for(TCPConnection conn : closed_list)
+					conn.connection_buffers.release();
+				closed_list.clear();
+			}
+		}
+		
+		//Returns the earliest time a scheduled flush is due, or -1
+		private long nextFlushDeadline() {
+			synchronized(getLockObject()) {
+				long deadline = -1;
+				for(TCPConnection conn : flush_list) {
+					if(deadline==-1 || conn.flush_deadline<deadline)
+						deadline = conn.flush_deadline;
+				}
+				return deadline;
 			}
-			if(status==Message.decode_status.not_enough) break;
 		}
-		conn.consumeAppInBuffer(offset);
-		//System.out.println("processInBuffer(): the end");
 	}
+	
+	//Set up a connection for an accepted channel. The reactor registers it
+	private TCPConnection accepted(SocketChannel channel, Reactor reactor, boolean tls) throws java.io.IOException {
+		String host_id = remoteHostId(channel);
+		logger.log(Level.INFO,"Got an inbound "+(tls?"TLS ":"")+"connection from " + host_id);
+		TCPConnection conn = (TCPConnection)newConnection(settings.watchdogInterval(),settings.idleTimeout());
+		conn.reactor = reactor;
+		conn.host_id = host_id;
+		conn.state = Connection.State.connected_in;
+		conn.channel = channel;
+		if(tls) {
+			SSLEngine engine = settings.TLSContext().createSSLEngine();
+			engine.setUseClientMode(false);
+			engine.setNeedClientAuth(settings.TLSNeedClientAuth());
+			startTLS(conn,engine);
+		}
+		return conn;
+	}
+	
+	/**
+	 * Run TLS on the connection. The handshake starts right away so this
+	 * must be done before anything is sent or read.
+	 */
+	private void startTLS(final TCPConnection conn, SSLEngine engine) throws SSLException {
+		conn.connection_buffers = new TLSConnectionBuffers(engine, bufferPool(), tls_executor,
+			new Runnable() {
+				public void run() {
+					conn.reactor.resumeTLS(conn);
+				}
+			});
+	}
+	
 	private void handleWritable(Connection conn_) {
 		TCPConnection conn = (TCPConnection)conn_;
 		logger.log(Level.FINEST,"handleWritable():");
-		ByteBuffer net_out_buffer = conn.connection_buffers.netOutBuffer();
-		//int bytes = net_out_buffer.position();
-		//net_out_buffer.rewind();
-		//net_out_buffer.limit(bytes);
-		net_out_buffer.flip();
-		//logger.log(Level.FINEST,"                :bytes= " + bytes);
-		int count;
 		try {
-			count = conn.channel.write(net_out_buffer);
-			if(count<0) {
-				closeConnection(conn);
-				return;
-			}
-			//conn.consumeNetOutBuffer(count);
-			net_out_buffer.compact();
-			conn.processAppOutBuffer();
+			long written=0;
+			if(conn.connection_buffers.flushNetOutput(conn.channel))
+				written = conn.output_queue.writeTo(conn.connection_buffers.outputChannel(conn.channel),outputLaneCounters());
+			if(written!=0)
+				outputQueueChanged(conn,-written);
 			if(!conn.hasNetOutput())
-				conn.channel.register(selector, SelectionKey.OP_READ, conn);
+				conn.channel.register(conn.reactor.selector, SelectionKey.OP_READ, conn);
 		} catch(java.io.IOException ex) {
 			closeConnection(conn);
 			return;
 		}
 	}
 	
-	void sendMessage(TCPConnection conn, byte[] raw) {
-		boolean was_empty = !conn.hasNetOutput();
-		conn.makeSpaceInAppOutBuffer(raw.length);
-		//System.out.println("sendMessage: A: position=" + out_buffer.position() + " limit=" + conn.out_buffer.limit());
-		conn.connection_buffers.appOutBuffer().put(raw);
-		conn.connection_buffers.processAppOutBuffer();
-		//System.out.println("sendMessage: B: position=" + out_buffer.position() + " limit=" + conn.out_buffer.limit());
-		
-		if(was_empty)
-			outputBecameAvailable(conn);
+	void sendMessage(TCPConnection conn, byte[] raw, OutputLane lane) {
+		synchronized(getLockObject()) {
+			boolean was_empty = !conn.hasNetOutput();
+			conn.output_queue.add(ByteBuffer.wrap(raw),lane);
+			outputQueueChanged(conn,raw.length);
+			if(!was_empty && !conn.flush_scheduled)
+				return; //the rest is written when the channel becomes writable
+			switch(settings.flushPolicy()) {
+				case immediate:
+					outputBecameAvailable(conn);
+					break;
+				case end_of_iteration:
+					scheduleFlush(conn);
+					break;
+				case threshold:
+					if(conn.output_queue.bytes()>=settings.flushThresholdBytes()) {
+						conn.flush_scheduled = false;
+						outputBecameAvailable(conn);
+					} else
+						scheduleFlush(conn);
+					break;
+			}
+		}
+	}
+	
+	//Must be called with the node lock held
+	private void scheduleFlush(TCPConnection conn) {
+		if(conn.flush_scheduled)
+			return;
+		conn.flush_scheduled = true;
+		conn.flush_deadline = System.currentTimeMillis();
+		if(settings.flushPolicy()==NodeSettings.FlushPolicy.threshold)
+			conn.flush_deadline += settings.flushThresholdDelay();
+		Reactor reactor = conn.reactor;
+		boolean was_empty = reactor.flush_list.isEmpty();
+		reactor.flush_list.add(conn);
+		if(was_empty && Thread.currentThread()!=reactor)
+			reactor.selector.wakeup();
 	}
 	
 	private void outputBecameAvailable(Connection conn_) {
@@ -306,57 +766,117 @@ class TCPNode extends NodeImplementation {
 		handleWritable(conn);
 		if(conn.hasNetOutput()) {
 			try {
-				conn.channel.register(selector, SelectionKey.OP_READ|SelectionKey.OP_WRITE, conn);
+				conn.channel.register(conn.reactor.selector, SelectionKey.OP_READ|SelectionKey.OP_WRITE, conn);
 			} catch(java.nio.channels.ClosedChannelException ex) { }
 		}
 	}
 	
 	boolean initiateConnection(Connection conn_, Peer peer) {
 		TCPConnection conn = (TCPConnection)conn_;
-		try {
-			SocketChannel channel = SocketChannel.open();
-			channel.configureBlocking(false);
-			NodeSettings.PortRange port_range = settings.TCPPortRange();
-			if(port_range!=null)
-				bindChannelInRange(channel,port_range.min,port_range.max);
-			InetSocketAddress address = new InetSocketAddress(peer.host(),peer.port());
+		Reactor reactor = nextReactor();
+		conn.reactor = reactor;
+		if(peer.secure()) {
+			SSLContext tls_context = settings.TLSContext();
+			if(tls_context==null) {
+				logger.log(Level.WARNING,"Cannot connect to '"+peer.host()+"' with TLS because there is no TLS context");
+				return false;
+			}
+			//The peer's host and port let the engine resume a cached session
+			SSLEngine engine = tls_context.createSSLEngine(peer.host(),peer.port());
+			engine.setUseClientMode(true);
 			try {
-				logger.log(Level.FINEST,"Initiating TCP connection to " + address.toString());
-				if(channel.connect(address)) {
-					//This only happens on Solaris when connecting locally
-					logger.log(Level.FINEST,"Connected!");
-					conn.state = Connection.State.connected_out;
-					conn.channel = channel;
-					selector.wakeup();
-					channel.register(selector, SelectionKey.OP_READ, conn);
-					initiateCER(conn);
-					return true;
-				}
-			} catch(java.nio.channels.UnresolvedAddressException ex) {
-				channel.close();
+				startTLS(conn,engine);
+			} catch(SSLException ex) {
+				logger.log(Level.WARNING,"Could not start TLS to '"+peer.host()+"'",ex);
 				return false;
 			}
-			conn.state = Connection.State.connecting;
+		}
+		conn.state = Connection.State.connecting;
+		SocketAddress address = remoteAddress(peer);
+		if(address!=null) {
+			connect(conn,address);
+			return true;
+		}
+		//Resolve the host name in the background so neither the caller
+		//(who holds the node lock) nor the reactors wait for DNS
+		final TCPConnection conn_to_resolve = conn;
+		final int port = peer.port();
+		hostResolver().resolve(peer.host(), new HostResolver.Callback() {
+			public void resolved(String host, InetAddress address) {
+				synchronized(getLockObject()) {
+					if(conn_to_resolve.state==Connection.State.closed)
+						return; //given up on while it was being resolved
+					if(address==null) {
+						logger.log(Level.WARNING,"Cannot connect to '"+host+"' because the host name could not be resolved");
+						unregisterConnection(conn_to_resolve);
+						return;
+					}
+					connect(conn_to_resolve,new InetSocketAddress(address,port));
+				}
+			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Start connecting to a resolved address.
+	 * Called with the node lock held. If it fails the connection is unregistered.
+	 */
+	private void connect(TCPConnection conn, SocketAddress address) {
+		Reactor reactor = conn.reactor;
+		SocketChannel channel = null;
+		try {
+			channel = openChannel();
+			channel.configureBlocking(false);
 			conn.channel = channel;
-			selector.wakeup();
-			channel.register(selector, SelectionKey.OP_CONNECT, conn);
+			logger.log(Level.FINEST,"Initiating "+transportName()+" connection to " + address.toString());
+			FlightRecorderEvents.connection(conn,"connect");
+			if(channel.connect(address)) {
+				//This only happens on Solaris when connecting locally
+				logger.log(Level.FINEST,"Connected!");
+				conn.state = Connection.State.connected_out;
+				reactor.selector.wakeup();
+				channel.register(reactor.selector, SelectionKey.OP_READ, conn);
+				initiateCER(conn);
+				if(conn.hasNetOutput())
+					channel.register(reactor.selector, SelectionKey.OP_READ|SelectionKey.OP_WRITE, conn);
+				return;
+			}
+			reactor.selector.wakeup();
+			channel.register(reactor.selector, SelectionKey.OP_CONNECT, conn);
 		} catch(java.io.IOException ex) {
-			logger.log(Level.WARNING,"java.io.IOException caught while initiating connection to '" + peer.host() +"'.", ex);
+			logger.log(Level.WARNING,"java.io.IOException caught while initiating connection to '" + conn.host_id +"'.", ex);
+			if(channel!=null) {
+				try {
+					channel.close();
+				} catch(java.io.IOException ex2) {}
+			}
+			conn.channel = null;
+			unregisterConnection(conn);
 		}
-		return true;
 	}
 	
 	void close(Connection conn_, boolean reset) {
 		TCPConnection conn = (TCPConnection)conn_;
-		try {
-			conn.channel.register(selector, 0);
-			if(reset) {
-				//Set lingertime to zero to force a RST when closing the socket
-				//rfc3588, section 2.1
-				conn.channel.socket().setSoLinger(true,0);
-			}
-			conn.channel.close();
-		} catch(java.io.IOException ex) {}
+		if(conn.channel!=null) { //(null while the host name is being resolved)
+			try {
+				conn.channel.register(conn.reactor.selector, 0);
+				if(reset && conn.channel.supportedOptions().contains(StandardSocketOptions.SO_LINGER)) {
+					//Set lingertime to zero to force a RST when closing the socket
+					//rfc3588, section 2.1
+					conn.channel.setOption(StandardSocketOptions.SO_LINGER,0);
+				} else
+					conn.connection_buffers.close(conn.channel);
+				conn.channel.close();
+			} catch(java.io.IOException ex) {}
+		}
+		synchronized(getLockObject()) {
+			conn.reactor.closed_list.add(conn);
+			if(conn.output_bytes!=0)
+				outputQueueChanged(conn,-conn.output_bytes);
+		}
+		if(please_stop)
+			wakeup(); //the reactors wait for all connections to close
 	}
 	
 	Connection newConnection(long watchdog_interval, long idle_timeout) {
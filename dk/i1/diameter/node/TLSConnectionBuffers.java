@@ -0,0 +1,293 @@
+package dk.i1.diameter.node;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Connection buffers that run TLS over the connection with an SSLEngine.
+ * Records read from the network (the net buffer) are decrypted into the
+ * app buffer, and queued output is encrypted on its way to the network
+ * through {@link #outputChannel}. All buffers are direct buffers from the
+ * node's {@link BufferPool} and are only held while they contain data.
+ * <p>
+ * The delegated tasks of the handshake (key exchange, certificate
+ * validation) are run on a worker pool so they do not hold up the
+ * selector thread. When they are done the connection is handed back to
+ * the selector thread with the resume callback.
+ * <p>
+ * Input is processed by the selector thread only. Output is processed
+ * with the node lock held.
+ */
+class TLSConnectionBuffers extends ConnectionBuffers {
+	private static final ByteBuffer empty = ByteBuffer.allocate(0);
+	private final SSLEngine engine;
+	private final BufferPool pool;
+	private final Executor handshake_executor;
+	private final Runnable resume;
+	private ByteBuffer net_in;  //write mode
+	private ByteBuffer app_in;  //write mode
+	private ByteBuffer net_out; //write mode. Records not yet written
+	private final AtomicBoolean task_running; //delegated tasks have been handed to the executor
+	private boolean inbound_closed;
+	private volatile boolean unwrap_blocked; //records are waiting for a handshake write
+	private final Encrypter encrypter;
+
+	TLSConnectionBuffers(SSLEngine engine, BufferPool pool, Executor handshake_executor, Runnable resume) throws SSLException {
+		this.engine = engine;
+		this.pool = pool;
+		this.handshake_executor = handshake_executor;
+		this.resume = resume;
+		this.encrypter = new Encrypter();
+		this.task_running = new AtomicBoolean();
+		engine.beginHandshake();
+	}
+
+	SSLEngine engine() {
+		return engine;
+	}
+
+	ByteBuffer netInBuffer() {
+		return net_in;
+	}
+	ByteBuffer appInBuffer() {
+		return app_in!=null ? app_in : empty;
+	}
+
+	void makeSpaceInNetInBuffer() {
+		net_in = ensureSpace(net_in,engine.getSession().getPacketBufferSize());
+	}
+
+	private ByteBuffer ensureSpace(ByteBuffer bb, int how_much) {
+		if(bb==null)
+			return pool.acquire(how_much);
+		if(bb.remaining()>=how_much)
+			return bb;
+		ByteBuffer bigger = pool.acquire(bb.position()+how_much);
+		bb.flip();
+		bigger.put(bb);
+		pool.release(bb);
+		return bigger;
+	}
+
+	/**
+	 * Decrypt the records received so far.
+	 * Stops early if the handshake needs a delegated task to be run.
+	 */
+	void processNetInBuffer() throws java.io.IOException {
+		if(net_in==null)
+			return;
+		unwrap_blocked = false;
+		net_in.flip();
+		try {
+			while(net_in.hasRemaining() && !task_running.get() && !inbound_closed) {
+				app_in = ensureSpace(app_in,engine.getSession().getApplicationBufferSize());
+				SSLEngineResult result = engine.unwrap(net_in,app_in);
+				if(result.getStatus()==SSLEngineResult.Status.BUFFER_UNDERFLOW)
+					break; //incomplete record. makeSpaceInNetInBuffer() makes room for the rest
+				if(result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW)
+					continue; //app buffer is made bigger above
+				if(result.getStatus()==SSLEngineResult.Status.CLOSED) {
+					inbound_closed = true;
+					break;
+				}
+				if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_TASK)
+					runDelegatedTasks();
+				else if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					//the selector thread sees hasNetOutput() and writes
+					unwrap_blocked = net_in.hasRemaining();
+					break;
+				}
+			}
+		} finally {
+			net_in.compact();
+			if(net_in.position()==0) {
+				pool.release(net_in);
+				net_in = null;
+			}
+			if(app_in!=null && app_in.position()==0) {
+				pool.release(app_in);
+				app_in = null;
+			}
+		}
+	}
+
+	//Called from both the input path (selector thread) and the output path
+	//(node lock), so only the one that flips task_running submits the tasks
+	private void runDelegatedTasks() {
+		if(!task_running.compareAndSet(false,true))
+			return; //the tasks are being run already
+		handshake_executor.execute(new Runnable() {
+			public void run() {
+				do {
+					Runnable task;
+					while((task=engine.getDelegatedTask())!=null)
+						task.run();
+					task_running.set(false);
+					//tasks may have been added after the last one was taken
+				} while(engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_TASK &&
+				        task_running.compareAndSet(false,true));
+				resume.run();
+			}
+		});
+	}
+
+	void consumeAppInBuffer(int bytes) {
+		if(app_in==null)
+			return;
+		super.consumeAppInBuffer(bytes);
+		if(app_in.position()==0) {
+			pool.release(app_in);
+			app_in = null;
+		}
+	}
+
+	/**
+	 * Returns true if the peer has closed the TLS session (close_notify).
+	 */
+	boolean inputClosed() {
+		return inbound_closed;
+	}
+
+	boolean hasNetOutput() {
+		if(net_out!=null && net_out.position()!=0)
+			return true;
+		return !task_running.get() &&
+		       engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_WRAP;
+	}
+
+	boolean canWriteAppOutput() {
+		return !task_running.get() &&
+		       engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+	}
+
+	GatheringByteChannel outputChannel(SocketChannel channel) {
+		encrypter.channel = channel;
+		return encrypter;
+	}
+
+	/**
+	 * Write pending records, and the handshake records the engine wants
+	 * to send. If records that were received while the engine wanted to
+	 * write are still waiting they are handed back to the selector thread.
+	 * @return True if everything was written.
+	 */
+	boolean flushNetOutput(SocketChannel channel) throws java.io.IOException {
+		for(;;) {
+			if(!writeNetOut(channel))
+				return false;
+			if(task_running.get())
+				return true;
+			if(engine.getHandshakeStatus()!=SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+				if(unwrap_blocked) {
+					unwrap_blocked = false;
+					resume.run();
+				}
+				return true;
+			}
+			wrap(new ByteBuffer[]{empty},0,1);
+		}
+	}
+
+	//Returns true if all of net_out was written
+	private boolean writeNetOut(SocketChannel channel) throws java.io.IOException {
+		if(net_out==null)
+			return true;
+		net_out.flip();
+		try {
+			channel.write(net_out);
+			return !net_out.hasRemaining();
+		} finally {
+			net_out.compact();
+			if(net_out.position()==0) {
+				pool.release(net_out);
+				net_out = null;
+			}
+		}
+	}
+
+	private SSLEngineResult wrap(ByteBuffer srcs[], int offset, int length) throws SSLException {
+		for(;;) {
+			net_out = ensureSpace(net_out,engine.getSession().getPacketBufferSize());
+			SSLEngineResult result = engine.wrap(srcs,offset,length,net_out);
+			if(result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW)
+				continue;
+			if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NEED_TASK)
+				runDelegatedTasks();
+			return result;
+		}
+	}
+
+	void close(SocketChannel channel) {
+		//Best effort close_notify. The channel is closed right after.
+		engine.closeOutbound();
+		try {
+			while(!engine.isOutboundDone() && !task_running.get()) {
+				SSLEngineResult result = wrap(new ByteBuffer[]{empty},0,1);
+				if(result.bytesProduced()==0)
+					break;
+			}
+			writeNetOut(channel);
+		} catch(java.io.IOException ex) { }
+	}
+
+	void release() {
+		if(net_in!=null) {
+			pool.release(net_in);
+			net_in = null;
+		}
+		if(app_in!=null) {
+			pool.release(app_in);
+			app_in = null;
+		}
+		if(net_out!=null) {
+			pool.release(net_out);
+			net_out = null;
+		}
+	}
+
+	/**
+	 * The channel that the output queue writes plaintext to.
+	 * Plaintext is encrypted into records, which are written to the
+	 * socket. Plaintext is only consumed while the records fit in the
+	 * socket buffer, so the output queue keeps the rest and the accounting
+	 * of queued output stays in plaintext bytes.
+	 */
+	private class Encrypter implements GatheringByteChannel {
+		SocketChannel channel;
+		public long write(ByteBuffer srcs[], int offset, int length) throws java.io.IOException {
+			long consumed=0;
+			while(flushNetOutput(channel)) {
+				if(!canWriteAppOutput())
+					break; //application data waits for the handshake
+				while(length>0 && !srcs[offset].hasRemaining()) {
+					offset++;
+					length--;
+				}
+				if(length==0)
+					break;
+				SSLEngineResult result = wrap(srcs,offset,length);
+				if(result.getStatus()==SSLEngineResult.Status.CLOSED)
+					throw new SSLException("TLS session has been closed");
+				consumed += result.bytesConsumed();
+			}
+			return consumed;
+		}
+		public long write(ByteBuffer srcs[]) throws java.io.IOException {
+			return write(srcs,0,srcs.length);
+		}
+		public int write(ByteBuffer src) throws java.io.IOException {
+			return (int)write(new ByteBuffer[]{src},0,1);
+		}
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+		public void close() throws java.io.IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package dk.i1.diameter.node;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket.
+ * Implemented as the generic cell rate algorithm: instead of a token count
+ * the bucket remembers the theoretical arrival time of the next token, so
+ * taking a token is a single compare-and-set.
+ */
+class TokenBucket {
+	private final long emission_interval; //nanoseconds per token
+	private final long tolerance;         //nanoseconds. Determines the burst size
+	private final AtomicLong tat;         //theoretical arrival time (System.nanoTime())
+
+	TokenBucket(double rate, int burst) {
+		emission_interval = Math.max((long)(1000000000.0/rate),1);
+		tolerance = emission_interval*burst;
+		tat = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Take a token.
+	 * @return False if the bucket is empty.
+	 */
+	boolean tryAcquire() {
+		long now = System.nanoTime();
+		for(;;) {
+			long t = tat.get();
+			long new_tat = (t-now>0 ? t : now) + emission_interval;
+			if(new_tat-now > tolerance)
+				return false;
+			if(tat.compareAndSet(t,new_tat))
+				return true;
+		}
+	}
+
+	/**
+	 * Give back a token taken with tryAcquire(), eg. because the message
+	 * was rejected by another bucket.
+	 * If the bucket has filled up since, the token is simply lost.
+	 */
+	void release() {
+		tat.addAndGet(-emission_interval);
+	}
+}
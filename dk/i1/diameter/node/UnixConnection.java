@@ -0,0 +1,35 @@
+package dk.i1.diameter.node;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.ArrayList;
+
+/**
+ * A connection over a Unix domain socket.
+ * The peer is on the same host, so the loopback address stands in for
+ * the IP addresses that Diameter wants (eg. Host-IP-Address in CER/CEA).
+ */
+class UnixConnection extends TCPConnection {
+	public UnixConnection(UnixNode node_impl, long watchdog_interval, long idle_timeout) {
+		super(node_impl,watchdog_interval,idle_timeout);
+	}
+	
+	InetAddress toInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+	
+	Collection<InetAddress> getLocalAddresses() {
+		Collection<InetAddress> coll = new ArrayList<InetAddress>();
+		coll.add(InetAddress.getLoopbackAddress());
+		return coll;
+	}
+	
+	Peer toPeer() {
+		if(peer!=null)
+			return new Peer(peer); //outbound; keep the socket path
+		try {
+			return new Peer(host_id,0,Peer.TransportProtocol.unix);
+		} catch(EmptyHostNameException ex) {
+			return null; //cannot happen; host_id is set
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package dk.i1.diameter.node;
+import java.nio.channels.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Transport over Unix domain sockets, for peers on the same host.
+ * Apart from the addressing it works exactly like TCPNode, with a single
+ * reactor. Requires a JDK with UnixDomainSocketAddress (16 or later). If
+ * the class cannot be loaded the node runs without Unix domain socket
+ * support, like it does for SCTP.
+ */
+class UnixNode extends TCPNode {
+	private Path socket_path; //where we listen, or null
+	
+	public UnixNode(Node node, NodeSettings settings, Logger logger) {
+		super(node,settings,logger);
+	}
+	
+	String transportName() {
+		return "Unix";
+	}
+	
+	int reactorCount() {
+		return 1;
+	}
+	
+	void openListeners() throws java.io.IOException {
+		if(settings.unixSocketPath()==null)
+			return;
+		socket_path = Path.of(settings.unixSocketPath());
+		//A socket file left behind by a previous run prevents binding
+		Files.deleteIfExists(socket_path);
+		ServerSocketChannel server_channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server_channel.bind(UnixDomainSocketAddress.of(socket_path));
+		reactors[0].server_channel = server_channel;
+	}
+	
+	void closeIO() {
+		super.closeIO();
+		if(socket_path!=null) {
+			try {
+				Files.deleteIfExists(socket_path);
+			} catch(java.io.IOException ex) {
+				logger.log(Level.FINE,"Could not remove "+socket_path,ex);
+			}
+			socket_path = null;
+		}
+	}
+	
+	String remoteHostId(SocketChannel channel) {
+		//The client end of a Unix domain socket is normally unnamed
+		return "localhost";
+	}
+	
+	SocketChannel openChannel() throws java.io.IOException {
+		return SocketChannel.open(StandardProtocolFamily.UNIX);
+	}
+	
+	SocketAddress remoteAddress(Peer peer) {
+		return UnixDomainSocketAddress.of(peer.unixSocketPath());
+	}
+	
+	boolean initiateConnection(Connection conn, Peer peer) {
+		if(peer.unixSocketPath()==null) {
+			logger.log(Level.WARNING,"Cannot connect to "+peer.host()+" over a Unix domain socket because the peer has no socket path");
+			return false;
+		}
+		return super.initiateConnection(conn,peer);
+	}
+	
+	Connection newConnection(long watchdog_interval, long idle_timeout) {
+		return new UnixConnection(this,watchdog_interval,idle_timeout);
+	}
+}
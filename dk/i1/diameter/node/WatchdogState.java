@@ -0,0 +1,23 @@
+package dk.i1.diameter.node;
+
+/**
+ * The state of the watchdog of a connection, as in RFC3539 section 3.4.
+ * Requests are only routed to connections in the <tt>okay</tt> state.
+ * @see Node#watchdogState
+ * @since 0.9.7
+ */
+public enum WatchdogState {
+	/**The capabilities exchange has not finished yet*/
+	initial,
+	/**The peer answers watchdogs (or sends other traffic)*/
+	okay,
+	/**A watchdog has not been answered within the watchdog interval.
+	 * If it is not answered within another interval the connection is closed*/
+	suspect,
+	/**The connection has been closed because watchdogs were not answered*/
+	down,
+	/**The connection is to a peer whose previous connection went down.
+	 * Requests are not routed to it until it has answered a number of
+	 * watchdogs in a row (see {@link NodeSettings#setWatchdogReopenCount})*/
+	reopen
+}
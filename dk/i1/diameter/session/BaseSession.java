@@ -41,6 +41,7 @@ public abstract class BaseSession implements Session {
 		discon
 	};
 	private State state;
+	private State counted_state; //the state the session manager counts the session in. Protected by this
 	private int auth_app_id;
 	//From AAA:
 	private int session_timeout; //seconds
@@ -58,6 +59,7 @@ public abstract class BaseSession implements Session {
 	 */
 	public BaseSession(int auth_app_id, SessionManager session_manager) {
 		state = State.idle;
+		counted_state = State.idle;
 		this.auth_app_id = auth_app_id;
 		this.session_manager = session_manager;
 		this.session_auth_timers = new SessionAuthTimers();
@@ -215,6 +217,7 @@ public abstract class BaseSession implements Session {
 			State new_state=State.idle;
 			newStatePre(state,new_state,msg,0);
 			state=new_state;
+			stateChanged(old_state,new_state,0);
 			session_manager.unregister(this);
 			newStatePost(old_state,state,msg,0);
 		}
@@ -234,6 +237,7 @@ public abstract class BaseSession implements Session {
 		State new_state=State.open;
 		newStatePre(old_state,new_state,msg,0);
 		state=new_state;
+		stateChanged(old_state,new_state,0);
 		newStatePost(old_state,new_state,msg,0);
 		sessionManager().updateTimeouts(this);
 	}
@@ -267,6 +271,7 @@ public abstract class BaseSession implements Session {
 		newStatePre(state,new_state,msg,0);
 		session_manager.unregister(this);
 		state=new_state;
+		stateChanged(old_state,new_state,0);
 		newStatePost(old_state,new_state,msg,0);
 	}
 	
@@ -347,6 +352,20 @@ public abstract class BaseSession implements Session {
 	}
 	
 	
+	//Called after every state transition
+	private void stateChanged(State from, State to, int termination_cause) {
+		//An answer can change the state while another thread is in the
+		//middle of a transition, so the session manager counts the session
+		//in the state it ends up in rather than by from and to
+		synchronized(this) {
+			if(counted_state!=state) {
+				session_manager.sessionStateChanged(counted_state,state);
+				counted_state = state;
+			}
+		}
+		SessionStateEvent.transition(this,from,to,termination_cause);
+	}
+	
 	/**
 	 * Open a session.
 	 * Initiate opening a session. If the session is not idle or is
@@ -365,6 +384,7 @@ public abstract class BaseSession implements Session {
 		newStatePre(state,new_state,null,0);
 		session_manager.register(this);
 		state = new_state;
+		stateChanged(State.idle,new_state,0);
 		newStatePost(State.idle,new_state,null,0);
 		startAuth();
 	}
@@ -391,6 +411,7 @@ public abstract class BaseSession implements Session {
 				newStatePre(State.pending,State.discon,msg,termination_cause);
 				sendSTR(termination_cause);
 				state = State.discon;
+				stateChanged(State.pending,state,termination_cause);
 				newStatePost(State.pending,state,msg,termination_cause);
 				break;
 			case open:
@@ -398,10 +419,12 @@ public abstract class BaseSession implements Session {
 					newStatePre(State.open,State.discon,msg,termination_cause);
 					sendSTR(termination_cause);
 					state = State.discon;
+					stateChanged(State.open,state,termination_cause);
 					newStatePost(State.open,state,msg,termination_cause);
 				} else {
 					newStatePre(State.open,State.idle,msg,termination_cause);
 					state = State.idle;
+					stateChanged(State.open,state,termination_cause);
 					session_manager.unregister(this);
 					newStatePost(State.open,state,msg,termination_cause);
 				}
@@ -2,6 +2,7 @@ package dk.i1.diameter.session;
 import dk.i1.diameter.*;
 import dk.i1.diameter.node.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -32,6 +33,13 @@ public class SessionManager extends NodeManager {
 	private Thread timer_thread;
 	private long earliest_timeout;
 	private boolean stop;
+	//For writeMetrics(), which only reads them so a scrape does not take
+	//map_session: the number of BaseSessions per state (idle ones are not
+	//counted) and of other sessions (last), and the number of sessions
+	//with a pending timeout (updated with map_session held)
+	private static final BaseSession.State session_states[] = BaseSession.State.values();
+	private AtomicLongArray session_counts;
+	private volatile int timers_pending;
 	Logger logger;
 	
 	/**
@@ -49,6 +57,7 @@ public class SessionManager extends NodeManager {
 		this.peers = peers;
 		earliest_timeout = Long.MAX_VALUE;
 		stop = false;
+		session_counts = new AtomicLongArray(session_states.length+1);
 		logger = Logger.getLogger("dk.i1.diameter.session");
 	}
 	
@@ -210,8 +219,12 @@ public class SessionManager extends NodeManager {
 	 */
 	public void register(Session s) {
 		SessionAndTimeout sat = new SessionAndTimeout(s);
+		if(!(s instanceof BaseSession))
+			session_counts.incrementAndGet(session_states.length);
 		synchronized(map_session) {
 			map_session.put(s.sessionId(),sat);
+			if(sat.timeout!=Long.MAX_VALUE)
+				timers_pending++;
 			if(sat.timeout<earliest_timeout)
 				map_session.notify(); //wake it so it can re-calculate timeouts
 		}
@@ -226,6 +239,11 @@ public class SessionManager extends NodeManager {
 		synchronized(map_session) {
 			SessionAndTimeout sat = map_session.get(s.sessionId());
 			if(sat!=null) {
+				if(!sat.deleted) {
+					if(!(s instanceof BaseSession))
+						session_counts.decrementAndGet(session_states.length);
+					setTimeout(sat,Long.MAX_VALUE);
+				}
 				sat.deleted = true;
 				if(earliest_timeout==Long.MAX_VALUE)
 					map_session.notify(); //wake it so it can remove it
@@ -243,14 +261,54 @@ public class SessionManager extends NodeManager {
 	public void updateTimeouts(Session s) {
 		synchronized(map_session) {
 			SessionAndTimeout sat = map_session.get(s.sessionId());
-			if(sat==null)
+			if(sat==null || sat.deleted)
 				return; //actually an error, but a harmless one
-			sat.timeout = s.calcNextTimeout();
+			setTimeout(sat,s.calcNextTimeout());
 			if(sat.timeout<earliest_timeout)
 				map_session.notify(); //wake it so it can re-calculate timeouts
 		}
 	}
 	
+	/**
+	 * Write the metrics for the metrics endpoint.
+	 * Adds the number of sessions (per state for sessions derived from
+	 * {@link BaseSession}, and in the state "other" for the rest), and the
+	 * number of sessions with a pending timer, to the metrics of the
+	 * NodeManager. Idle sessions are not counted. The numbers are kept
+	 * up to date as sessions change state and set timeouts, so writing
+	 * them does not look at the sessions.
+	 * @since 0.9.7
+	 */
+	protected void writeMetrics(MetricsWriter out) {
+		super.writeMetrics(out);
+		out.family("diameter_sessions","gauge","Sessions per state");
+		for(int i=0; i<session_states.length; i++) {
+			if(session_states[i]!=BaseSession.State.idle)
+				out.sample("diameter_sessions").label("state",session_states[i].name()).value(session_counts.get(i));
+		}
+		long other = session_counts.get(session_states.length);
+		if(other!=0)
+			out.sample("diameter_sessions").label("state","other").value(other);
+		out.family("diameter_session_timers_pending","gauge","Sessions with a pending timeout");
+		out.sample("diameter_session_timers_pending").value(timers_pending);
+	}
+	
+	//Called by BaseSession after each state transition
+	void sessionStateChanged(BaseSession.State from, BaseSession.State to) {
+		if(from!=BaseSession.State.idle)
+			session_counts.decrementAndGet(from.ordinal());
+		if(to!=BaseSession.State.idle)
+			session_counts.incrementAndGet(to.ordinal());
+	}
+	//Set the timeout of a registered session. Called with map_session held
+	private void setTimeout(SessionAndTimeout sat, long timeout) {
+		if(sat.timeout!=Long.MAX_VALUE)
+			timers_pending--;
+		if(timeout!=Long.MAX_VALUE)
+			timers_pending++;
+		sat.timeout = timeout;
+	}
+	
 	private final Session findSession(String session_id) {
 		synchronized(map_session) {
 			SessionAndTimeout sat = map_session.get(session_id);
@@ -288,7 +346,8 @@ public class SessionManager extends NodeManager {
 						Session session = e.getValue().session;
 						if(e.getValue().timeout<now) {
 							session.handleTimeout();
-							e.getValue().timeout = session.calcNextTimeout();
+							if(!e.getValue().deleted)
+								setTimeout(e.getValue(),session.calcNextTimeout());
 						}
 						earliest_timeout = Math.min(earliest_timeout, e.getValue().timeout);
 					}
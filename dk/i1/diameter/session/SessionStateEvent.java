@@ -0,0 +1,42 @@
+package dk.i1.diameter.session;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for the state transitions of a {@link BaseSession}.
+ * It happens for every session, so like the per-message events of the node
+ * it is disabled by default. See the flight recorder events of the node for
+ * how to enable it.
+ */
+@Name("dk.i1.diameter.SessionState")
+@Label("Diameter Session State")
+@Description("A state transition of a session")
+@Category("Diameter")
+@StackTrace(false)
+@Enabled(false)
+class SessionStateEvent extends Event {
+	@Label("Session-Id")
+	String sessionId;
+	@Label("From")
+	String from;
+	@Label("To")
+	String to;
+	@Label("Termination Cause")
+	int terminationCause;
+
+	static void transition(BaseSession session, BaseSession.State from, BaseSession.State to, int termination_cause) {
+		SessionStateEvent event = new SessionStateEvent();
+		if(!event.isEnabled())
+			return;
+		event.sessionId = session.sessionId();
+		event.from = from.name();
+		event.to = to.name();
+		event.terminationCause = termination_cause;
+		event.commit();
+	}
+}
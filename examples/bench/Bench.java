@@ -0,0 +1,134 @@
+import dk.i1.diameter.*;
+import dk.i1.diameter.node.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pieces for the benchmark programs: an echo server, a client that
+ * keeps a window of outstanding requests, and simple measurements.
+ * All nodes run in the same JVM and talk over the loopback interface.
+ */
+class Bench {
+	static NodeSettings settings(String host_id, int port) throws InvalidSettingException {
+		Capability capability = new Capability();
+		capability.addAuthApp(ProtocolConstants.DIAMETER_APPLICATION_NASREQ);
+		return new NodeSettings(host_id, "example.net",
+		                        99999, //vendor-id
+		                        capability,
+		                        port,
+		                        "Bench", 0x01000000);
+	}
+	
+	/**
+	 * A server that answers every request immediately from the network thread.
+	 */
+	static class EchoServer extends NodeManager {
+		EchoServer(NodeSettings settings) {
+			super(settings);
+		}
+		protected void handleRequest(Message request, ConnectionKey connkey, Peer peer) {
+			Message answer = new Message();
+			answer.prepareResponse(request);
+			AVP avp = request.find(ProtocolConstants.DI_SESSION_ID);
+			if(avp!=null)
+				answer.add(avp);
+			node().addOurHostAndRealm(answer);
+			answer.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE,ProtocolConstants.DIAMETER_RESULT_SUCCESS));
+			try {
+				answer(answer,connkey);
+			} catch(NotAnAnswerException ex) { }
+		}
+	}
+	
+	/**
+	 * A client that keeps up to <tt>window</tt> requests outstanding and
+	 * records the latency of each.
+	 */
+	static class Client extends NodeManager {
+		private final Semaphore window;
+		final AtomicLong answers = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final long latencies[];   //nanoseconds, indexed by request number
+		private final AtomicLong next_index = new AtomicLong();
+		Client(NodeSettings settings, int window, int max_requests) {
+			super(settings);
+			this.window = new Semaphore(window);
+			this.latencies = new long[max_requests];
+		}
+		Message makeRequest() {
+			Message request = new Message();
+			request.hdr.setRequest(true);
+			request.hdr.setProxiable(true);
+			request.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_NASREQ;
+			request.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_AA;
+			request.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID,node().makeNewSessionId()));
+			node().addOurHostAndRealm(request);
+			request.add(new AVP_UTF8String(ProtocolConstants.DI_DESTINATION_REALM,"example.net"));
+			request.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID,ProtocolConstants.DIAMETER_APPLICATION_NASREQ));
+			Utils.setMandatory_RFC3588(request);
+			return request;
+		}
+		/**
+		 * Send a request to one of the peers, waiting for room in the window first.
+		 */
+		void send(Peer peers[]) throws InterruptedException {
+			window.acquire();
+			long state[] = new long[]{System.nanoTime(),next_index.getAndIncrement()};
+			try {
+				sendRequest(makeRequest(),peers,state);
+			} catch(NotRoutableException ex) {
+				failures.incrementAndGet();
+				window.release();
+			} catch(NotARequestException ex) { }
+		}
+		protected void handleAnswer(Message answer, ConnectionKey answer_connkey, Object state) {
+			long s[] = (long[])state;
+			if(answer!=null) {
+				if(s[1]<latencies.length)
+					latencies[(int)s[1]] = System.nanoTime()-s[0];
+				answers.incrementAndGet();
+			} else
+				failures.incrementAndGet();
+			window.release();
+		}
+		/**
+		 * Wait until all outstanding requests have been answered.
+		 */
+		void drain(int window_size) throws InterruptedException {
+			window.acquire(window_size);
+			window.release(window_size);
+		}
+	}
+	
+	/**
+	 * Returns the number of write system calls made by this process so
+	 * far, or -1 if it is not available (only Linux provides it).
+	 */
+	static long writeSyscalls() {
+		try {
+			java.io.BufferedReader r = new java.io.BufferedReader(new java.io.FileReader("/proc/self/io"));
+			try {
+				String line;
+				while((line=r.readLine())!=null) {
+					if(line.startsWith("syscw:"))
+						return Long.parseLong(line.substring(6).trim());
+				}
+			} finally {
+				r.close();
+			}
+		} catch(java.io.IOException ex) { }
+		return -1;
+	}
+	
+	/**
+	 * Returns a latency percentile in microseconds.
+	 */
+	static long percentile(long latencies[], int count, double p) {
+		long sorted[] = java.util.Arrays.copyOf(latencies,count);
+		java.util.Arrays.sort(sorted);
+		if(count==0)
+			return 0;
+		int i = (int)Math.min(count-1,Math.ceil(count*p)-1);
+		return sorted[Math.max(i,0)]/1000;
+	}
+}
@@ -0,0 +1,118 @@
+import dk.i1.diameter.*;
+import dk.i1.diameter.node.*;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measure how fast a node takes a storm of inbound connections.
+ * A number of threads connect to the server at the same time. Each
+ * connection sends a CER and waits for the CEA, and is kept open until
+ * all connections have been set up, like clients reconnecting after a
+ * network outage. The time for the whole storm and the percentiles of the
+ * per-connection setup time are reported.
+ */
+class ConnectionStormBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=3) {
+			System.out.println("Usage: <reactors> <connections> <concurrent connects>");
+			return;
+		}
+		int reactors = Integer.parseInt(args[0]);
+		final int connections = Integer.parseInt(args[1]);
+		int concurrency = Integer.parseInt(args[2]);
+		final int port = 13868;
+
+		NodeSettings settings = Bench.settings("127.0.0.1",port);
+		settings.setTCPReactorCount(reactors);
+		Bench.EchoServer server = new Bench.EchoServer(settings);
+		server.start();
+
+		final long setup_times[] = new long[connections];
+		final ArrayList<Socket> sockets = new ArrayList<Socket>();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		Thread threads[] = new Thread[concurrency];
+		for(int i=0; i<concurrency; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					int i;
+					while((i=next.getAndIncrement())<connections) {
+						long start = System.nanoTime();
+						try {
+							Socket socket = new Socket("127.0.0.1",port);
+							synchronized(sockets) {
+								sockets.add(socket);
+							}
+							if(!capabilitiesExchange(socket,i))
+								failures.incrementAndGet();
+						} catch(IOException ex) {
+							failures.incrementAndGet();
+						}
+						setup_times[i] = System.nanoTime()-start;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime()-start;
+
+		System.out.println(String.format("%d reactors: %d connections in %.0fms (%.0f/s)  failures=%d",
+		                                 reactors, connections,
+		                                 elapsed/1e6, connections*1e9/elapsed,
+		                                 failures.get()));
+		System.out.println(String.format("setup time: p50=%dus  p99=%dus  max=%dus",
+		                                 Bench.percentile(setup_times,connections,0.50),
+		                                 Bench.percentile(setup_times,connections,0.99),
+		                                 Bench.percentile(setup_times,connections,1.0)));
+
+		for(Socket socket : sockets)
+			socket.close();
+		server.stop();
+	}
+
+	//Send a CER and wait for a successful CEA
+	static boolean capabilitiesExchange(Socket socket, int n) throws IOException {
+		Message cer = new Message();
+		cer.hdr.setRequest(true);
+		cer.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CAPABILITIES_EXCHANGE;
+		cer.hdr.hop_by_hop_identifier = n;
+		cer.hdr.end_to_end_identifier = n;
+		cer.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST,"c"+n+".example.net"));
+		cer.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM,"example.net"));
+		cer.add(new AVP_Address(ProtocolConstants.DI_HOST_IP_ADDRESS,InetAddress.getByName("127.0.0.1")));
+		cer.add(new AVP_Unsigned32(ProtocolConstants.DI_VENDOR_ID,99999));
+		cer.add(new AVP_UTF8String(ProtocolConstants.DI_PRODUCT_NAME,"Storm"));
+		cer.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID,ProtocolConstants.DIAMETER_APPLICATION_NASREQ));
+		Utils.setMandatory_RFC3588(cer);
+		socket.getOutputStream().write(cer.encode());
+
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		byte raw[] = new byte[4];
+		in.readFully(raw);
+		int size = Message.decodeSize(raw,0);
+		if(size<20)
+			return false;
+		byte rest[] = new byte[size];
+		System.arraycopy(raw,0,rest,0,4);
+		in.readFully(rest,4,size-4);
+		Message cea = new Message();
+		if(cea.decode(rest)!=Message.decode_status.decoded)
+			return false;
+		AVP avp = cea.find(ProtocolConstants.DI_RESULT_CODE);
+		if(avp==null)
+			return false;
+		try {
+			return new AVP_Unsigned32(avp).queryValue()==ProtocolConstants.DIAMETER_RESULT_SUCCESS;
+		} catch(InvalidAVPLengthException ex) {
+			return false;
+		}
+	}
+}
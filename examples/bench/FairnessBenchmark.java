@@ -0,0 +1,112 @@
+import dk.i1.diameter.*;
+import dk.i1.diameter.node.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measure how a peer with a large backlog affects the latency of other peers.
+ * One echo server is connected to a heavy client, which keeps many
+ * requests outstanding, and to a number of light clients, which send one
+ * request at a time. The latency percentiles of the light clients and
+ * the throughput of the heavy client are reported.
+ * <p>
+ * The decode budget of the server only limits a turn when a single read
+ * holds more messages than the budget, so use small requests and a deep
+ * window for the heavy client, eg. <tt>4 3000 20000 0</tt>.
+ */
+class FairnessBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=4) {
+			System.out.println("Usage: <light clients> <requests per light client> <heavy window> <heavy request size>");
+			return;
+		}
+		int light_clients = Integer.parseInt(args[0]);
+		final int light_requests = Integer.parseInt(args[1]);
+		final int heavy_window = Integer.parseInt(args[2]);
+		final int heavy_request_size = Integer.parseInt(args[3]);
+		int port = 13868;
+		
+		Bench.EchoServer server = new Bench.EchoServer(Bench.settings("127.0.0.1",port));
+		server.start();
+		final Peer peers[] = new Peer[]{new Peer("127.0.0.1",port)};
+		
+		//The heavy client writes its requests in large bursts so that the
+		//server finds many messages in a single read
+		NodeSettings heavy_settings = Bench.settings("heavy.example.net",0);
+		heavy_settings.setFlushPolicy(NodeSettings.FlushPolicy.threshold);
+		heavy_settings.setFlushThresholds(256*1024,5);
+		final Bench.Client heavy = new Bench.Client(heavy_settings,heavy_window,0) {
+			Message makeRequest() {
+				Message request = super.makeRequest();
+				if(heavy_request_size>0)
+					request.add(new AVP_OctetString(ProtocolConstants.DI_CLASS,new byte[heavy_request_size]));
+				return request;
+			}
+		};
+		heavy.start();
+		heavy.node().initiateConnection(peers[0],false);
+		heavy.waitForConnection(5000);
+		
+		final Bench.Client light[] = new Bench.Client[light_clients];
+		for(int i=0; i<light_clients; i++) {
+			light[i] = new Bench.Client(Bench.settings("light"+i+".example.net",0),1,light_requests);
+			light[i].start();
+			light[i].node().initiateConnection(peers[0],false);
+			light[i].waitForConnection(5000);
+		}
+		
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread heavy_thread = new Thread() {
+			public void run() {
+				try {
+					while(!stop.get())
+						heavy.send(peers);
+				} catch(InterruptedException ex) { }
+			}
+		};
+		heavy_thread.start();
+		Thread.sleep(2000); //let the backlog build up
+		
+		long start = System.nanoTime();
+		long heavy_start = heavy.answers.get();
+		Thread light_threads[] = new Thread[light_clients];
+		for(int i=0; i<light_clients; i++) {
+			final Bench.Client c = light[i];
+			light_threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int j=0; j!=light_requests; j++)
+							c.send(peers);
+						c.drain(1);
+					} catch(InterruptedException ex) { }
+				}
+			};
+			light_threads[i].start();
+		}
+		for(Thread t : light_threads)
+			t.join();
+		long elapsed = System.nanoTime()-start;
+		long heavy_answers = heavy.answers.get()-heavy_start;
+		stop.set(true);
+		heavy_thread.join();
+		heavy.drain(heavy_window);
+		
+		long all[] = new long[light_clients*light_requests];
+		int n=0;
+		for(Bench.Client c : light) {
+			int answered = (int)Math.min(c.answers.get(),light_requests);
+			System.arraycopy(c.latencies,0,all,n,answered);
+			n += answered;
+		}
+		System.out.println(String.format("light clients: %d answers  p50=%dus  p99=%dus  p99.9=%dus",
+		                                 n,
+		                                 Bench.percentile(all,n,0.50),
+		                                 Bench.percentile(all,n,0.99),
+		                                 Bench.percentile(all,n,0.999)));
+		System.out.println(String.format("heavy client: %.0f requests/s",heavy_answers*1e9/elapsed));
+		
+		for(Bench.Client c : light)
+			c.stop();
+		heavy.stop();
+		server.stop();
+	}
+}
@@ -0,0 +1,68 @@
+import dk.i1.diameter.*;
+import dk.i1.diameter.node.*;
+
+/**
+ * Measure throughput and write system calls per message for each TCP
+ * flush policy.
+ * An echo server and a client are run in this JVM. The client keeps a
+ * window of requests outstanding, and the server answers each request
+ * directly from the network thread, so the server writes many small
+ * answers per read.
+ * The system call count is taken from /proc/self/io and is therefore only
+ * available on Linux. It covers both nodes.
+ */
+class FlushPolicyBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=2) {
+			System.out.println("Usage: <requests> <window>");
+			return;
+		}
+		int requests = Integer.parseInt(args[0]);
+		int window = Integer.parseInt(args[1]);
+		
+		System.out.println("policy            requests/s  writes/message  p50(us)  p99(us)");
+		int port=13868;
+		for(NodeSettings.FlushPolicy policy : NodeSettings.FlushPolicy.values()) {
+			NodeSettings server_settings = Bench.settings("127.0.0.1",port);
+			server_settings.setFlushPolicy(policy);
+			NodeSettings client_settings = Bench.settings("bench-client.example.net",0);
+			client_settings.setFlushPolicy(policy);
+			Bench.EchoServer server = new Bench.EchoServer(server_settings);
+			int warmup = Math.min(requests,10000);
+			Bench.Client client = new Bench.Client(client_settings,window,warmup+requests);
+			server.start();
+			client.start();
+			Peer peers[] = new Peer[]{new Peer("127.0.0.1",port)};
+			client.node().initiateConnection(peers[0],false);
+			client.waitForConnection(5000);
+			
+			//warm up
+			for(int i=0; i!=warmup; i++)
+				client.send(peers);
+			client.drain(window);
+			client.answers.set(0);
+			
+			long syscalls_before = Bench.writeSyscalls();
+			long start = System.nanoTime();
+			for(int i=0; i!=requests; i++)
+				client.send(peers);
+			client.drain(window);
+			long elapsed = System.nanoTime()-start;
+			long syscalls = Bench.writeSyscalls()-syscalls_before;
+			
+			long answered = client.answers.get();
+			long latencies[] = new long[requests];
+			System.arraycopy(client.latencies,warmup,latencies,0,requests);
+			int n = (int)Math.min(answered,requests);
+			System.out.println(String.format("%-16s %11.0f  %14s  %7d  %7d",
+			                                 policy,
+			                                 answered*1e9/elapsed,
+			                                 syscalls_before<0 ? "n/a" : String.format("%.3f",(double)syscalls/(2*answered)),
+			                                 Bench.percentile(latencies,n,0.50),
+			                                 Bench.percentile(latencies,n,0.99)));
+			client.stop();
+			server.stop();
+			port++;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+import dk.i1.diameter.node.*;
+
+/**
+ * Measure the Diameter stack without kernel networking.
+ * An echo server and a client are connected over TCP loopback and over
+ * the in-JVM loopback transport, and the throughput with a window of
+ * outstanding requests and the latency of sequential requests are reported
+ * for each.
+ */
+class LoopbackBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=2) {
+			System.out.println("Usage: <requests> <window>");
+			return;
+		}
+		int requests = Integer.parseInt(args[0]);
+		int window = Integer.parseInt(args[1]);
+		for(Peer.TransportProtocol transport : new Peer.TransportProtocol[]{Peer.TransportProtocol.tcp,Peer.TransportProtocol.loopback}) {
+			run(transport,requests,window);
+			run(transport,requests,1);
+		}
+	}
+
+	private static void run(Peer.TransportProtocol transport, int requests, int window) throws Exception {
+		boolean loopback = transport==Peer.TransportProtocol.loopback;
+		int port = 13868;
+		NodeSettings server_settings = Bench.settings("127.0.0.1",port);
+		server_settings.setUseTCP(!loopback);
+		server_settings.setUseLoopback(loopback);
+		Bench.EchoServer server = new Bench.EchoServer(server_settings);
+		server.start();
+
+		NodeSettings client_settings = Bench.settings("client.example.net",0);
+		client_settings.setUseTCP(!loopback);
+		client_settings.setUseLoopback(loopback);
+		int warmup = Math.min(requests,10000);
+		Bench.Client client = new Bench.Client(client_settings,window,warmup+requests);
+		client.start();
+		Peer peers[] = new Peer[]{new Peer("127.0.0.1",port,transport)};
+		client.node().initiateConnection(peers[0],false);
+		client.waitForConnection(5000);
+
+		for(int i=0; i<warmup; i++)
+			client.send(peers);
+		client.drain(window);
+		long start = System.nanoTime();
+		for(int i=0; i<requests; i++)
+			client.send(peers);
+		client.drain(window);
+		long elapsed = System.nanoTime()-start;
+
+		long latencies[] = new long[requests];
+		System.arraycopy(client.latencies,warmup,latencies,0,requests);
+		System.out.println(String.format("%-8s window=%-4d %7.0f requests/s  p50=%dus  p99=%dus  failures=%d",
+		                                 transport, window,
+		                                 requests*1e9/elapsed,
+		                                 Bench.percentile(latencies,requests,0.50),
+		                                 Bench.percentile(latencies,requests,0.99),
+		                                 client.failures.get()));
+		client.stop();
+		server.stop();
+	}
+}
@@ -0,0 +1,66 @@
+import dk.i1.diameter.node.*;
+
+/**
+ * Measure how long a node takes to bring up connections to many peers.
+ * A number of echo servers are started, each on its own port. A client
+ * node is then started with all of them as persistent peers, and the time
+ * from starting the client until all the connections are ready (the
+ * capabilities exchange is done) is reported. The transport is tcp or sctp
+ * (which requires the JavaSCTP library).
+ */
+class PeerSetupBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=2) {
+			System.out.println("Usage: <tcp|sctp> <peers>");
+			return;
+		}
+		boolean sctp = args[0].equals("sctp");
+		int count = Integer.parseInt(args[1]);
+		int base_port = 14000;
+
+		Bench.EchoServer servers[] = new Bench.EchoServer[count];
+		Peer peers[] = new Peer[count];
+		Peer ready_peers[] = new Peer[count]; //as the peers identify themselves
+		for(int i=0; i<count; i++) {
+			String host_id = "peer"+i+".example.net";
+			NodeSettings settings = Bench.settings(host_id,base_port+i);
+			settings.setUseTCP(!sctp);
+			settings.setUseSCTP(sctp);
+			servers[i] = new Bench.EchoServer(settings);
+			servers[i].start();
+			peers[i] = new Peer("127.0.0.1",base_port+i,sctp?Peer.TransportProtocol.sctp:Peer.TransportProtocol.tcp);
+			ready_peers[i] = new Peer(host_id,base_port+i);
+		}
+
+		NodeSettings settings = Bench.settings("client.example.net",0);
+		settings.setUseTCP(!sctp);
+		settings.setUseSCTP(sctp);
+		Bench.Client client = new Bench.Client(settings,1,0);
+		long start = System.nanoTime();
+		client.start();
+		for(Peer peer : peers)
+			client.node().initiateConnection(peer,true);
+		long first_ready=0;
+		int ready=0;
+		long give_up = start + 120*1000000000L;
+		while(ready<count && System.nanoTime()<give_up) {
+			ready=0;
+			for(Peer peer : ready_peers) {
+				if(client.node().findConnection(peer)!=null)
+					ready++;
+			}
+			if(ready>0 && first_ready==0)
+				first_ready = System.nanoTime()-start;
+			if(ready<count)
+				Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime()-start;
+		System.out.println(String.format("%s: %d of %d peers ready in %.0fms (first after %.0fms)",
+		                                 args[0], ready, count,
+		                                 elapsed/1e6, first_ready/1e6));
+
+		client.stop();
+		for(Bench.EchoServer server : servers)
+			server.stop();
+	}
+}
@@ -0,0 +1,84 @@
+import dk.i1.diameter.*;
+import dk.i1.diameter.node.*;
+
+/**
+ * Measure the latency of requests over SCTP with packet loss.
+ * A client keeps a window of requests outstanding to an echo server over
+ * SCTP. The requests belong to a number of sessions; the messages of a
+ * session use one SCTP stream, so with one session a lost chunk holds up
+ * all the requests behind it, while with many sessions it only holds up
+ * the requests on its own stream. Run it with and without loss on the
+ * loopback interface, eg.:
+ * tc qdisc add dev lo root netem loss 1%
+ * tc qdisc del dev lo root
+ * Requires the JavaSCTP library.
+ */
+class SCTPStreamBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=2) {
+			System.out.println("Usage: <requests> <window>");
+			return;
+		}
+		int requests = Integer.parseInt(args[0]);
+		int window = Integer.parseInt(args[1]);
+		int port = 13868;
+
+		NodeSettings server_settings = Bench.settings("127.0.0.1",port);
+		server_settings.setUseTCP(false);
+		server_settings.setUseSCTP(true);
+		Bench.EchoServer server = new Bench.EchoServer(server_settings);
+		server.start();
+
+		for(int sessions : new int[]{1,window})
+			run(sessions,requests,window,port);
+
+		server.stop();
+	}
+
+	private static void run(final int sessions, int requests, int window, int port) throws Exception {
+		NodeSettings settings = Bench.settings("client.example.net",0);
+		settings.setUseTCP(false);
+		settings.setUseSCTP(true);
+		int warmup = Math.min(requests,10000);
+		Bench.Client client = new Bench.Client(settings,window,warmup+requests) {
+			private String session_ids[];
+			private int next;
+			Message makeRequest() {
+				if(session_ids==null) {
+					session_ids = new String[sessions];
+					for(int i=0; i<sessions; i++)
+						session_ids[i] = node().makeNewSessionId();
+				}
+				Message request = new Message();
+				request.hdr.setRequest(true);
+				request.hdr.setProxiable(true);
+				request.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_NASREQ;
+				request.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_AA;
+				request.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID,session_ids[next++%sessions]));
+				node().addOurHostAndRealm(request);
+				request.add(new AVP_UTF8String(ProtocolConstants.DI_DESTINATION_REALM,"example.net"));
+				request.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID,ProtocolConstants.DIAMETER_APPLICATION_NASREQ));
+				Utils.setMandatory_RFC3588(request);
+				return request;
+			}
+		};
+		client.start();
+		Peer peers[] = new Peer[]{new Peer("127.0.0.1",port,Peer.TransportProtocol.sctp)};
+		client.node().initiateConnection(peers[0],false);
+		client.waitForConnection(5000);
+
+		for(int i=0; i<warmup+requests; i++)
+			client.send(peers);
+		client.drain(window);
+
+		long latencies[] = new long[requests];
+		System.arraycopy(client.latencies,warmup,latencies,0,requests);
+		System.out.println(String.format("%4d sessions: p50=%dus  p99=%dus  p99.9=%dus  failures=%d",
+		                                 sessions,
+		                                 Bench.percentile(latencies,requests,0.50),
+		                                 Bench.percentile(latencies,requests,0.99),
+		                                 Bench.percentile(latencies,requests,0.999),
+		                                 client.failures.get()));
+		client.stop();
+	}
+}
@@ -0,0 +1,157 @@
+import dk.i1.diameter.node.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Measure the TLS transport.
+ * The handshake rate is measured with a number of threads that connect to
+ * the TLS port of a server, do the TLS handshake and the capabilities
+ * exchange, and disconnect: once with full handshakes (each connection has
+ * a new client context) and once with resumed sessions (the connections
+ * share a client context). Then the throughput and latency of requests
+ * over a TLS connection are compared with plain TCP.
+ * The keystore must have a key that is used by both ends and trusted by
+ * both ends, eg.:
+ * keytool -genkeypair -keyalg EC -alias bench -dname CN=127.0.0.1 -keystore bench.p12 -storepass secret -validity 365
+ */
+class TLSBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=4) {
+			System.out.println("Usage: <keystore> <password> <connections> <requests>");
+			return;
+		}
+		final String keystore = args[0];
+		final String password = args[1];
+		int connections = Integer.parseInt(args[2]);
+		int requests = Integer.parseInt(args[3]);
+		final int port = 13868;
+		final int tls_port = 15868;
+
+		NodeSettings server_settings = Bench.settings("127.0.0.1",port);
+		server_settings.setTLSContext(context(keystore,password));
+		server_settings.setTLSPort(tls_port);
+		Bench.EchoServer server = new Bench.EchoServer(server_settings);
+		server.start();
+
+		handshakes("full",connections,tls_port,new ContextSource() {
+			public SSLContext get() throws Exception {
+				return context(keystore,password);
+			}
+		});
+		final SSLContext shared = context(keystore,password);
+		handshakes("resumed",connections,tls_port,new ContextSource() {
+			public SSLContext get() {
+				return shared;
+			}
+		});
+
+		Peer tcp_peer = new Peer("127.0.0.1",port);
+		Peer tls_peer = new Peer("127.0.0.1",tls_port);
+		tls_peer.secure(true);
+		for(int window : new int[]{100,1}) {
+			requests("tcp",tcp_peer,requests,window,keystore,password);
+			requests("tls",tls_peer,requests,window,keystore,password);
+		}
+
+		server.stop();
+	}
+
+	interface ContextSource {
+		SSLContext get() throws Exception;
+	}
+
+	static SSLContext context(String keystore, String password) throws Exception {
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		FileInputStream in = new FileInputStream(keystore);
+		try {
+			ks.load(in,password.toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks,password.toCharArray());
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(),tmf.getTrustManagers(),null);
+		return context;
+	}
+
+	private static void handshakes(String name, final int connections, final int port, final ContextSource contexts) throws Exception {
+		final long setup_times[] = new long[connections];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		Thread threads[] = new Thread[4];
+		for(int i=0; i<threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					int i;
+					while((i=next.getAndIncrement())<connections) {
+						long start = System.nanoTime();
+						try {
+							SSLSocket socket = (SSLSocket)contexts.get().getSocketFactory().createSocket("127.0.0.1",port);
+							try {
+								socket.startHandshake();
+								if(!ConnectionStormBenchmark.capabilitiesExchange(socket,i))
+									failures.incrementAndGet();
+							} finally {
+								socket.close();
+							}
+						} catch(Exception ex) {
+							failures.incrementAndGet();
+						}
+						setup_times[i] = System.nanoTime()-start;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime()-start;
+		System.out.println(String.format("%-7s handshakes: %d in %.0fms (%.0f/s)  p50=%dus  p99=%dus  failures=%d",
+		                                 name, connections,
+		                                 elapsed/1e6, connections*1e9/elapsed,
+		                                 Bench.percentile(setup_times,connections,0.50),
+		                                 Bench.percentile(setup_times,connections,0.99),
+		                                 failures.get()));
+	}
+
+	private static void requests(String name, Peer peer, int requests, int window, String keystore, String password) throws Exception {
+		NodeSettings settings = Bench.settings("client.example.net",0);
+		settings.setTLSContext(context(keystore,password));
+		int warmup = Math.min(requests,10000);
+		Bench.Client client = new Bench.Client(settings,window,warmup+requests);
+		client.start();
+		client.node().initiateConnection(peer,false);
+		client.waitForConnection(5000);
+		Peer peers[] = new Peer[]{peer};
+
+		for(int i=0; i<warmup; i++)
+			client.send(peers);
+		client.drain(window);
+		long start = System.nanoTime();
+		for(int i=0; i<requests; i++)
+			client.send(peers);
+		client.drain(window);
+		long elapsed = System.nanoTime()-start;
+
+		long latencies[] = new long[requests];
+		System.arraycopy(client.latencies,warmup,latencies,0,requests);
+		System.out.println(String.format("%-3s window=%-4d %7.0f requests/s  p50=%dus  p99=%dus  failures=%d",
+		                                 name, window,
+		                                 requests*1e9/elapsed,
+		                                 Bench.percentile(latencies,requests,0.50),
+		                                 Bench.percentile(latencies,requests,0.99),
+		                                 client.failures.get()));
+		client.stop();
+	}
+}
@@ -0,0 +1,54 @@
+import dk.i1.diameter.node.*;
+
+/**
+ * Compare the latency of TCP loopback with Unix domain sockets.
+ * One echo server listens on both. A client sends requests one at a time
+ * (after a warm-up) over TCP and then over the Unix domain socket, and the
+ * latency percentiles of each are reported. Unix domain sockets require
+ * JDK 16 or later.
+ */
+class UnixSocketBenchmark {
+	public static final void main(String args[]) throws Exception {
+		if(args.length!=2) {
+			System.out.println("Usage: <requests> <socket path>");
+			return;
+		}
+		int requests = Integer.parseInt(args[0]);
+		String path = args[1];
+		int port = 13868;
+
+		NodeSettings server_settings = Bench.settings("127.0.0.1",port);
+		server_settings.setUnixSocketPath(path);
+		Bench.EchoServer server = new Bench.EchoServer(server_settings);
+		server.start();
+
+		run("tcp",server_settings,requests,new Peer("127.0.0.1",port));
+		run("unix",server_settings,requests,new Peer("127.0.0.1",path));
+
+		server.stop();
+	}
+
+	private static void run(String name, NodeSettings server_settings, int requests, Peer peer) throws Exception {
+		NodeSettings settings = Bench.settings("client.example.net",0);
+		settings.setUseUnix(peer.transportProtocol()==Peer.TransportProtocol.unix);
+		int warmup = Math.min(requests,10000);
+		Bench.Client client = new Bench.Client(settings,1,warmup+requests);
+		client.start();
+		client.node().initiateConnection(peer,false);
+		client.waitForConnection(5000);
+		Peer peers[] = new Peer[]{peer};
+		for(int i=0; i<warmup+requests; i++)
+			client.send(peers);
+		client.drain(1);
+
+		long latencies[] = new long[requests];
+		System.arraycopy(client.latencies,warmup,latencies,0,requests);
+		System.out.println(String.format("%-4s: %d requests  p50=%dus  p99=%dus  p99.9=%dus  failures=%d",
+		                                 name, requests,
+		                                 Bench.percentile(latencies,requests,0.50),
+		                                 Bench.percentile(latencies,requests,0.99),
+		                                 Bench.percentile(latencies,requests,0.999),
+		                                 client.failures.get()));
+		client.stop();
+	}
+}